@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
+import org.eclipse.osgi.framework.internal.core.FrameworkProperties;
+import org.eclipse.osgi.launch.EquinoxFactory;
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registration and unregistration of CommandProvider services tracked by Activator
+ * in embedded Equinox framework. Equinox could be started only once per JVM, so every
+ * parameters combination runs in its own fork
+ *
+ * @author dmytro.pishchukhin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActivatorChurnBenchmark {
+    /**
+     * Number of CommandProvider services registered per operation
+     */
+    private static final int SERVICES = 10;
+
+    @Param({JavassistAdapterBackend.NAME, DispatcherAdapterBackend.NAME})
+    public String backend;
+
+    @Param({"false", "true"})
+    public boolean lazy;
+
+    private File storage;
+    private Framework framework;
+    private BundleContext bc;
+    private Activator activator;
+    private final ServiceRegistration[] registrations = new ServiceRegistration[SERVICES];
+
+    @Setup
+    public void setUp() throws Exception {
+        storage = File.createTempFile("equinox", "");
+        storage.delete();
+        Map<String, String> config = new HashMap<String, String>();
+        config.put(Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath());
+        framework = new EquinoxFactory().newFramework(config);
+        framework.start();
+        bc = framework.getBundleContext();
+
+        FrameworkProperties.setProperty(Activator.BACKEND_PROPERTY, backend);
+        FrameworkProperties.setProperty(Activator.LAZY_PROPERTY, String.valueOf(lazy));
+        activator = new Activator();
+        activator.start(bc);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        activator.stop(bc);
+        framework.stop();
+        framework.waitForStop(10000);
+    }
+
+    @Benchmark
+    public int registerAndUnregister() throws Exception {
+        for (int i = 0; i < SERVICES; i++) {
+            registrations[i] = bc.registerService(CommandProvider.class.getName(), new BenchmarkCommandProvider(), null);
+        }
+        activator.awaitReady(10000);
+        int adapted = activator.getAdaptedCount();
+        for (int i = 0; i < SERVICES; i++) {
+            registrations[i].unregister();
+        }
+        return adapted;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandInterpreter;
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+/**
+ * CommandProvider for dispatch benchmarks
+ *
+ * @author dmytro.pishchukhin
+ */
+public class BenchmarkCommandProvider implements CommandProvider {
+    public String getHelp() {
+        return "count - return number of arguments\necho - return the first argument";
+    }
+
+    public int _count(CommandInterpreter intp) {
+        int count = 0;
+        while (intp.nextArgument() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    public Object _echo(CommandInterpreter intp) {
+        return intp.nextArgument();
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandProcessor;
+import org.eclipse.osgi.framework.console.CommandProvider;
+import org.eclipse.osgi.launch.EquinoxFactory;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Soak test of Activator under CommandProvider services churn in embedded Equinox framework.
+ * Churn threads register and unregister synthetic providers with different number of commands and help,
+ * provider classes are reloaded in new class loaders like bundle updates do. Invoker threads call
+ * adapted commands during the churn. Registration throughput, latency, heap, metaspace and loaded classes
+ * are reported periodically. Process exits with code 1 if loaded classes or memory grow beyond thresholds.
+ * <p/>
+ * Settings are read from system properties:
+ * <ul>
+ * <li><code>soak.duration</code> - test duration in seconds (default 60)</li>
+ * <li><code>soak.interval</code> - report interval in seconds (default 10)</li>
+ * <li><code>soak.threads</code> - number of churn threads (default 4)</li>
+ * <li><code>soak.rate</code> - registrations per second of every churn thread, 0 for unlimited (default 200)</li>
+ * <li><code>soak.window</code> - live registrations of every churn thread (default 20)</li>
+ * <li><code>soak.reload</code> - registrations between provider class reloads (default 50)</li>
+ * <li><code>soak.invokers</code> - number of command invocation threads (default 2)</li>
+ * <li><code>soak.max.classes</code> - max growth of loaded classes (default 2000)</li>
+ * <li><code>soak.max.metaspace</code> - max growth of metaspace in MB (default 32)</li>
+ * <li><code>soak.max.heap</code> - max growth of used heap in MB (default 64)</li>
+ * </ul>
+ *
+ * @author dmytro.pishchukhin
+ */
+public class ChurnSoak {
+    /**
+     * Number of commands of synthetic providers
+     */
+    private static final int[] COMMANDS = {1, 5, 20, 50};
+    /**
+     * Number of help variants per number of commands
+     */
+    private static final int HELP_VARIANTS = 2;
+    /**
+     * Adapter loggers, registrations are not logged during the test
+     */
+    private static final Logger ADAPTER_LOG = Logger.getLogger(ChurnSoak.class.getPackage().getName());
+
+    private final long duration = Long.getLong("soak.duration", 60) * 1000;
+    private final long interval = Long.getLong("soak.interval", 10) * 1000;
+    private final int threads = Integer.getInteger("soak.threads", 4);
+    private final int rate = Integer.getInteger("soak.rate", 200);
+    private final int window = Integer.getInteger("soak.window", 20);
+    private final int reload = Integer.getInteger("soak.reload", 50);
+    private final int invokers = Integer.getInteger("soak.invokers", 2);
+    private final long maxClasses = Long.getLong("soak.max.classes", 2000);
+    private final long maxMetaspace = Long.getLong("soak.max.metaspace", 32) * 1024 * 1024;
+    private final long maxHeap = Long.getLong("soak.max.heap", 64) * 1024 * 1024;
+
+    private final AtomicLong registrations = new AtomicLong();
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    /**
+     * Registration latencies in nanoseconds of the current report interval
+     */
+    private final List<Long> latencies = new ArrayList<Long>();
+
+    private BundleContext bc;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        ADAPTER_LOG.setLevel(Level.WARNING);
+        System.exit(new ChurnSoak().run() ? 0 : 1);
+    }
+
+    /**
+     * Run soak test
+     *
+     * @return <code>true</code> if resources growth is below thresholds
+     * @throws Exception unable to run test
+     */
+    public boolean run() throws Exception {
+        File storage = File.createTempFile("equinox", "");
+        storage.delete();
+        Map<String, String> config = new HashMap<String, String>();
+        config.put(Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath());
+        Framework framework = new EquinoxFactory().newFramework(config);
+        framework.start();
+        bc = framework.getBundleContext();
+        Activator activator = new Activator();
+        activator.start(bc);
+        try {
+            List<Variant> variants = new ArrayList<Variant>();
+            for (int commands : COMMANDS) {
+                for (int i = 0; i < HELP_VARIANTS; i++) {
+                    variants.add(new Variant(commands, i));
+                }
+            }
+            Resources baseline = null;
+            List<Thread> workers = new ArrayList<Thread>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(start(new Churn(variants, i), "churn " + i));
+            }
+            for (int i = 0; i < invokers; i++) {
+                workers.add(start(new Invoker(i), "invoker " + i));
+            }
+            long start = System.currentTimeMillis();
+            long lastReport = start;
+            long lastRegistrations = 0;
+            long lastInvocations = 0;
+            System.out.println("time,registrations/s,p50 ms,p99 ms,max ms,invocations/s,errors,heap MB,metaspace MB,classes");
+            while (System.currentTimeMillis() - start < duration) {
+                Thread.sleep(Math.min(interval, Math.max(1, duration - (System.currentTimeMillis() - start))));
+                long now = System.currentTimeMillis();
+                long[] sorted = drainLatencies();
+                long registered = registrations.get();
+                long invoked = invocations.get();
+                Resources resources = Resources.measure(false);
+                System.out.println(String.format("%d,%.1f,%.3f,%.3f,%.3f,%.1f,%d,%.1f,%.1f,%d",
+                        (now - start) / 1000, (registered - lastRegistrations) * 1000.0 / (now - lastReport),
+                        percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 1.0),
+                        (invoked - lastInvocations) * 1000.0 / (now - lastReport), errors.get(),
+                        resources.heap / 1048576.0, resources.metaspace / 1048576.0, resources.classes));
+                // the first interval is a warm-up, all classes of the test are loaded
+                if (baseline == null) {
+                    baseline = Resources.measure(true);
+                }
+                lastReport = now;
+                lastRegistrations = registered;
+                lastInvocations = invoked;
+            }
+            running = false;
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            Resources result = Resources.measure(true);
+            return check(baseline != null ? baseline : result, result);
+        } finally {
+            activator.stop(bc);
+            framework.stop();
+            framework.waitForStop(10000);
+        }
+    }
+
+    /**
+     * Compare resources with baseline
+     *
+     * @param baseline resources after warm-up
+     * @param result   resources after churn
+     * @return <code>true</code> if resources growth is below thresholds
+     */
+    private boolean check(Resources baseline, Resources result) {
+        boolean passed = errors.get() == 0;
+        passed &= check("loaded classes", result.classes - baseline.classes, maxClasses);
+        passed &= check("metaspace bytes", result.metaspace - baseline.metaspace, maxMetaspace);
+        passed &= check("heap bytes", result.heap - baseline.heap, maxHeap);
+        System.out.println(String.format("%d registrations, %d invocations, %d errors: %s",
+                registrations.get(), invocations.get(), errors.get(), passed ? "PASSED" : "FAILED"));
+        return passed;
+    }
+
+    private static boolean check(String name, long growth, long max) {
+        boolean passed = growth <= max;
+        System.out.println(String.format("%s growth: %d (max %d)%s", name, growth, max, passed ? "" : " - threshold exceeded"));
+        return passed;
+    }
+
+    private long[] drainLatencies() {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = new long[latencies.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            latencies.clear();
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Get percentile of sorted latencies
+     *
+     * @param sorted     sorted latencies in nanoseconds
+     * @param percentile percentile from 0 to 1
+     * @return latency in milliseconds
+     */
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000000.0;
+    }
+
+    private static Thread start(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, "Soak " + name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Synthetic CommandProvider class
+     */
+    private static class Variant {
+        private final String simpleName;
+        private final File directory;
+
+        private Variant(int commands, int help) throws Exception {
+            simpleName = "SoakProvider" + commands + "_" + help;
+            StringBuilder text = new StringBuilder(CommandProviders.createHelp(commands));
+            for (int i = 0; i < help; i++) {
+                text.append("\tvariant").append(i).append(" - help variant ").append(i).append('\n');
+            }
+            directory = CommandProviders.generate(simpleName, commands, text.toString());
+        }
+    }
+
+    /**
+     * Registers and unregisters CommandProvider services
+     */
+    private class Churn implements Runnable {
+        private final List<Variant> variants;
+        private final Random random;
+        private final LinkedList<ServiceRegistration> live = new LinkedList<ServiceRegistration>();
+        private final CommandProvider[] providers;
+
+        private Churn(List<Variant> variants, int seed) {
+            this.variants = variants;
+            random = new Random(seed);
+            providers = new CommandProvider[variants.size()];
+        }
+
+        public void run() {
+            long pause = rate > 0 ? 1000000000L / rate : 0;
+            long next = System.nanoTime();
+            int count = 0;
+            try {
+                while (running) {
+                    int index = random.nextInt(variants.size());
+                    // reload provider classes like bundle update does
+                    if (providers[index] == null || count % reload == 0) {
+                        Variant variant = variants.get(index);
+                        providers[index] = CommandProviders.load(variant.directory, variant.simpleName);
+                    }
+                    long start = System.nanoTime();
+                    live.add(bc.registerService(CommandProvider.class.getName(), providers[index], null));
+                    long latency = System.nanoTime() - start;
+                    synchronized (latencies) {
+                        latencies.add(latency);
+                    }
+                    registrations.incrementAndGet();
+                    count++;
+                    if (live.size() > window) {
+                        live.removeFirst().unregister();
+                    }
+                    if (pause > 0) {
+                        next += pause;
+                        long sleep = next - System.nanoTime();
+                        if (sleep > 0) {
+                            Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                errors.incrementAndGet();
+                e.printStackTrace();
+            } finally {
+                for (ServiceRegistration registration : live) {
+                    registration.unregister();
+                }
+                live.clear();
+                Arrays.fill(providers, null);
+            }
+        }
+    }
+
+    /**
+     * Calls adapted commands of registered services
+     */
+    private class Invoker implements Runnable {
+        private final Random random;
+
+        private Invoker(int seed) {
+            random = new Random(seed);
+        }
+
+        public void run() {
+            String filter = "(" + CommandProcessor.COMMAND_FUNCTION + "=command0)";
+            String[] args = new String[]{"soak"};
+            while (running) {
+                try {
+                    ServiceReference[] references = bc.getServiceReferences(null, filter);
+                    if (references == null) {
+                        Thread.sleep(1);
+                        continue;
+                    }
+                    ServiceReference reference = references[random.nextInt(references.length)];
+                    Object service = bc.getService(reference);
+                    // service is unregistered concurrently
+                    if (service == null) {
+                        continue;
+                    }
+                    try {
+                        Object result;
+                        if (service instanceof EquinoxGogoAdapter) {
+                            result = ((EquinoxGogoAdapter) service).runCommandWithResult(null, args, "command0", 0);
+                        } else {
+                            result = service.getClass().getMethod("_main", org.apache.felix.service.command.CommandSession.class,
+                                    String.class, String[].class).invoke(service, null, "command0", args);
+                        }
+                        if (!"soak".equals(result)) {
+                            errors.incrementAndGet();
+                        }
+                        invocations.incrementAndGet();
+                    } finally {
+                        bc.ungetService(reference);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Used memory and loaded classes
+     */
+    private static class Resources {
+        private long heap;
+        private long metaspace;
+        private long classes;
+
+        /**
+         * Measure resources
+         *
+         * @param gc run garbage collection and classes unloading before measurement
+         * @return resources
+         */
+        private static Resources measure(boolean gc) throws InterruptedException {
+            if (gc) {
+                for (int i = 0; i < 3; i++) {
+                    System.gc();
+                    Thread.sleep(100);
+                }
+            }
+            Resources resources = new Resources();
+            resources.heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if ("Metaspace".equals(pool.getName()) || pool.getName().endsWith("Perm Gen")) {
+                    resources.metaspace = pool.getUsage().getUsed();
+                }
+            }
+            resources.classes = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+            return resources;
+        }
+    }
+}
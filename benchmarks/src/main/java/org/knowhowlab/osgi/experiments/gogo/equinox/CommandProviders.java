@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewMethod;
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * Generator of CommandProvider classes with given number of commands
+ *
+ * @author dmytro.pishchukhin
+ */
+public class CommandProviders {
+    /**
+     * Generated classes package
+     */
+    private static final String PACKAGE = "org.knowhowlab.osgi.experiments.gogo.equinox.generated";
+
+    private CommandProviders() {
+    }
+
+    /**
+     * Create instance of CommandProvider class with given number of commands. Class is generated
+     * in a temporary directory, so it is visible for adapters generator as a regular class
+     *
+     * @param commands number of commands
+     * @return CommandProvider instance
+     * @throws Exception unable to generate class
+     */
+    public static CommandProvider create(int commands) throws Exception {
+        return load(generate("Provider" + commands, commands, createHelp(commands)), "Provider" + commands);
+    }
+
+    /**
+     * Generate CommandProvider class with given number of commands in a temporary directory
+     *
+     * @param simpleName class simple name
+     * @param commands   number of commands
+     * @param help       CommandProvider help
+     * @return classes directory
+     * @throws Exception unable to generate class
+     */
+    public static File generate(String simpleName, int commands, String help) throws Exception {
+        String className = PACKAGE + '.' + simpleName;
+        ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new ClassClassPath(CommandProvider.class));
+        CtClass ctClass = pool.makeClass(className);
+        ctClass.addInterface(pool.get(CommandProvider.class.getName()));
+        ctClass.addMethod(CtNewMethod.make("public String getHelp() { return \""
+                + help.replace("\n", "\\n").replace("\t", "\\t") + "\"; }", ctClass));
+        for (int i = 0; i < commands; i++) {
+            ctClass.addMethod(CtNewMethod.make("public Object _command" + i
+                    + "(org.eclipse.osgi.framework.console.CommandInterpreter intp) { return intp.nextArgument(); }", ctClass));
+        }
+
+        File directory = File.createTempFile("providers", "");
+        directory.delete();
+        File file = new File(directory, className.replace('.', File.separatorChar) + ".class");
+        file.getParentFile().mkdirs();
+        write(file, ctClass.toBytecode());
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    /**
+     * Load CommandProvider class generated before in a new class loader and create its instance.
+     * Every call defines a new class, like a bundle update does
+     *
+     * @param directory  classes directory
+     * @param simpleName class simple name
+     * @return CommandProvider instance
+     * @throws Exception unable to load class
+     */
+    public static CommandProvider load(File directory, String simpleName) throws Exception {
+        ClassLoader classLoader = new URLClassLoader(new URL[]{directory.toURI().toURL()}, CommandProvider.class.getClassLoader());
+        return (CommandProvider) classLoader.loadClass(PACKAGE + '.' + simpleName).getConstructor().newInstance();
+    }
+
+    /**
+     * Create CommandProvider help in Equinox format
+     *
+     * @param commands number of commands
+     * @return help
+     */
+    public static String createHelp(int commands) {
+        StringBuilder help = new StringBuilder("---Benchmark commands---\n");
+        for (int i = 0; i < commands; i++) {
+            help.append("\tcommand").append(i).append(" <arg> - command number ").append(i).append(" that returns its argument\n");
+        }
+        return help.toString();
+    }
+
+    private static void write(File file, byte[] bytecode) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytecode);
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+    }
+}
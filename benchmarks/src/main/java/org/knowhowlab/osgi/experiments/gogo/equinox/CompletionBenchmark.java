@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.knowhowlab.osgi.experiments.gogo.equinox.completion.Completion;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completion of adapted command names with given number of CommandProvider services
+ *
+ * @author dmytro.pishchukhin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompletionBenchmark {
+    private static final int COMMANDS = 20;
+
+    @Param({"10", "1000"})
+    public int providers;
+
+    private CompletionIndex index;
+
+    @Setup
+    public void setUp() {
+        index = new CompletionIndex();
+        HelpIndex help = HelpIndex.parse(CommandProviders.createHelp(COMMANDS));
+        String[] commands = new String[COMMANDS];
+        for (int i = 0; i < COMMANDS; i++) {
+            commands[i] = "command" + i;
+        }
+        for (int i = 0; i < providers; i++) {
+            index.add(i, "scope" + i, commands, help);
+        }
+    }
+
+    @Benchmark
+    public List<Completion> completeCommand() {
+        return index.complete("command1", CompletionIndex.DEFAULT_MAX_COMPLETIONS);
+    }
+
+    @Benchmark
+    public List<Completion> completeScopedCommand() {
+        return index.complete("scope7:command1", CompletionIndex.DEFAULT_MAX_COMPLETIONS);
+    }
+
+    @Benchmark
+    public void updateProvider() {
+        index.add(0, "scope0", new String[]{"command0", "command1"}, HelpIndex.parse(null));
+    }
+}
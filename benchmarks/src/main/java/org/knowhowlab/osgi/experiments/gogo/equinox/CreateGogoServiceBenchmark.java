@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapter creation cost of CommandProvider classes with 1, 20 and 200 commands.
+ * Every call creates new adapter, as for a new CommandProvider class
+ *
+ * @author dmytro.pishchukhin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateGogoServiceBenchmark {
+    @Param({"1", "20", "200"})
+    public int commands;
+
+    @Param({JavassistAdapterBackend.NAME, DispatcherAdapterBackend.NAME})
+    public String backend;
+
+    private CommandProvider provider;
+    private AdapterBackend adapterBackend;
+
+    @Setup
+    public void setUp() throws Exception {
+        provider = CommandProviders.create(commands);
+        if (DispatcherAdapterBackend.NAME.equals(backend)) {
+            adapterBackend = new DispatcherAdapterBackend();
+        } else {
+            adapterBackend = new JavassistAdapterBackend(null);
+        }
+    }
+
+    @Benchmark
+    public ShellInfo createShellInfo() {
+        return adapterBackend.createShellInfo(provider);
+    }
+
+    @Benchmark
+    public Object createShellInfoAndAdapter() throws Exception {
+        return adapterBackend.createAdapter(adapterBackend.createShellInfo(provider), provider);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-invocation latency of adapted commands versus direct CommandProvider calls, with and without
+ * flight recorder. Run with <code>-prof gc</code> to compare allocation rate, commands that are called
+ * in a session reuse pooled interpreters
+ *
+ * @author dmytro.pishchukhin
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    private final String[] args = new String[]{"a", "b", "c"};
+
+    @Param({"false", "true"})
+    public boolean recorder;
+
+    private BenchmarkCommandProvider provider;
+    private EquinoxGogoAdapter generatedAdapter;
+    private int countIndex;
+    private DispatcherEquinoxGogoAdapter dispatcherAdapter;
+    private CommandSession session;
+
+    @Setup
+    public void setUp() throws Exception {
+        provider = new BenchmarkCommandProvider();
+
+        JavassistAdapterBackend javassistBackend = new JavassistAdapterBackend(null);
+        ShellInfo shellInfo = javassistBackend.createShellInfo(provider);
+        generatedAdapter = javassistBackend.createAdapter(shellInfo, provider);
+        if (recorder) {
+            generatedAdapter.setFlightRecorder(new FlightRecorder(256, 1000, null));
+        }
+        countIndex = Arrays.binarySearch(shellInfo.getCommands(), "count");
+
+        DispatcherAdapterBackend dispatcherBackend = new DispatcherAdapterBackend();
+        dispatcherAdapter = (DispatcherEquinoxGogoAdapter) dispatcherBackend.createAdapter(
+                dispatcherBackend.createShellInfo(provider), provider);
+
+        final Map<String, Object> variables = new HashMap<String, Object>();
+        final PrintStream console = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        session = (CommandSession) Proxy.newProxyInstance(CommandSession.class.getClassLoader(), new Class[]{CommandSession.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getConsole")) {
+                            return console;
+                        }
+                        if (method.getName().equals("get")) {
+                            return variables.get(args[0]);
+                        }
+                        if (method.getName().equals("put")) {
+                            variables.put((String) args[0], args[1]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Benchmark
+    public int direct() {
+        return provider._count(new EquinoxGogoAdapter.CommandInterpreterImpl(null, args));
+    }
+
+    @Benchmark
+    public Object generated() {
+        return generatedAdapter.runCommandWithResult(null, args, "count", countIndex);
+    }
+
+    @Benchmark
+    public Object generatedInSession() {
+        return generatedAdapter.runCommandWithResult(session, args, "count", countIndex);
+    }
+
+    @Benchmark
+    public Object dispatcher() {
+        return dispatcherAdapter._main(null, "count", args);
+    }
+}
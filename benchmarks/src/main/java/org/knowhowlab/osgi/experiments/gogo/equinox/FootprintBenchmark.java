@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+
+/**
+ * Retained memory of adapters of both backends. Every iteration creates adapters for new CommandProvider
+ * classes and keeps them, retained heap, metaspace and loaded classes per adapter are reported as
+ * secondary results. Run with <code>-prof gc</code> to compare allocated bytes as well.
+ * Measured time includes forced garbage collections and is not meaningful
+ *
+ * @author dmytro.pishchukhin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FootprintBenchmark {
+    /**
+     * Number of CommandProvider classes per iteration
+     */
+    private static final int PROVIDERS = 100;
+
+    @Param({"1", "20", "200"})
+    public int commands;
+
+    @Param({JavassistAdapterBackend.NAME, DispatcherAdapterBackend.NAME})
+    public String backend;
+
+    private File directory;
+    private CommandProvider[] providers;
+    private AdapterBackend adapterBackend;
+    /**
+     * Adapters of the last iteration, kept until the next iteration
+     */
+    private Object[] adapters;
+
+    /**
+     * Retained resources per adapter
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public double heapBytes;
+        public double metaspaceBytes;
+        public double classes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = CommandProviders.generate("Footprint" + commands, commands, CommandProviders.createHelp(commands));
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws Exception {
+        adapters = null;
+        // every provider has own class, like providers of different bundles
+        providers = new CommandProvider[PROVIDERS];
+        for (int i = 0; i < PROVIDERS; i++) {
+            providers[i] = CommandProviders.load(directory, "Footprint" + commands);
+        }
+        if (DispatcherAdapterBackend.NAME.equals(backend)) {
+            adapterBackend = new DispatcherAdapterBackend();
+        } else {
+            adapterBackend = new JavassistAdapterBackend(null);
+        }
+    }
+
+    @Benchmark
+    public Object createAdapters(Footprint footprint) throws Exception {
+        long[] before = measure();
+        Object[] created = new Object[PROVIDERS];
+        for (int i = 0; i < PROVIDERS; i++) {
+            created[i] = adapterBackend.createAdapter(adapterBackend.createShellInfo(providers[i]), providers[i]);
+        }
+        long[] after = measure();
+        footprint.heapBytes = (double) (after[0] - before[0]) / PROVIDERS;
+        footprint.metaspaceBytes = (double) (after[1] - before[1]) / PROVIDERS;
+        footprint.classes = (double) (after[2] - before[2]) / PROVIDERS;
+        adapters = created;
+        return adapters;
+    }
+
+    /**
+     * Measure used memory after garbage collection
+     *
+     * @return used heap, used metaspace and loaded classes
+     */
+    private static long[] measure() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        long metaspace = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName()) || pool.getName().endsWith("Perm Gen")) {
+                metaspace = pool.getUsage().getUsed();
+            }
+        }
+        return new long[]{ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), metaspace,
+                ManagementFactory.getClassLoadingMXBean().getLoadedClassCount()};
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommandProvider help parsing. Real Equinox 3.6 help texts and generated help with given number of commands
+ * are parsed. Usages are looked up for all commands, like adapter generation does
+ *
+ * @author dmytro.pishchukhin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseHelpBenchmark {
+    @Param({"framework-help.txt", "eclipse-help.txt", "20", "200", "5000"})
+    public String source;
+
+    private String help;
+    private String[] commands;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (source.endsWith(".txt")) {
+            help = read(source);
+        } else {
+            help = CommandProviders.createHelp(Integer.parseInt(source));
+        }
+        // command names are collected once, so they are not part of measurement
+        List<String> names = new ArrayList<String>();
+        for (String line : help.split("\n")) {
+            if (line.startsWith("\t")) {
+                names.add(line.trim().split("\\s")[0]);
+            }
+        }
+        commands = names.toArray(new String[names.size()]);
+    }
+
+    @Benchmark
+    public HelpIndex parseHelp() {
+        return HelpIndex.parse(help);
+    }
+
+    @Benchmark
+    public int parseHelpAndUsages() {
+        HelpIndex index = HelpIndex.parse(help);
+        int length = 0;
+        for (String command : commands) {
+            length += index.getUsage(command).length();
+        }
+        return length;
+    }
+
+    private String read(String name) throws IOException {
+        InputStream in = ParseHelpBenchmark.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Help resource is not found: " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.Bundle;
+
+import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Printing of multi-megabyte bundle resources: streaming <code>printBundleResource</code>
+ * versus chunked decoding to strings that was used before
+ *
+ * @author dmytro.pishchukhin
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrintBundleResourceBenchmark {
+    private static final String RESOURCE = "META-INF/MANIFEST.MF";
+
+    @Param({"1", "8"})
+    public int megabytes;
+
+    private File file;
+    private Bundle bundle;
+    private CommandSession session;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = File.createTempFile("resource", ".txt");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            byte[] line = "Import-Package: org.osgi.framework;version=\"1.5\",org.osgi.util.tracker\n".getBytes("UTF-8");
+            for (long written = 0; written < megabytes * 1024L * 1024L; written += line.length) {
+                out.write(line);
+            }
+        } finally {
+            out.close();
+        }
+        final URL url = file.toURI().toURL();
+        bundle = (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(), new Class[]{Bundle.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getEntry")) {
+                            return url;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        final PrintStream console = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        session = (CommandSession) Proxy.newProxyInstance(CommandSession.class.getClassLoader(), new Class[]{CommandSession.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getConsole")) {
+                            return console;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public void streaming() {
+        EquinoxGogoAdapter.CommandInterpreterImpl interpreter = new EquinoxGogoAdapter.CommandInterpreterImpl(session, new String[0]);
+        interpreter.printBundleResource(bundle, RESOURCE);
+        interpreter.close();
+    }
+
+    @Benchmark
+    public void chunkedStrings() throws IOException {
+        EquinoxGogoAdapter.CommandInterpreterImpl interpreter = new EquinoxGogoAdapter.CommandInterpreterImpl(session, new String[0]);
+        interpreter.println(RESOURCE);
+        InputStream in = bundle.getEntry(RESOURCE).openStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                interpreter.print(new String(buffer, 0, read));
+            }
+        } finally {
+            in.close();
+        }
+        interpreter.close();
+    }
+}
@@ -17,15 +17,28 @@
 package org.knowhowlab.osgi.experiments.gogo.equinox;
 
 import org.apache.felix.service.command.CommandProcessor;
+import org.apache.felix.service.command.CommandSession;
 import org.eclipse.osgi.framework.console.CommandProvider;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.CommandBatches;
+import org.knowhowlab.osgi.experiments.gogo.equinox.completion.CommandCompletions;
+import org.knowhowlab.osgi.experiments.gogo.equinox.stats.CommandStatistics;
 import org.osgi.framework.*;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +55,185 @@ public class Activator implements BundleActivator {
      */
     private static final Logger LOG = Logger.getLogger(Activator.class.getName());
 
+    /**
+     * Framework property: max number of adapters in bytecode cache, <code>0</code> disables cache
+     */
+    public static final String CACHE_SIZE_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.cache.size";
+    /**
+     * Framework property: generate and register adapters asynchronously
+     */
+    public static final String ASYNC_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.async";
+    /**
+     * Framework property: number of threads that generate adapters in asynchronous mode
+     */
+    public static final String ASYNC_THREADS_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.async.threads";
+    /**
+     * Framework property: register command stubs and generate adapters on the first command call.
+     * Only in this mode CommandProvider services are not activated until their commands are called,
+     * eager mode activates every CommandProvider service to generate adapter with its help
+     */
+    public static final String LAZY_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.lazy";
+    /**
+     * Framework property: register one GoGo service that dispatches commands of all CommandProvider services
+     */
+    public static final String AGGREGATE_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.aggregate";
+    /**
+     * Framework property: adapters backend, <code>javassist</code> (default) or <code>dispatcher</code>
+     */
+    public static final String BACKEND_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.backend";
+    /**
+     * Framework property: collect execution statistics of adapted commands
+     */
+    public static final String STATS_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.stats";
+    /**
+     * Framework property: console output buffer size of adapted commands in characters, <code>0</code> disables buffering.
+     * Output is not buffered by default
+     */
+    public static final String OUTPUT_BUFFER_SIZE_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.output.buffer.size";
+    /**
+     * Framework property: max time in milliseconds between console output flushes of long-running commands.
+     * Buffered output is flushed by a scheduler thread, also while command is blocked
+     */
+    public static final String OUTPUT_FLUSH_INTERVAL_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.output.flush.interval";
+    /**
+     * Framework property: comma-separated names of commands with unbuffered console output
+     */
+    public static final String OUTPUT_UNBUFFERED_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.output.unbuffered";
+    /**
+     * Framework property: capacity in characters of bounded output channel between command and console,
+     * <code>0</code> writes output to console directly
+     */
+    public static final String OUTPUT_CHANNEL_CAPACITY_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.output.channel.capacity";
+    /**
+     * Framework property: behavior of full output channel - <code>block</code>, <code>drop</code> or <code>truncate</code>
+     */
+    public static final String OUTPUT_OVERFLOW_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.output.overflow";
+    /**
+     * Framework property: max output size of command in characters, <code>0</code> for unlimited output
+     */
+    public static final String OUTPUT_LIMIT_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.output.limit";
+    /**
+     * Framework property: max number of threads that write output channels to consoles
+     */
+    public static final String OUTPUT_CHANNEL_THREADS_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.output.channel.threads";
+    /**
+     * Framework property: max time in milliseconds that command waits for console, the rest of output is dropped
+     */
+    public static final String OUTPUT_CHANNEL_TIMEOUT_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.output.channel.timeout";
+    /**
+     * Framework property: comma-separated names of read-only commands with cached results
+     */
+    public static final String RESULT_CACHE_COMMANDS_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.result.cache.commands";
+    /**
+     * Framework property: max number of cached results of read-only commands
+     */
+    public static final String RESULT_CACHE_SIZE_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.result.cache.size";
+    /**
+     * Framework property: commands execution mode, <code>session</code> (default) to execute commands
+     * in GoGo session thread, <code>pool</code> to execute commands in threads pool or <code>virtual</code>
+     * to execute commands in virtual threads if runtime supports them
+     */
+    public static final String EXECUTION_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.execution";
+    /**
+     * Framework property: max number of commands executor threads
+     */
+    public static final String EXECUTION_THREADS_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.execution.threads";
+    /**
+     * Framework property: max number of commands that wait for executor thread
+     */
+    public static final String EXECUTION_QUEUE_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.execution.queue";
+    /**
+     * Framework property: default commands timeout in milliseconds, <code>0</code> for no timeout
+     */
+    public static final String EXECUTION_TIMEOUT_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.execution.timeout";
+    /**
+     * Framework property: comma-separated commands timeouts in milliseconds, e.g. <code>diag=30000,ss=5000</code>
+     */
+    public static final String EXECUTION_TIMEOUTS_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.execution.timeouts";
+    /**
+     * Framework property: concurrency policy of CommandProvider services that are not configured explicitly,
+     * one of <code>concurrent</code> (default), <code>serialized</code>, <code>striped[:stripes]</code> or
+     * <code>semaphore:permits</code>
+     */
+    public static final String CONCURRENCY_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.concurrency";
+    /**
+     * Framework property: comma-separated concurrency policies by CommandProvider class name or bundle
+     * symbolic name, e.g. <code>org.eclipse.osgi=serialized,com.acme.LegacyCommands=semaphore:2</code>
+     */
+    public static final String CONCURRENCY_PROVIDERS_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.concurrency.providers";
+    /**
+     * Framework property: number of invocations kept by flight recorder, <code>0</code> to disable recorder
+     */
+    public static final String RECORDER_SIZE_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.recorder.size";
+    /**
+     * Framework property: slow invocation threshold of flight recorder in milliseconds
+     */
+    public static final String RECORDER_THRESHOLD_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.recorder.threshold";
+    /**
+     * Framework property: loopback port of batch endpoint, <code>0</code> to disable endpoint.
+     * Endpoint runs any adapted command, including <code>exec</code>, <code>install</code> or <code>exit</code>,
+     * as the framework user. Clients must send the shared secret from {@link #BATCH_SECRET_FILE} file
+     * in bundle data area, so the endpoint is as safe as that file permissions
+     */
+    public static final String BATCH_PORT_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.batch.port";
+    /**
+     * Framework property: max number of parallel batch commands, <code>0</code> to run batch commands in order
+     */
+    public static final String BATCH_THREADS_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.batch.threads";
+    /**
+     * Framework property: max number of open batch endpoint connections, every connection has own thread
+     */
+    public static final String BATCH_CONNECTIONS_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.batch.connections";
+    /**
+     * Framework property: seconds to send the shared secret to batch endpoint, connection is closed after that
+     */
+    public static final String BATCH_AUTH_TIMEOUT_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.batch.auth.timeout";
+    /**
+     * Framework property: seconds without reads and writes after that batch endpoint connection is closed,
+     * <code>0</code> for no timeout
+     */
+    public static final String BATCH_IDLE_TIMEOUT_PROPERTY = "org.knowhowlab.osgi.experiments.gogo.equinox.batch.idle.timeout";
+    /**
+     * Batch endpoint shared secret file in bundle data area, readable only by the framework user
+     */
+    public static final String BATCH_SECRET_FILE = "batch.secret";
+    /**
+     * Default max number of commands executor threads
+     */
+    private static final int DEFAULT_EXECUTION_THREADS = 8;
+    /**
+     * Default max number of commands that wait for executor thread
+     */
+    private static final int DEFAULT_EXECUTION_QUEUE = 64;
+    /**
+     * Default max number of cached results of read-only commands
+     */
+    private static final int DEFAULT_RESULT_CACHE_SIZE = 128;
+    /**
+     * Default number of invocations kept by flight recorder
+     */
+    private static final int DEFAULT_RECORDER_SIZE = 256;
+    /**
+     * Default max number of open batch endpoint connections
+     */
+    private static final int DEFAULT_BATCH_CONNECTIONS = 16;
+    /**
+     * Default slow invocation threshold of flight recorder in milliseconds
+     */
+    private static final int DEFAULT_RECORDER_THRESHOLD = 1000;
+    /**
+     * Default max number of adapters in bytecode cache
+     */
+    private static final int DEFAULT_CACHE_SIZE = 256;
+    /**
+     * Bytecode cache directory in bundle data area
+     */
+    private static final String CACHE_DIRECTORY = "adapters";
+    /**
+     * Flight recorder dumps directory in bundle data area
+     */
+    private static final String RECORDER_DIRECTORY = "recorder";
+
     /**
      * Bundle context
      */
@@ -50,64 +242,1192 @@ public class Activator implements BundleActivator {
      * Service tracker to track CommandProvider
      */
     private ServiceTracker tracker;
+    /**
+     * Generated adapters cache
+     */
+    private ShellInfoCache cache;
+    /**
+     * Listener that evicts adapters of uninstalled bundles
+     */
+    private BundleListener bundleListener;
+    /**
+     * Adapters generator in asynchronous mode, <code>null</code> in synchronous mode
+     */
+    private ExecutorService executor;
+    /**
+     * Lazy mode: register stubs and generate adapters on the first command call
+     */
+    private boolean lazy;
+    /**
+     * Results cache of read-only commands or <code>null</code> if there are no read-only commands
+     */
+    private ResultCache resultCache;
+    /**
+     * Executor of commands or <code>null</code> if commands are executed in session thread
+     */
+    private CommandExecutor commandExecutor;
+    /**
+     * Concurrency policies of providers or <code>null</code> if all providers are fully concurrent
+     */
+    private ConcurrencyPolicies concurrencyPolicies;
+    /**
+     * Dispatcher of all commands in aggregated mode or <code>null</code>
+     */
+    private AggregateDispatcher aggregate;
+    /**
+     * Flight recorder of invocations or <code>null</code> if recorder is disabled
+     */
+    private FlightRecorder flightRecorder;
+    /**
+     * Bounded output channels or <code>null</code> if output is written to console directly
+     */
+    private OutputChannels outputChannels;
+    /**
+     * Console output settings of adapted commands
+     */
+    private OutputSettings outputSettings;
+    /**
+     * Completion index of adapted commands
+     */
+    private CompletionIndex completions;
+    /**
+     * GoGo commands of this bundle
+     */
+    private ServiceRegistration commandsRegistration;
+    /**
+     * Completion index service
+     */
+    private ServiceRegistration completionsRegistration;
+    /**
+     * Batch executor of adapted commands
+     */
+    private BatchExecutor batchExecutor;
+    /**
+     * Batch executor registration
+     */
+    private ServiceRegistration batchRegistration;
+    /**
+     * Batch endpoint or <code>null</code> if endpoint is disabled
+     */
+    private BatchServer batchServer;
+    /**
+     * Commands execution statistics service
+     */
+    private ServiceRegistration statisticsRegistration;
     /**
      * Maps CommandProvider services and GoGo services
      */
-    private Map<ServiceReference, ServiceRegistration> registrations = new HashMap<ServiceReference, ServiceRegistration>();
+    private final Map<ServiceReference, AdapterRegistration> registrations = new ConcurrentHashMap<ServiceReference, AdapterRegistration>();
+    /**
+     * Number of CommandProvider services that are not adapted yet
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+    /**
+     * Lock to wait for adaptation of all known CommandProvider services
+     */
+    private final Object readyLock = new Object();
 
     public void start(BundleContext context) throws Exception {
         bc = context;
+        // init bytecode cache
+        int cacheSize = getIntProperty(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE);
+        File cacheDirectory = bc.getDataFile(CACHE_DIRECTORY);
+        BytecodeCache bytecodeCache = null;
+        if (cacheSize > 0 && cacheDirectory != null) {
+            bytecodeCache = new BytecodeCache(cacheDirectory, cacheSize);
+        }
+        CommandStatisticsImpl statistics = new CommandStatisticsImpl(Boolean.valueOf(bc.getProperty(STATS_PROPERTY)));
+        Set<String> readOnlyCommands = getSetProperty(RESULT_CACHE_COMMANDS_PROPERTY);
+        if (!readOnlyCommands.isEmpty()) {
+            resultCache = new ResultCache(readOnlyCommands, getIntProperty(RESULT_CACHE_SIZE_PROPERTY, DEFAULT_RESULT_CACHE_SIZE),
+                    bc.getBundle());
+            bc.addBundleListener(resultCache);
+            bc.addServiceListener(resultCache);
+            bc.addFrameworkListener(resultCache);
+        }
+        commandExecutor = createCommandExecutor();
+        AdapterContext adapterContext = new AdapterContext();
+        adapterContext.setStatistics(statistics);
+        outputSettings = createOutputSettings();
+        adapterContext.setOutputSettings(outputSettings);
+        outputChannels = createOutputChannels();
+        adapterContext.setOutputChannels(outputChannels);
+        adapterContext.setResultCache(resultCache);
+        adapterContext.setCommandExecutor(commandExecutor);
+        concurrencyPolicies = createConcurrencyPolicies();
+        adapterContext.setConcurrencyPolicies(concurrencyPolicies);
+        int recorderSize = getIntProperty(RECORDER_SIZE_PROPERTY, DEFAULT_RECORDER_SIZE);
+        if (recorderSize > 0) {
+            flightRecorder = new FlightRecorder(recorderSize,
+                    getIntProperty(RECORDER_THRESHOLD_PROPERTY, DEFAULT_RECORDER_THRESHOLD), bc.getDataFile(RECORDER_DIRECTORY));
+            flightRecorder.start();
+            adapterContext.setFlightRecorder(flightRecorder);
+        }
+        cache = new ShellInfoCache(createBackend(bytecodeCache), adapterContext);
+        bundleListener = new BundleListener() {
+            public void bundleChanged(BundleEvent event) {
+                if (event.getType() == BundleEvent.UNINSTALLED) {
+                    cache.evict(event.getBundle());
+                }
+            }
+        };
+        bc.addBundleListener(bundleListener);
+        lazy = Boolean.valueOf(bc.getProperty(LAZY_PROPERTY));
+        if (Boolean.valueOf(bc.getProperty(AGGREGATE_PROPERTY))) {
+            aggregate = new AggregateDispatcher(bc, Utils.DEFAULT_SCOPE);
+        }
+        // init adapters generator
+        if (Boolean.valueOf(bc.getProperty(ASYNC_PROPERTY))) {
+            int threads = getIntProperty(ASYNC_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+            executor = createExecutor(Math.max(1, threads));
+        }
+        // register own commands
+        statisticsRegistration = bc.registerService(CommandStatistics.class.getName(), statistics, null);
+        completions = new CompletionIndex();
+        completionsRegistration = bc.registerService(CommandCompletions.class.getName(), completions, null);
+        batchExecutor = new BatchExecutor(new BatchExecutor.Dispatcher() {
+            public Object dispatch(CommandSession commandSession, String command, String[] args) {
+                return Activator.this.dispatch(commandSession, command, args);
+            }
+        }, getIntProperty(BATCH_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+        batchRegistration = bc.registerService(CommandBatches.class.getName(), batchExecutor, null);
+        int batchPort = getIntProperty(BATCH_PORT_PROPERTY, 0);
+        File secretFile = bc.getDataFile(BATCH_SECRET_FILE);
+        if (batchPort > 0 && secretFile == null) {
+            LOG.log(Level.WARNING, "Batch endpoint is disabled: bundle data area is not available for its secret");
+        } else if (batchPort > 0) {
+            try {
+                int authTimeout = getIntProperty(BATCH_AUTH_TIMEOUT_PROPERTY, 0);
+                batchServer = new BatchServer(batchExecutor, batchPort,
+                        getIntProperty(BATCH_CONNECTIONS_PROPERTY, DEFAULT_BATCH_CONNECTIONS), secretFile,
+                        authTimeout > 0 ? TimeUnit.SECONDS.toMillis(authTimeout) : BatchServer.DEFAULT_AUTH_TIMEOUT,
+                        TimeUnit.SECONDS.toMillis(getIntProperty(BATCH_IDLE_TIMEOUT_PROPERTY,
+                                (int) TimeUnit.MILLISECONDS.toSeconds(BatchServer.DEFAULT_IDLE_TIMEOUT))));
+                batchServer.start();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to start batch endpoint on port: " + batchPort, e);
+            }
+        }
+        commandsRegistration = registerService(new EquinoxCommands(this, statistics), EquinoxCommands.SCOPE, EquinoxCommands.FUNCTIONS);
         // init and start service tracker
         tracker = new ServiceTracker(bc, CommandProvider.class.getName(), new CommandProviderTrackerCustomizer());
-        tracker.open();
+        if (aggregate != null) {
+            // register dispatcher once for all services that are already registered
+            aggregate.suspendRegistration();
+            try {
+                tracker.open();
+            } finally {
+                aggregate.resumeRegistration();
+            }
+        } else {
+            tracker.open();
+        }
     }
 
     public void stop(BundleContext context) throws Exception {
+        if (batchServer != null) {
+            batchServer.stop();
+            batchServer = null;
+        }
+        batchRegistration.unregister();
+        batchRegistration = null;
+        batchExecutor.shutdown();
+        batchExecutor = null;
+
+        if (executor != null) {
+            // generation tasks use tracker, cache and context, so they are finished before state is released
+            executor.shutdownNow();
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.log(Level.WARNING, "GoGo shell generation tasks are not finished in 5 seconds");
+            }
+            executor = null;
+        }
+
+        if (aggregate != null) {
+            // avoid registration updates for every removed service
+            aggregate.close();
+        }
         // close service tracker
         tracker.close();
         tracker = null;
 
+        commandsRegistration.unregister();
+        commandsRegistration = null;
+        statisticsRegistration.unregister();
+        statisticsRegistration = null;
+        completionsRegistration.unregister();
+        completionsRegistration = null;
+
+        bc.removeBundleListener(bundleListener);
+        bundleListener = null;
+
+        if (commandExecutor != null) {
+            commandExecutor.shutdown();
+            commandExecutor = null;
+        }
+
+        if (flightRecorder != null) {
+            flightRecorder.stop();
+            flightRecorder = null;
+        }
+
+        if (outputChannels != null) {
+            outputChannels.shutdown();
+            outputChannels = null;
+        }
+        outputSettings.shutdown();
+        outputSettings = null;
+
+        if (resultCache != null) {
+            bc.removeBundleListener(resultCache);
+            bc.removeServiceListener(resultCache);
+            bc.removeFrameworkListener(resultCache);
+            resultCache = null;
+        }
+
+        aggregate = null;
+        cache = null;
         bc = null;
     }
 
-    private class CommandProviderTrackerCustomizer implements ServiceTrackerCustomizer {
-        public Object addingService(ServiceReference reference) {
-            Object commandProvider = bc.getService(reference);
+    /**
+     * Get number of adapted CommandProvider services
+     *
+     * @return number of registered GoGo services
+     */
+    public int getAdaptedCount() {
+        int count = 0;
+        for (AdapterRegistration adapterRegistration : registrations.values()) {
+            if (adapterRegistration.isRegistered()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get number of registered stubs without generated adapters
+     *
+     * @return number of lazy GoGo services
+     */
+    public int getLazyCount() {
+        int count = 0;
+        for (AdapterRegistration adapterRegistration : registrations.values()) {
+            LazyEquinoxGogoAdapter lazyAdapter = adapterRegistration.getLazyAdapter();
+            if (lazyAdapter != null && !lazyAdapter.isMaterialized()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get number of registered stubs that have not requested CommandProvider service yet
+     *
+     * @return number of not activated CommandProvider services
+     */
+    public int getUnactivatedCount() {
+        int count = 0;
+        for (AdapterRegistration adapterRegistration : registrations.values()) {
+            LazyEquinoxGogoAdapter lazyAdapter = adapterRegistration.getLazyAdapter();
+            if (lazyAdapter != null && !lazyAdapter.isActivated()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get results cache of read-only commands
+     *
+     * @return results cache or <code>null</code> if there are no read-only commands
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Get executor of commands
+     *
+     * @return executor of commands or <code>null</code> if commands are executed in session thread
+     */
+    public CommandExecutor getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    /**
+     * Get concurrency policies of providers
+     *
+     * @return concurrency policies or <code>null</code> if all providers are fully concurrent
+     */
+    public ConcurrencyPolicies getConcurrencyPolicies() {
+        return concurrencyPolicies;
+    }
+
+    /**
+     * Get flight recorder of invocations
+     *
+     * @return flight recorder or <code>null</code> if recorder is disabled
+     */
+    public FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    /**
+     * Get bounded output channels
+     *
+     * @return output channels or <code>null</code> if output is written to console directly
+     */
+    public OutputChannels getOutputChannels() {
+        return outputChannels;
+    }
+
+    /**
+     * Get completion index of adapted commands
+     *
+     * @return completion index
+     */
+    public CompletionIndex getCompletions() {
+        return completions;
+    }
+
+    /**
+     * Describe CommandProvider services that provide command
+     *
+     * @param command command name
+     * @return descriptions of command providers. In aggregated mode the dispatched provider is the first
+     */
+    public List<String> which(String command) {
+        AggregateDispatcher dispatcher = aggregate;
+        if (dispatcher != null) {
+            return dispatcher.which(command);
+        }
+        List<String> result = new ArrayList<String>();
+        for (AdapterRegistration adapterRegistration : registrations.values()) {
+            String[] commands = adapterRegistration.getCommands();
+            if (commands != null && Arrays.binarySearch(commands, command) >= 0) {
+                ServiceReference reference = adapterRegistration.getReference();
+                Bundle bundle = reference.getBundle();
+                result.add(String.format("%s: %s (bundle %s, service %s)", command, adapterRegistration.getProviderClass(),
+                        bundle != null ? bundle.getSymbolicName() : "unknown", reference.getProperty(Constants.SERVICE_ID)));
+            }
+        }
+        if (result.size() > 1) {
+            result.add(0, "ambiguous command, it is dispatched to one of providers:");
+        }
+        return result;
+    }
+
+    /**
+     * Get batch executor of adapted commands
+     *
+     * @return batch executor
+     */
+    public BatchExecutor getBatchExecutor() {
+        return batchExecutor;
+    }
+
+    /**
+     * Get batch endpoint
+     *
+     * @return batch endpoint or <code>null</code> if endpoint is disabled
+     */
+    public BatchServer getBatchServer() {
+        return batchServer;
+    }
+
+    /**
+     * Run adapted command without GoGo shell. Command conflicts are resolved like GoGo does:
+     * by service ranking and then by service id
+     *
+     * @param commandSession command session
+     * @param command        command name, optionally with scope
+     * @param args           command arguments
+     * @return command result or <code>null</code>
+     * @throws CommandNotFoundException command is not found
+     */
+    Object dispatch(CommandSession commandSession, String command, String[] args) {
+        int index = command.indexOf(':');
+        String scope = index >= 0 ? command.substring(0, index) : null;
+        String name = command.substring(index + 1);
+        AggregateDispatcher dispatcher = aggregate;
+        if (dispatcher != null) {
+            if ((scope == null || Utils.DEFAULT_SCOPE.equals(scope)) && dispatcher.isDispatched(name)) {
+                return dispatcher._main(commandSession, name, args);
+            }
+            throw new CommandNotFoundException(command);
+        }
+        Object target = null;
+        int commandIndex = -1;
+        ServiceReference targetReference = null;
+        for (AdapterRegistration adapterRegistration : registrations.values()) {
+            String[] commands = adapterRegistration.getCommands();
+            int i = commands != null ? Arrays.binarySearch(commands, name) : -1;
+            ServiceRegistration registration = adapterRegistration.getRegistration();
+            if (i < 0 || registration == null) {
+                continue;
+            }
+            ServiceReference gogoReference;
+            try {
+                gogoReference = registration.getReference();
+            } catch (IllegalStateException e) {
+                // adapter is unregistered concurrently
+                continue;
+            }
+            if ((scope == null || scope.equals(gogoReference.getProperty(CommandProcessor.COMMAND_SCOPE)))
+                    && (targetReference == null || gogoReference.compareTo(targetReference) > 0)) {
+                target = adapterRegistration.getInstance();
+                commandIndex = i;
+                targetReference = gogoReference;
+            }
+        }
+        if (target instanceof EquinoxGogoAdapter) {
+            return ((EquinoxGogoAdapter) target).runCommandWithResult(commandSession, args, name, commandIndex);
+        }
+        if (target instanceof LazyEquinoxGogoAdapter) {
+            return ((LazyEquinoxGogoAdapter) target)._main(commandSession, name, args);
+        }
+        throw new CommandNotFoundException(command);
+    }
+
+    /**
+     * Get number of CommandProvider services that are not adapted yet
+     *
+     * @return number of pending CommandProvider services
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Wait until all currently known CommandProvider services are adapted
+     *
+     * @param timeout timeout in milliseconds
+     * @return <code>true</code> if all known services are adapted
+     * @throws InterruptedException waiting thread is interrupted
+     */
+    public boolean awaitReady(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (readyLock) {
+            while (pending.get() > 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                readyLock.wait(wait);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get integer framework property
+     *
+     * @param name         property name
+     * @param defaultValue default value
+     * @return property value or default value if property is not set or invalid
+     */
+    private int getIntProperty(String name, int defaultValue) {
+        String value = bc.getProperty(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOG.log(Level.WARNING, String.format("Invalid value of %s: %s", name, value));
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Get comma-separated framework property
+     *
+     * @param name property name
+     * @return set of property values, empty if property is not set
+     */
+    private Set<String> getSetProperty(String name) {
+        Set<String> values = new HashSet<String>();
+        String value = bc.getProperty(name);
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (item.trim().length() > 0) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Create adapters backend that is selected by framework property
+     *
+     * @param bytecodeCache adapters bytecode cache or <code>null</code>
+     * @return adapters backend
+     */
+    private AdapterBackend createBackend(BytecodeCache bytecodeCache) {
+        String name = bc.getProperty(BACKEND_PROPERTY);
+        if (name != null) {
+            name = name.trim();
+            if (DispatcherAdapterBackend.NAME.equalsIgnoreCase(name)) {
+                return new DispatcherAdapterBackend();
+            } else if (!JavassistAdapterBackend.NAME.equalsIgnoreCase(name)) {
+                LOG.log(Level.WARNING, String.format("Unknown value of %s: %s", BACKEND_PROPERTY, name));
+            }
+        }
+        return new JavassistAdapterBackend(bytecodeCache);
+    }
+
+    /**
+     * Create executor of commands that is configured by framework properties
+     *
+     * @return executor of commands or <code>null</code> if commands are executed in session thread
+     */
+    private CommandExecutor createCommandExecutor() {
+        String mode = bc.getProperty(EXECUTION_PROPERTY);
+        if (mode == null || mode.trim().length() == 0 || "session".equalsIgnoreCase(mode.trim())) {
+            return null;
+        }
+        mode = mode.trim();
+        if (!"pool".equalsIgnoreCase(mode) && !"virtual".equalsIgnoreCase(mode)) {
+            LOG.log(Level.WARNING, String.format("Unknown value of %s: %s", EXECUTION_PROPERTY, mode));
+            return null;
+        }
+        Map<String, Long> timeouts = new HashMap<String, Long>();
+        for (String timeout : getSetProperty(EXECUTION_TIMEOUTS_PROPERTY)) {
+            int index = timeout.indexOf('=');
+            try {
+                timeouts.put(timeout.substring(0, index).trim(), Long.parseLong(timeout.substring(index + 1).trim()));
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, String.format("Invalid value of %s: %s", EXECUTION_TIMEOUTS_PROPERTY, timeout));
+            }
+        }
+        return new CommandExecutor("virtual".equalsIgnoreCase(mode),
+                Math.max(1, getIntProperty(EXECUTION_THREADS_PROPERTY, DEFAULT_EXECUTION_THREADS)),
+                Math.max(1, getIntProperty(EXECUTION_QUEUE_PROPERTY, DEFAULT_EXECUTION_QUEUE)),
+                getIntProperty(EXECUTION_TIMEOUT_PROPERTY, 0), timeouts);
+    }
+
+    /**
+     * Create concurrency policies that are configured by framework properties
+     *
+     * @return concurrency policies or <code>null</code> if all providers are fully concurrent
+     */
+    private ConcurrencyPolicies createConcurrencyPolicies() {
+        String defaultPolicy = bc.getProperty(CONCURRENCY_PROPERTY);
+        Map<String, String> policies = new HashMap<String, String>();
+        for (String policy : getSetProperty(CONCURRENCY_PROVIDERS_PROPERTY)) {
+            int index = policy.indexOf('=');
+            if (index > 0) {
+                policies.put(policy.substring(0, index).trim(), policy.substring(index + 1).trim());
+            } else {
+                LOG.log(Level.WARNING, String.format("Invalid value of %s: %s", CONCURRENCY_PROVIDERS_PROPERTY, policy));
+            }
+        }
+        if (policies.isEmpty() && (defaultPolicy == null || defaultPolicy.trim().length() == 0
+                || ConcurrencyPolicies.CONCURRENT.equalsIgnoreCase(defaultPolicy.trim()))) {
+            return null;
+        }
+        try {
+            return new ConcurrencyPolicies(defaultPolicy != null && defaultPolicy.trim().length() > 0 ? defaultPolicy : null,
+                    policies);
+        } catch (IllegalArgumentException e) {
+            LOG.log(Level.WARNING, "Concurrency policies are ignored: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Create console output settings that are configured by framework properties
+     *
+     * @return console output settings
+     */
+    private OutputSettings createOutputSettings() {
+        return new OutputSettings(getIntProperty(OUTPUT_BUFFER_SIZE_PROPERTY, 0),
+                getIntProperty(OUTPUT_FLUSH_INTERVAL_PROPERTY, 0), getSetProperty(OUTPUT_UNBUFFERED_PROPERTY));
+    }
+
+    /**
+     * Create bounded output channels that are configured by framework properties
+     *
+     * @return output channels or <code>null</code> if output is written to console directly
+     */
+    private OutputChannels createOutputChannels() {
+        int capacity = getIntProperty(OUTPUT_CHANNEL_CAPACITY_PROPERTY, 0);
+        int limit = getIntProperty(OUTPUT_LIMIT_PROPERTY, 0);
+        if (capacity <= 0 && limit <= 0) {
+            return null;
+        }
+        String overflow = bc.getProperty(OUTPUT_OVERFLOW_PROPERTY);
+        try {
+            return new OutputChannels(capacity,
+                    overflow != null && overflow.trim().length() > 0 ? overflow.trim() : OutputChannels.BLOCK, limit,
+                    getIntProperty(OUTPUT_CHANNEL_THREADS_PROPERTY, OutputChannels.DEFAULT_THREADS),
+                    getIntProperty(OUTPUT_CHANNEL_TIMEOUT_PROPERTY, (int) OutputChannels.DEFAULT_TIMEOUT));
+        } catch (IllegalArgumentException e) {
+            LOG.log(Level.WARNING, "Output channels are ignored: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Create bounded executor for adapters generation
+     *
+     * @param threads number of threads
+     * @return executor
+     */
+    private static ExecutorService createExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Equinox GoGo adapter generator " + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Generate adapter for CommandProvider service and register GoGo service
+     *
+     * @param adapterRegistration adapter registration
+     */
+    private void register(AdapterRegistration adapterRegistration) {
+        ServiceReference reference = adapterRegistration.getReference();
+        try {
+            if (lazy) {
+                // try to avoid CommandProvider service activation
+                Class<? extends CommandProvider> providerClass = Utils.loadProviderClass(reference);
+                if (providerClass != null) {
+                    registerLazy(adapterRegistration, providerClass,
+                            new LazyEquinoxGogoAdapter(bc, reference, Utils.getCommandNames(providerClass), cache));
+                    return;
+                }
+            }
+            // eager mode and unresolved provider class: service is activated to generate adapter
+            CommandProvider commandProvider = adapterRegistration.getService(bc);
+            if (commandProvider == null) {
+                return;
+            }
+            if (lazy) {
+                registerLazy(adapterRegistration, commandProvider.getClass(),
+                        new LazyEquinoxGogoAdapter(commandProvider, Utils.getCommandNames(commandProvider.getClass()), cache));
+                return;
+            }
             // create GoGo service based on CommandProvider service
-            ShellInfo shellInfo = Utils.createGogoService((CommandProvider) commandProvider);
+            ShellInfo shellInfo = adapterRegistration.isRemoved() ? null : cache.acquire(commandProvider);
             if (shellInfo != null) {
+                EquinoxGogoAdapter instance = null;
                 try {
                     // create an instance of GoGo service
-                    Object instance = shellInfo.getShellClass().getConstructor(CommandProvider.class).newInstance(commandProvider);
-                    // set service properties: scope and list of available commands
-                    Dictionary<String, Object> props = new Hashtable<String, Object>();
-                    props.put(CommandProcessor.COMMAND_SCOPE, shellInfo.getScope());
-                    props.put(CommandProcessor.COMMAND_FUNCTION, shellInfo.getCommands());
-                    // register service
-                    ServiceRegistration registration = bc.registerService(instance.getClass().getName(), instance, props);
-                    registrations.put(reference, registration);
+                    instance = cache.newInstance(shellInfo, commandProvider);
+                    String help = commandProvider.getHelp();
+                    synchronized (adapterRegistration.getUpdateLock()) {
+                        // CommandProvider service was removed during generation
+                        if (adapterRegistration.isRemoved()) {
+                            cache.release(shellInfo, instance);
+                            return;
+                        }
+                        adapterRegistration.setCommands(commandProvider.getClass().getName(), shellInfo.getCommands());
+                        adapterRegistration.setHelp(help);
+                        if (aggregate != null) {
+                            aggregate.add(reference, commandProvider.getClass(), shellInfo, instance);
+                            adapterRegistration.setAggregated(shellInfo, instance);
+                        } else {
+                            // register service
+                            ServiceRegistration registration = registerService(instance, reference, shellInfo.getScope(), shellInfo.getCommands());
+                            adapterRegistration.setRegistration(registration, shellInfo, instance);
+                        }
+                        index(adapterRegistration, shellInfo.getScope());
+                    }
 
                     LOG.log(Level.INFO, String.format("GoGo shell for class: %s registered", commandProvider.getClass()));
                 } catch (Exception e) {
+                    if (instance != null) {
+                        cache.release(shellInfo, instance);
+                    } else {
+                        cache.release(shellInfo);
+                    }
                     LOG.log(Level.WARNING, "Unable to register GoGo shell for class: " + commandProvider.getClass(), e);
                 }
             }
-            return commandProvider;
+        } finally {
+            adapted();
+        }
+    }
+
+    /**
+     * Register GoGo service stub for CommandProvider service. Adapter is generated on the first command call
+     *
+     * @param adapterRegistration adapter registration
+     * @param providerClass       CommandProvider class
+     * @param lazyAdapter         GoGo service stub
+     */
+    private void registerLazy(final AdapterRegistration adapterRegistration, Class<?> providerClass,
+                              LazyEquinoxGogoAdapter lazyAdapter) {
+        try {
+            synchronized (adapterRegistration.getUpdateLock()) {
+                if (adapterRegistration.isRemoved()) {
+                    return;
+                }
+                adapterRegistration.setCommands(providerClass.getName(), lazyAdapter.getCommands());
+                if (aggregate != null) {
+                    aggregate.add(adapterRegistration.getReference(), providerClass, lazyAdapter);
+                    adapterRegistration.setAggregated(null, lazyAdapter);
+                } else {
+                    lazyAdapter.setListener(new LazyEquinoxGogoAdapter.Listener() {
+                        public void materialized(LazyEquinoxGogoAdapter lazyAdapter, EquinoxGogoAdapter adapter,
+                                                 ShellInfo shellInfo) {
+                            replaceLazy(adapterRegistration, lazyAdapter, adapter, shellInfo);
+                        }
+                    });
+                    ServiceRegistration registration = registerService(lazyAdapter, adapterRegistration.getReference(),
+                            Utils.DEFAULT_SCOPE, lazyAdapter.getCommands());
+                    adapterRegistration.setRegistration(registration, null, lazyAdapter);
+                }
+                adapterRegistration.setLazyAdapter(lazyAdapter);
+                index(adapterRegistration, Utils.DEFAULT_SCOPE);
+            }
+            LOG.log(Level.INFO, String.format("Lazy GoGo shell for class: %s registered", providerClass));
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Unable to register GoGo shell for class: " + providerClass, e);
+        }
+    }
+
+    /**
+     * Replace registered GoGo service stub with generated adapter, so GoGo help shows commands descriptions.
+     * Generated adapter is still owned by stub
+     *
+     * @param adapterRegistration adapter registration
+     * @param lazyAdapter         GoGo service stub
+     * @param instance            generated adapter
+     * @param shellInfo           generated adapter info
+     */
+    private void replaceLazy(AdapterRegistration adapterRegistration, LazyEquinoxGogoAdapter lazyAdapter,
+                             EquinoxGogoAdapter instance, ShellInfo shellInfo) {
+        try {
+            synchronized (adapterRegistration.getUpdateLock()) {
+                if (adapterRegistration.isRemoved() || adapterRegistration.getInstance() != lazyAdapter) {
+                    return;
+                }
+                // GoGo removes commands by name, so stub is unregistered first
+                adapterRegistration.getRegistration().unregister();
+                adapterRegistration.setCommands(adapterRegistration.getProviderClass(), shellInfo.getCommands());
+                adapterRegistration.setRegistration(registerService(instance, adapterRegistration.getReference(),
+                        shellInfo.getScope(), shellInfo.getCommands()), shellInfo, instance);
+                index(adapterRegistration, shellInfo.getScope());
+            }
+            LOG.log(Level.INFO, String.format("GoGo shell for service: %s replaced stub", adapterRegistration.getReference()));
+        } catch (IllegalStateException e) {
+            // bundle is stopping
+            LOG.log(Level.WARNING, "Unable to replace GoGo shell stub for service: " + adapterRegistration.getReference(), e);
+        }
+    }
+
+    /**
+     * Register GoGo service
+     *
+     * @param instance GoGo service instance
+     * @param scope    commands scope
+     * @param commands command names
+     * @return service registration
+     */
+    private ServiceRegistration registerService(Object instance, String scope, String[] commands) {
+        return registerService(instance, null, scope, commands);
+    }
+
+    /**
+     * Register GoGo service of CommandProvider service
+     *
+     * @param instance  GoGo service instance
+     * @param reference CommandProvider service reference or <code>null</code>
+     * @param scope     default commands scope
+     * @param commands  command names
+     * @return service registration
+     */
+    private ServiceRegistration registerService(Object instance, ServiceReference reference, String scope, String[] commands) {
+        return bc.registerService(instance.getClass().getName(), instance, createProperties(reference, scope, commands));
+    }
+
+    /**
+     * Create GoGo service properties: scope, list of available commands and ranking of CommandProvider service.
+     * CommandProvider service could define own scope with <code>osgi.command.scope</code> property
+     *
+     * @param reference CommandProvider service reference or <code>null</code>
+     * @param scope     default commands scope
+     * @param commands  command names
+     * @return service properties
+     */
+    private static Dictionary<String, Object> createProperties(ServiceReference reference, String scope, String[] commands) {
+        Dictionary<String, Object> props = new Hashtable<String, Object>();
+        props.put(CommandProcessor.COMMAND_SCOPE, getScope(reference, scope));
+        props.put(CommandProcessor.COMMAND_FUNCTION, commands);
+        Object ranking = reference != null ? reference.getProperty(Constants.SERVICE_RANKING) : null;
+        if (ranking instanceof Integer) {
+            props.put(Constants.SERVICE_RANKING, ranking);
+        }
+        return props;
+    }
+
+    /**
+     * Get commands scope of CommandProvider service
+     *
+     * @param reference CommandProvider service reference or <code>null</code>
+     * @param scope     default commands scope
+     * @return scope from <code>osgi.command.scope</code> property of CommandProvider service or default scope
+     */
+    private static String getScope(ServiceReference reference, String scope) {
+        Object providerScope = reference != null ? reference.getProperty(CommandProcessor.COMMAND_SCOPE) : null;
+        if (providerScope instanceof String && ((String) providerScope).trim().length() > 0) {
+            return ((String) providerScope).trim();
+        }
+        return scope;
+    }
+
+    /**
+     * Add commands of CommandProvider service to completion index. Aggregate dispatcher registers
+     * all commands with default scope
+     *
+     * @param adapterRegistration adapter registration
+     * @param scope               default commands scope
+     */
+    private void index(AdapterRegistration adapterRegistration, String scope) {
+        ServiceReference reference = adapterRegistration.getReference();
+        completions.add(reference, aggregate != null ? Utils.DEFAULT_SCOPE : getScope(reference, scope),
+                adapterRegistration.getCommands(), HelpIndex.parse(adapterRegistration.getHelp()));
+    }
+
+    /**
+     * Update GoGo service of modified CommandProvider service. Adapter is generated again only if
+     * CommandProvider help is changed, GoGo service is registered again only if its scope is changed,
+     * other changes update properties of the existing registration
+     *
+     * @param adapterRegistration adapter registration
+     * @return description of performed update
+     * @throws Exception unable to generate adapter
+     */
+    private String update(AdapterRegistration adapterRegistration) throws Exception {
+        ServiceReference reference = adapterRegistration.getReference();
+        synchronized (adapterRegistration.getUpdateLock()) {
+            if (adapterRegistration.isRemoved() || !adapterRegistration.isRegistered()) {
+                // pending adaptation uses current service properties
+                return "is not registered yet";
+            }
+            ShellInfo shellInfo = adapterRegistration.getShellInfo();
+            CommandProvider provider = adapterRegistration.getLazyAdapter() == null ? adapterRegistration.getService(bc) : null;
+            if (provider != null && shellInfo != null) {
+                String help = provider.getHelp();
+                String oldHelp = adapterRegistration.getHelp();
+                if (help != null ? !help.equals(oldHelp) : oldHelp != null) {
+                    adapterRegistration.setHelp(help);
+                    ShellInfo newShellInfo = cache.acquire(provider);
+                    if (newShellInfo == shellInfo) {
+                        cache.release(newShellInfo);
+                    } else if (newShellInfo != null) {
+                        Object oldInstance = adapterRegistration.getInstance();
+                        EquinoxGogoAdapter instance;
+                        try {
+                            instance = cache.newInstance(newShellInfo, provider);
+                        } catch (Exception e) {
+                            cache.release(newShellInfo);
+                            throw e;
+                        }
+                        adapterRegistration.setCommands(provider.getClass().getName(), newShellInfo.getCommands());
+                        if (aggregate != null) {
+                            aggregate.replace(reference, provider.getClass(), newShellInfo, instance);
+                            adapterRegistration.setAggregated(newShellInfo, instance);
+                        } else {
+                            // GoGo removes commands by name, so old service is unregistered first
+                            adapterRegistration.getRegistration().unregister();
+                            adapterRegistration.setRegistration(registerService(instance, reference,
+                                    newShellInfo.getScope(), newShellInfo.getCommands()), newShellInfo, instance);
+                        }
+                        index(adapterRegistration, newShellInfo.getScope());
+                        cache.release(shellInfo, (EquinoxGogoAdapter) oldInstance);
+                        return "regenerated";
+                    }
+                }
+            }
+            if (aggregate != null) {
+                return aggregate.update(reference) ? "ranking updated" : "unchanged";
+            }
+            ServiceRegistration registration = adapterRegistration.getRegistration();
+            ServiceReference gogoReference = registration.getReference();
+            Dictionary<String, Object> props = createProperties(reference, shellInfo != null ? shellInfo.getScope() : Utils.DEFAULT_SCOPE,
+                    (String[]) gogoReference.getProperty(CommandProcessor.COMMAND_FUNCTION));
+            if (!props.get(CommandProcessor.COMMAND_SCOPE).equals(gogoReference.getProperty(CommandProcessor.COMMAND_SCOPE))) {
+                // GoGo does not track changes of service properties
+                registration.unregister();
+                Object instance = adapterRegistration.getInstance();
+                adapterRegistration.setRegistration(bc.registerService(instance.getClass().getName(), instance, props),
+                        shellInfo, instance);
+                index(adapterRegistration, (String) props.get(CommandProcessor.COMMAND_SCOPE));
+                return "registered with scope " + props.get(CommandProcessor.COMMAND_SCOPE);
+            }
+            Object ranking = props.get(Constants.SERVICE_RANKING);
+            if (ranking != null ? !ranking.equals(gogoReference.getProperty(Constants.SERVICE_RANKING))
+                    : gogoReference.getProperty(Constants.SERVICE_RANKING) != null) {
+                registration.setProperties(props);
+                return "properties updated";
+            }
+            return "unchanged";
+        }
+    }
+
+    /**
+     * Mark CommandProvider service as adapted
+     */
+    private void adapted() {
+        synchronized (readyLock) {
+            if (pending.decrementAndGet() == 0) {
+                readyLock.notifyAll();
+            }
+        }
+    }
+
+    private class CommandProviderTrackerCustomizer implements ServiceTrackerCustomizer {
+        public Object addingService(ServiceReference reference) {
+            final AdapterRegistration adapterRegistration = new AdapterRegistration(reference);
+            registrations.put(reference, adapterRegistration);
+            pending.incrementAndGet();
+            if (executor == null) {
+                register(adapterRegistration);
+            } else {
+                try {
+                    adapterRegistration.setFuture(executor.submit(new Runnable() {
+                        public void run() {
+                            register(adapterRegistration);
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    adapted();
+                    LOG.log(Level.WARNING, "Unable to schedule GoGo shell generation for service: " + reference, e);
+                }
+            }
+            return adapterRegistration;
         }
 
         public void modifiedService(ServiceReference reference, Object service) {
-            // do nothing
+            AdapterRegistration adapterRegistration = registrations.get(reference);
+            if (adapterRegistration == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                String update = update(adapterRegistration);
+                LOG.log(Level.INFO, String.format("GoGo shell for service: %s %s in %.3f ms",
+                        reference, update, (System.nanoTime() - start) / 1000000.0));
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Unable to update GoGo shell for service: " + reference, e);
+            }
         }
 
         public void removedService(ServiceReference reference, Object service) {
-            ServiceRegistration registration = registrations.get(reference);
-            if (registration != null) {
+            AdapterRegistration adapterRegistration = registrations.remove(reference);
+            if (adapterRegistration != null) {
+                synchronized (adapterRegistration) {
+                    adapterRegistration.setRemoved();
+                    // cancel generation that is not started yet
+                    Future<?> future = adapterRegistration.getFuture();
+                    if (future != null && future.cancel(false)) {
+                        adapted();
+                    }
+                }
+                // wait for registration changes that are in progress
+                synchronized (adapterRegistration.getUpdateLock()) {
+                    unregister(adapterRegistration);
+                }
+            }
+        }
+
+        /**
+         * Unregister GoGo service of removed CommandProvider service
+         *
+         * @param adapterRegistration adapter registration
+         */
+        private void unregister(AdapterRegistration adapterRegistration) {
+            ServiceReference reference = adapterRegistration.getReference();
+            ServiceRegistration registration;
+            boolean registered;
+            ShellInfo shellInfo;
+            Object instance;
+            LazyEquinoxGogoAdapter lazyAdapter;
+            boolean serviceObtained;
+            synchronized (adapterRegistration) {
+                registration = adapterRegistration.getRegistration();
+                registered = adapterRegistration.isRegistered();
+                shellInfo = adapterRegistration.getShellInfo();
+                instance = adapterRegistration.getInstance();
+                lazyAdapter = adapterRegistration.getLazyAdapter();
+                serviceObtained = adapterRegistration.isServiceObtained();
+            }
+            if (registered) {
+                completions.remove(reference);
                 // unregister service
-                String className = (String) registration.getReference().getProperty(Constants.OBJECTCLASS);
-                registration.unregister();
-                Utils.clean(className);
-                LOG.log(Level.INFO, String.format("GoGo shell for class: %s unregistered", service.getClass()));
+                if (registration != null) {
+                    registration.unregister();
+                } else {
+                    AggregateDispatcher dispatcher = aggregate;
+                    if (dispatcher != null) {
+                        dispatcher.remove(reference);
+                    }
+                }
+                if (lazyAdapter != null) {
+                    lazyAdapter.release();
+                } else {
+                    cache.release(shellInfo, (EquinoxGogoAdapter) instance);
+                }
+                LOG.log(Level.INFO, String.format("GoGo shell for service: %s unregistered", reference));
+            }
+            if (serviceObtained) {
+                bc.ungetService(reference);
+            }
+        }
+    }
+
+    /**
+     * Registered GoGo service and its adapter info
+     */
+    private static class AdapterRegistration {
+        private final ServiceReference reference;
+        private boolean serviceObtained;
+        private CommandProvider provider;
+        private String help;
+        private Object instance;
+        private ServiceRegistration registration;
+        private boolean aggregated;
+        private ShellInfo shellInfo;
+        private String providerClass;
+        private String[] commands;
+        private LazyEquinoxGogoAdapter lazyAdapter;
+        private Future<?> future;
+        private volatile boolean removed;
+        /**
+         * Serializes registration changes. GoGo services are registered and unregistered under this lock,
+         * never under adapter registration monitor, because service events are delivered synchronously
+         */
+        private final Object updateLock = new Object();
+
+        private AdapterRegistration(ServiceReference reference) {
+            this.reference = reference;
+        }
+
+        public ServiceReference getReference() {
+            return reference;
+        }
+
+        public Object getUpdateLock() {
+            return updateLock;
+        }
+
+        /**
+         * Get CommandProvider service if registration is not removed
+         *
+         * @param bc bundle context
+         * @return CommandProvider service or <code>null</code>
+         */
+        public synchronized CommandProvider getService(BundleContext bc) {
+            if (removed) {
+                return null;
             }
+            if (!serviceObtained) {
+                serviceObtained = true;
+                provider = (CommandProvider) bc.getService(reference);
+            }
+            return provider;
+        }
+
+        public synchronized boolean isServiceObtained() {
+            return serviceObtained;
+        }
+
+        public synchronized ServiceRegistration getRegistration() {
+            return registration;
+        }
+
+        public synchronized ShellInfo getShellInfo() {
+            return shellInfo;
+        }
+
+        public synchronized void setRegistration(ServiceRegistration registration, ShellInfo shellInfo, Object instance) {
+            this.registration = registration;
+            this.shellInfo = shellInfo;
+            this.instance = instance;
+        }
+
+        /**
+         * Get registered GoGo service instance
+         *
+         * @return GoGo service instance or <code>null</code>
+         */
+        public synchronized Object getInstance() {
+            return instance;
+        }
+
+        public synchronized String getHelp() {
+            return help;
+        }
+
+        public synchronized void setHelp(String help) {
+            this.help = help;
+        }
+
+        /**
+         * Mark commands as dispatched by aggregate dispatcher
+         *
+         * @param shellInfo GoGo service info or <code>null</code> for lazy adapter
+         * @param instance  GoGo service instance
+         */
+        public synchronized void setAggregated(ShellInfo shellInfo, Object instance) {
+            aggregated = true;
+            this.shellInfo = shellInfo;
+            this.instance = instance;
+        }
+
+        /**
+         * Check if commands are registered with own GoGo service or aggregate dispatcher
+         *
+         * @return <code>true</code> if commands are registered
+         */
+        public synchronized boolean isRegistered() {
+            return registration != null || aggregated;
+        }
+
+        public synchronized String getProviderClass() {
+            return providerClass;
+        }
+
+        public synchronized String[] getCommands() {
+            return commands;
+        }
+
+        public synchronized void setCommands(String providerClass, String[] commands) {
+            this.providerClass = providerClass;
+            this.commands = commands;
+        }
+
+        public synchronized LazyEquinoxGogoAdapter getLazyAdapter() {
+            return lazyAdapter;
+        }
+
+        public synchronized void setLazyAdapter(LazyEquinoxGogoAdapter lazyAdapter) {
+            this.lazyAdapter = lazyAdapter;
+        }
+
+        public synchronized Future<?> getFuture() {
+            return future;
+        }
+
+        public synchronized void setFuture(Future<?> future) {
+            this.future = future;
+        }
+
+        public boolean isRemoved() {
+            return removed;
+        }
+
+        public void setRemoved() {
+            removed = true;
         }
     }
 }
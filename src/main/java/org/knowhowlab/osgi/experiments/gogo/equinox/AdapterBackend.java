@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+/**
+ * Backend that adapts Equinox CommandProvider services to GoGo services
+ *
+ * @author dmytro.pishchukhin
+ * @see JavassistAdapterBackend
+ * @see DispatcherAdapterBackend
+ */
+public interface AdapterBackend {
+    /**
+     * Create GoGo service info for CommandProvider. Info is shared by all CommandProvider
+     * services of the same class and help
+     *
+     * @param provider Equinox CommandProvider service instance
+     * @return GoGo service info or <code>null</code>
+     */
+    ShellInfo createShellInfo(CommandProvider provider);
+
+    /**
+     * Create GoGo service instance
+     *
+     * @param shellInfo GoGo service info that is created by this backend
+     * @param provider  Equinox CommandProvider service instance
+     * @return GoGo service instance
+     * @throws Exception unable to create GoGo service
+     */
+    EquinoxGogoAdapter createAdapter(ShellInfo shellInfo, CommandProvider provider) throws Exception;
+}
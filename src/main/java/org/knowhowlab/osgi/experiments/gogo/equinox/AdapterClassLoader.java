@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import java.security.ProtectionDomain;
+
+/**
+ * Class loader that defines generated GoGo adapters. It sees adapter bundle classes
+ * and classes of the CommandProvider service, so generated code can call provider directly
+ *
+ * @author dmytro.pishchukhin
+ */
+public class AdapterClassLoader extends ClassLoader {
+    /**
+     * CommandProvider class loader
+     */
+    private final ClassLoader providerClassLoader;
+
+    public AdapterClassLoader(ClassLoader providerClassLoader) {
+        super(EquinoxGogoAdapter.class.getClassLoader());
+        this.providerClassLoader = providerClassLoader;
+    }
+
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if (providerClassLoader == null) {
+            throw new ClassNotFoundException(name);
+        }
+        // parent (adapter bundle) could not load the class - try CommandProvider class loader
+        return providerClassLoader.loadClass(name);
+    }
+
+    /**
+     * Define generated class
+     *
+     * @param name     class name
+     * @param bytecode class bytecode
+     * @return defined class
+     */
+    public Class<?> defineClass(String name, byte[] bytecode) {
+        ProtectionDomain protectionDomain = EquinoxGogoAdapter.class.getProtectionDomain();
+        return defineClass(name, bytecode, 0, bytecode.length, protectionDomain);
+    }
+}
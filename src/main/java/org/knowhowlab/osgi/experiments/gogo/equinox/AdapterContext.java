@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+/**
+ * Dispatch settings and services that are shared by all GoGo adapters
+ *
+ * @author dmytro.pishchukhin
+ */
+public class AdapterContext {
+    /**
+     * Commands execution statistics or <code>null</code>
+     */
+    private CommandStatisticsImpl statistics;
+    /**
+     * Console output settings of adapters
+     */
+    private OutputSettings outputSettings = OutputSettings.DEFAULT;
+    /**
+     * Results cache of read-only commands or <code>null</code>
+     */
+    private ResultCache resultCache;
+    /**
+     * Executor of commands or <code>null</code> if commands are executed in session thread
+     */
+    private CommandExecutor commandExecutor;
+    /**
+     * Concurrency policies of providers or <code>null</code> if all providers are fully concurrent
+     */
+    private ConcurrencyPolicies concurrencyPolicies;
+    /**
+     * Flight recorder of invocations or <code>null</code>
+     */
+    private FlightRecorder flightRecorder;
+    /**
+     * Bounded output channels or <code>null</code>
+     */
+    private OutputChannels outputChannels;
+
+    public CommandStatisticsImpl getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(CommandStatisticsImpl statistics) {
+        this.statistics = statistics;
+    }
+
+    public OutputSettings getOutputSettings() {
+        return outputSettings;
+    }
+
+    public void setOutputSettings(OutputSettings outputSettings) {
+        this.outputSettings = outputSettings;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public CommandExecutor getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    public void setCommandExecutor(CommandExecutor commandExecutor) {
+        this.commandExecutor = commandExecutor;
+    }
+
+    public ConcurrencyPolicies getConcurrencyPolicies() {
+        return concurrencyPolicies;
+    }
+
+    public void setConcurrencyPolicies(ConcurrencyPolicies concurrencyPolicies) {
+        this.concurrencyPolicies = concurrencyPolicies;
+    }
+
+    public FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    public void setFlightRecorder(FlightRecorder flightRecorder) {
+        this.flightRecorder = flightRecorder;
+    }
+
+    public OutputChannels getOutputChannels() {
+        return outputChannels;
+    }
+
+    public void setOutputChannels(OutputChannels outputChannels) {
+        this.outputChannels = outputChannels;
+    }
+
+    /**
+     * Configure new adapter instance
+     *
+     * @param adapter   GoGo adapter
+     * @param shellInfo GoGo service info
+     * @param provider  Equinox CommandProvider service instance
+     */
+    public void configure(EquinoxGogoAdapter adapter, ShellInfo shellInfo, CommandProvider provider) {
+        adapter.setOutputSettings(outputSettings);
+        adapter.setResultCache(resultCache);
+        adapter.setCommandExecutor(commandExecutor);
+        adapter.setFlightRecorder(flightRecorder);
+        adapter.setOutputChannels(outputChannels);
+        if (concurrencyPolicies != null) {
+            adapter.setConcurrencyPolicy(concurrencyPolicies.create(provider, shellInfo.getCommands().length));
+        }
+        if (statistics != null) {
+            adapter.setMetrics(statistics.getMetrics(shellInfo, provider.getClass()));
+        }
+    }
+
+    /**
+     * Release resources of adapter instance that is not used anymore
+     *
+     * @param adapter GoGo adapter
+     */
+    public void release(EquinoxGogoAdapter adapter) {
+        if (statistics != null && adapter.getMetrics() != null) {
+            statistics.release(adapter.getMetrics());
+            adapter.setMetrics(null);
+        }
+    }
+}
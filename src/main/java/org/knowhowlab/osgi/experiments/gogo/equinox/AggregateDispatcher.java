@@ -0,0 +1,458 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandProcessor;
+import org.apache.felix.service.command.CommandSession;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single GoGo service that dispatches commands of all adapted CommandProvider services.
+ * GoGo calls <code>_main</code> method with command name as the first argument for every
+ * registered function. Command conflicts are resolved by service ranking and then by service id.
+ * All providers of conflicting command are also available with bundle qualified name,
+ * e.g. <code>org.eclipse.osgi.ss</code>
+ *
+ * @author dmytro.pishchukhin
+ */
+public class AggregateDispatcher {
+    /**
+     * Candidates order: higher service ranking, then lower service id
+     */
+    private static final Comparator<Candidate> RANKING = new Comparator<Candidate>() {
+        public int compare(Candidate c1, Candidate c2) {
+            if (c1.ranking != c2.ranking) {
+                return c1.ranking > c2.ranking ? -1 : 1;
+            }
+            return c1.serviceId < c2.serviceId ? -1 : (c1.serviceId == c2.serviceId ? 0 : 1);
+        }
+    };
+
+    /**
+     * Bundle context to register dispatcher service
+     */
+    private final BundleContext bc;
+    /**
+     * Commands scope
+     */
+    private final String scope;
+    /**
+     * Dispatched candidates by function name in lower case
+     */
+    private final Map<String, Candidate> index = new ConcurrentHashMap<String, Candidate>();
+    /**
+     * Ordered candidates by command name in lower case
+     */
+    private final Map<String, List<Candidate>> commands = new HashMap<String, List<Candidate>>();
+    /**
+     * Candidates by CommandProvider service reference
+     */
+    private final Map<ServiceReference, List<Candidate>> providers = new HashMap<ServiceReference, List<Candidate>>();
+    /**
+     * Dispatcher service registration or <code>null</code>
+     */
+    private ServiceRegistration registration;
+    /**
+     * Dispatcher is closed
+     */
+    private boolean closed;
+    /**
+     * Number of nested suspensions of registration updates
+     */
+    private int suspended;
+    /**
+     * Functions are changed while registration updates are suspended
+     */
+    private boolean changed;
+
+    public AggregateDispatcher(BundleContext bc, String scope) {
+        this.bc = bc;
+        this.scope = scope;
+    }
+
+    /**
+     * Add commands of generated adapter
+     *
+     * @param reference     CommandProvider service reference
+     * @param providerClass CommandProvider class
+     * @param shellInfo     GoGo service info
+     * @param adapter       generated adapter
+     */
+    public void add(ServiceReference reference, Class<?> providerClass, ShellInfo shellInfo, EquinoxGogoAdapter adapter) {
+        add(reference, providerClass, shellInfo.getCommands(), adapter);
+    }
+
+    /**
+     * Add commands of lazy adapter
+     *
+     * @param reference     CommandProvider service reference
+     * @param providerClass CommandProvider class
+     * @param lazyAdapter   lazy adapter
+     */
+    public void add(ServiceReference reference, Class<?> providerClass, LazyEquinoxGogoAdapter lazyAdapter) {
+        add(reference, providerClass, lazyAdapter.getCommands(), lazyAdapter);
+    }
+
+    /**
+     * Replace commands of regenerated adapter. Dispatcher service is registered again at most once
+     *
+     * @param reference     CommandProvider service reference
+     * @param providerClass CommandProvider class
+     * @param shellInfo     GoGo service info
+     * @param adapter       generated adapter
+     */
+    public synchronized void replace(ServiceReference reference, Class<?> providerClass, ShellInfo shellInfo,
+                                     EquinoxGogoAdapter adapter) {
+        suspendRegistration();
+        try {
+            remove(reference);
+            add(reference, providerClass, shellInfo, adapter);
+        } finally {
+            resumeRegistration();
+        }
+    }
+
+    /**
+     * Remove commands of CommandProvider service
+     *
+     * @param reference CommandProvider service reference
+     */
+    public synchronized void remove(ServiceReference reference) {
+        List<Candidate> removed = providers.remove(reference);
+        if (removed == null) {
+            return;
+        }
+        boolean changed = false;
+        for (Candidate candidate : removed) {
+            String key = toKey(candidate.command);
+            List<Candidate> candidates = commands.get(key);
+            Set<String> before = getNames(candidates);
+            candidates.remove(candidate);
+            if (candidates.isEmpty()) {
+                commands.remove(key);
+            }
+            changed |= reindex(candidates, before);
+        }
+        if (changed) {
+            updateRegistration();
+        }
+    }
+
+    /**
+     * Suspend registration updates, e.g. while initial CommandProvider services are added.
+     * Changes of functions are registered together when registration updates are resumed
+     */
+    public synchronized void suspendRegistration() {
+        suspended++;
+    }
+
+    /**
+     * Resume registration updates and register pending changes of functions
+     */
+    public synchronized void resumeRegistration() {
+        if (--suspended == 0 && changed && !closed) {
+            updateRegistration();
+        }
+    }
+
+    /**
+     * Update ranking of CommandProvider service commands
+     *
+     * @param reference CommandProvider service reference
+     * @return <code>true</code> if ranking is changed
+     */
+    public synchronized boolean update(ServiceReference reference) {
+        List<Candidate> updated = providers.get(reference);
+        int ranking = getRanking(reference);
+        if (updated == null || updated.isEmpty() || updated.get(0).ranking == ranking) {
+            return false;
+        }
+        boolean changed = false;
+        for (Candidate candidate : updated) {
+            candidate.ranking = ranking;
+            List<Candidate> candidates = commands.get(toKey(candidate.command));
+            Set<String> before = getNames(candidates);
+            Collections.sort(candidates, RANKING);
+            changed |= reindex(candidates, before);
+        }
+        if (changed) {
+            updateRegistration();
+        }
+        return true;
+    }
+
+    /**
+     * Unregister dispatcher service
+     */
+    public synchronized void close() {
+        closed = true;
+        unregister();
+        index.clear();
+        commands.clear();
+        providers.clear();
+    }
+
+    /**
+     * Run shell command. Generic GoGo entry point for all registered functions
+     *
+     * @param commandSession GoGo CommandSession
+     * @param commandName    command name
+     * @param args           command arguments
+     * @return command result or <code>null</code>
+     */
+    public Object _main(CommandSession commandSession, String commandName, String[] args) {
+        Candidate candidate = index.get(toKey(commandName));
+        if (candidate == null) {
+            EquinoxGogoAdapter.fail(commandSession, commandName, "Unknown shell command: " + commandName, null);
+            return null;
+        }
+        if (candidate.target instanceof EquinoxGogoAdapter) {
+            return ((EquinoxGogoAdapter) candidate.target).runCommandWithResult(commandSession, args,
+                    candidate.command, candidate.commandIndex);
+        }
+        return ((LazyEquinoxGogoAdapter) candidate.target)._main(commandSession, candidate.command, args);
+    }
+
+    /**
+     * Check if command is dispatched
+     *
+     * @param commandName command or function name
+     * @return <code>true</code> if command is dispatched
+     */
+    public boolean isDispatched(String commandName) {
+        return index.containsKey(toKey(commandName));
+    }
+
+    /**
+     * Describe providers of command
+     *
+     * @param command command name
+     * @return descriptions of command providers, the dispatched provider is the first
+     */
+    public synchronized List<String> which(String command) {
+        List<String> result = new ArrayList<String>();
+        List<Candidate> candidates = commands.get(toKey(command));
+        if (candidates != null) {
+            for (Candidate candidate : candidates) {
+                StringBuilder builder = new StringBuilder(candidate.toString());
+                if (candidate.names.isEmpty()) {
+                    builder.append(" - shadowed");
+                } else {
+                    builder.append(" as ").append(candidate.names);
+                }
+                result.add(builder.toString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get registered function names
+     *
+     * @return sorted function names
+     */
+    public synchronized String[] getFunctions() {
+        TreeSet<String> functions = new TreeSet<String>();
+        for (Candidate candidate : index.values()) {
+            functions.addAll(candidate.names);
+        }
+        return functions.toArray(new String[functions.size()]);
+    }
+
+    private synchronized void add(ServiceReference reference, Class<?> providerClass, String[] names, Object target) {
+        if (closed || providers.containsKey(reference)) {
+            return;
+        }
+        Bundle bundle = reference.getBundle();
+        String bundleName = bundle == null ? "unknown" : bundle.getSymbolicName() != null
+                ? bundle.getSymbolicName() : "bundle" + bundle.getBundleId();
+        Object serviceId = reference.getProperty(Constants.SERVICE_ID);
+        List<Candidate> added = new ArrayList<Candidate>(names.length);
+        boolean changed = false;
+        for (int i = 0; i < names.length; i++) {
+            Candidate candidate = new Candidate(names[i], i, target, providerClass.getName(), bundleName,
+                    getRanking(reference),
+                    serviceId instanceof Long ? (Long) serviceId : Long.MAX_VALUE);
+            added.add(candidate);
+            String key = toKey(names[i]);
+            List<Candidate> candidates = commands.get(key);
+            if (candidates == null) {
+                candidates = new ArrayList<Candidate>(1);
+                commands.put(key, candidates);
+            }
+            Set<String> before = getNames(candidates);
+            candidates.add(candidate);
+            Collections.sort(candidates, RANKING);
+            changed |= reindex(candidates, before);
+        }
+        providers.put(reference, added);
+        if (changed) {
+            updateRegistration();
+        }
+    }
+
+    /**
+     * Update functions of command candidates in index. New functions are added to index before
+     * stale functions are removed, so <code>_main</code> always finds dispatched commands.
+     * GoGo learns about changed functions only when dispatcher service is registered again
+     *
+     * @param candidates ordered candidates of command
+     * @param before     functions of command before update
+     * @return <code>true</code> if functions of command are changed
+     */
+    private boolean reindex(List<Candidate> candidates, Set<String> before) {
+        for (Candidate candidate : candidates) {
+            candidate.names.clear();
+        }
+        if (!candidates.isEmpty()) {
+            Candidate first = candidates.get(0);
+            first.names.add(first.command);
+            // conflicting command - provide bundle qualified names
+            if (candidates.size() > 1) {
+                Set<String> qualified = new HashSet<String>();
+                for (Candidate candidate : candidates) {
+                    String name = candidate.bundleName + '.' + candidate.command;
+                    if (qualified.add(toKey(name))) {
+                        candidate.names.add(name);
+                    }
+                }
+            }
+        }
+        Set<String> after = getNames(candidates);
+        for (Candidate candidate : candidates) {
+            for (String name : candidate.names) {
+                index.put(toKey(name), candidate);
+            }
+        }
+        for (String name : before) {
+            if (!after.contains(name)) {
+                index.remove(toKey(name));
+            }
+        }
+        return !before.equals(after);
+    }
+
+    private static Set<String> getNames(List<Candidate> candidates) {
+        Set<String> names = new HashSet<String>();
+        if (candidates != null) {
+            for (Candidate candidate : candidates) {
+                names.addAll(candidate.names);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Register dispatcher service with the current functions. GoGo does not track changes of
+     * service properties, so dispatcher service is registered again. GoGo removes commands by name,
+     * so old service is unregistered first: there is a short window without dispatcher commands and
+     * all functions are registered again. Use {@link #suspendRegistration()} to register a group of
+     * changes at once
+     */
+    private void updateRegistration() {
+        if (suspended > 0) {
+            changed = true;
+            return;
+        }
+        changed = false;
+        unregister();
+        String[] functions = getFunctions();
+        if (functions.length == 0) {
+            return;
+        }
+        Dictionary<String, Object> props = new Hashtable<String, Object>();
+        props.put(CommandProcessor.COMMAND_SCOPE, scope);
+        props.put(CommandProcessor.COMMAND_FUNCTION, functions);
+        try {
+            registration = bc.registerService(AggregateDispatcher.class.getName(), this, props);
+        } catch (IllegalStateException e) {
+            // bundle context is not valid anymore
+        }
+    }
+
+    private void unregister() {
+        if (registration != null) {
+            try {
+                registration.unregister();
+            } catch (IllegalStateException e) {
+                // already unregistered
+            }
+            registration = null;
+        }
+    }
+
+    private static int getRanking(ServiceReference reference) {
+        Object ranking = reference.getProperty(Constants.SERVICE_RANKING);
+        return ranking instanceof Integer ? (Integer) ranking : 0;
+    }
+
+    private static String toKey(String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Provider of command
+     */
+    private static class Candidate {
+        private final String command;
+        private final int commandIndex;
+        private final Object target;
+        private final String providerClass;
+        private final String bundleName;
+        private int ranking;
+        private final long serviceId;
+        /**
+         * Function names of candidate, empty if candidate is shadowed
+         */
+        private final List<String> names = new ArrayList<String>(2);
+
+        private Candidate(String command, int commandIndex, Object target, String providerClass, String bundleName,
+                          int ranking, long serviceId) {
+            this.command = command;
+            this.commandIndex = commandIndex;
+            this.target = target;
+            this.providerClass = providerClass;
+            this.bundleName = bundleName;
+            this.ranking = ranking;
+            this.serviceId = serviceId;
+        }
+
+        public String toString() {
+            return String.format("%s: %s (bundle %s, service %d, ranking %d)",
+                    command, providerClass, bundleName, serviceId, ranking);
+        }
+    }
+}
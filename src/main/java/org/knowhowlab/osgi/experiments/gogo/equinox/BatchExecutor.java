@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.BatchListener;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.BatchResult;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.BatchSummary;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.CommandBatch;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.CommandBatches;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process batch API of adapted commands. Parallel commands of all batches share one pool of threads.
+ *
+ * @author dmytro.pishchukhin
+ */
+public class BatchExecutor implements CommandBatches {
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(BatchExecutor.class.getName());
+
+    /**
+     * Output encoding
+     */
+    static final String ENCODING = "UTF-8";
+
+    /**
+     * Dispatcher of adapted commands
+     */
+    private final Dispatcher dispatcher;
+    /**
+     * Executor of parallel commands or <code>null</code> if all commands are run in order
+     */
+    private final ExecutorService executor;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Create batch executor
+     *
+     * @param dispatcher dispatcher of adapted commands
+     * @param threads    max number of parallel commands, <code>0</code> to run all commands in order
+     */
+    public BatchExecutor(Dispatcher dispatcher, int threads) {
+        this.dispatcher = dispatcher;
+        executor = threads > 0 ? Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Equinox GoGo batch " + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    /**
+     * Open batch
+     *
+     * @param listener listener of command results or <code>null</code>
+     * @return batch that must be closed
+     */
+    public Batch open(BatchListener listener) {
+        return new Batch(listener);
+    }
+
+    /**
+     * Run command
+     *
+     * @param commandLine command name and arguments
+     * @return command result
+     */
+    public BatchResult execute(String... commandLine) {
+        Batch batch = open(null);
+        BatchResult result = batch.run(1, commandLine);
+        batch.close();
+        return result;
+    }
+
+    /**
+     * Run commands as one batch
+     *
+     * @param commandLines command names and arguments
+     * @param parallel     run all commands in parallel
+     * @return results in order of commands
+     * @throws InterruptedException waiting thread is interrupted
+     */
+    public List<BatchResult> execute(List<String[]> commandLines, boolean parallel) throws InterruptedException {
+        Batch batch = open(null);
+        List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>(commandLines.size());
+        try {
+            for (String[] commandLine : commandLines) {
+                futures.add(batch.submit(commandLine, parallel));
+            }
+        } finally {
+            batch.close();
+        }
+        List<BatchResult> results = new ArrayList<BatchResult>(futures.size());
+        for (Future<BatchResult> future : futures) {
+            results.add(getResult(future));
+        }
+        return results;
+    }
+
+    /**
+     * Get number of closed batches
+     *
+     * @return number of batches
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Get number of executed commands
+     *
+     * @return number of commands
+     */
+    public long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * Get number of unknown and failed commands
+     *
+     * @return number of failed commands
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Stop executor of parallel commands
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Split command line into command name and arguments. Arguments with spaces could be quoted
+     * with double or single quotes
+     *
+     * @param line command line
+     * @return command name and arguments
+     */
+    public static String[] parse(CharSequence line) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder token = null;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    token.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (token != null) {
+                    tokens.add(token.toString());
+                    token = null;
+                }
+            } else {
+                if (token == null) {
+                    token = new StringBuilder();
+                }
+                if (c == '"' || c == '\'') {
+                    quote = c;
+                } else {
+                    token.append(c);
+                }
+            }
+        }
+        if (token != null) {
+            tokens.add(token.toString());
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    private static BatchResult getResult(Future<BatchResult> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // commands failures are reported by results
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Dispatcher of adapted commands
+     */
+    public interface Dispatcher {
+        /**
+         * Run adapted command
+         *
+         * @param commandSession command session
+         * @param command        command name, optionally with scope
+         * @param args           command arguments
+         * @return command result or <code>null</code>
+         * @throws CommandNotFoundException command is not found
+         */
+        Object dispatch(CommandSession commandSession, String command, String[] args);
+    }
+
+    /**
+     * Batch of commands
+     */
+    public class Batch implements CommandBatch {
+        private final BatchListener listener;
+        private final Map<String, Object> variables = Collections.synchronizedMap(new HashMap<String, Object>());
+        /**
+         * Parallel commands that are not awaited yet
+         */
+        private final List<Future<BatchResult>> pending = new ArrayList<Future<BatchResult>>();
+        private final long start = System.nanoTime();
+        private int sequence;
+        private int completed;
+        private int failed;
+        private long latency;
+        private long maxLatency;
+
+        private Batch(BatchListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Submit command
+         *
+         * @param commandLine command name and arguments
+         * @param parallel    command is independent from previous commands and could run in parallel
+         * @return command result
+         * @throws InterruptedException submitting thread is interrupted while waiting for previous commands
+         */
+        public Future<BatchResult> submit(final String[] commandLine, boolean parallel) throws InterruptedException {
+            final int seq = ++sequence;
+            FutureTask<BatchResult> task = new FutureTask<BatchResult>(new Callable<BatchResult>() {
+                public BatchResult call() throws Exception {
+                    return run(seq, commandLine);
+                }
+            });
+            if (parallel && executor != null) {
+                try {
+                    executor.execute(task);
+                    pending.add(task);
+                    return task;
+                } catch (RejectedExecutionException e) {
+                    // executor is stopped - command is run in order
+                }
+            }
+            await();
+            task.run();
+            return task;
+        }
+
+        /**
+         * Wait for all submitted commands
+         *
+         * @throws InterruptedException waiting thread is interrupted
+         */
+        public void await() throws InterruptedException {
+            for (Future<BatchResult> future : pending) {
+                getResult(future);
+            }
+            pending.clear();
+        }
+
+        /**
+         * Wait for all submitted commands and report batch
+         *
+         * @return batch summary
+         */
+        public BatchSummary close() {
+            try {
+                await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<BatchResult> future : pending) {
+                    future.cancel(true);
+                }
+                pending.clear();
+            }
+            batches.incrementAndGet();
+            synchronized (this) {
+                return new BatchSummary(completed, failed, System.nanoTime() - start, latency, maxLatency);
+            }
+        }
+
+        private BatchResult run(int seq, String[] commandLine) {
+            if (commandLine.length == 0) {
+                throw new IllegalArgumentException("Command is empty");
+            }
+            String command = commandLine[0];
+            String[] args = new String[commandLine.length - 1];
+            System.arraycopy(commandLine, 1, args, 0, args.length);
+            BatchSession session = new BatchSession(this);
+            String status = BatchResult.OK;
+            Object value = null;
+            long startTime = System.nanoTime();
+            try {
+                value = dispatcher.dispatch(session, command, args);
+                if (session.failed) {
+                    // adapters report failures to session
+                    status = BatchResult.ERROR;
+                }
+            } catch (CommandNotFoundException e) {
+                status = BatchResult.UNKNOWN;
+                session.getConsole().println(e.getMessage());
+            } catch (Throwable e) {
+                status = BatchResult.ERROR;
+                LOG.log(Level.WARNING, "Unable to execute batch command: " + command, e);
+                e.printStackTrace(session.getConsole());
+            }
+            long duration = System.nanoTime() - startTime;
+            BatchResult result = new BatchResult(seq, command, args, status, session.getOutput(), value, duration);
+            synchronized (this) {
+                completed++;
+                if (!BatchResult.OK.equals(status)) {
+                    failed++;
+                }
+                latency += duration;
+                maxLatency = Math.max(maxLatency, duration);
+            }
+            commands.incrementAndGet();
+            if (!BatchResult.OK.equals(status)) {
+                errors.incrementAndGet();
+            }
+            if (listener != null) {
+                listener.completed(result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Session of batch command. Console output is collected for command result, nested commands
+     * are dispatched without GoGo shell. Adapters report command failures to session
+     */
+    private class BatchSession implements CommandSession, EquinoxGogoAdapter.FailureListener {
+        private final Batch batch;
+        /**
+         * Command or its nested command has failed
+         */
+        private volatile boolean failed;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final PrintStream console;
+
+        private BatchSession(Batch batch) {
+            this.batch = batch;
+            try {
+                console = new PrintStream(out, false, ENCODING);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public Object execute(CharSequence commandline) throws Exception {
+            String[] commandLine = parse(commandline);
+            if (commandLine.length == 0) {
+                return null;
+            }
+            String[] args = new String[commandLine.length - 1];
+            System.arraycopy(commandLine, 1, args, 0, args.length);
+            return dispatcher.dispatch(this, commandLine[0], args);
+        }
+
+        public void failed(String commandName, Throwable error) {
+            failed = true;
+        }
+
+        public void close() {
+        }
+
+        public InputStream getKeyboard() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        public PrintStream getConsole() {
+            return console;
+        }
+
+        public Object get(String name) {
+            return batch.variables.get(name);
+        }
+
+        public void put(String name, Object value) {
+            batch.variables.put(name, value);
+        }
+
+        public CharSequence format(Object target, int level) {
+            return String.valueOf(target);
+        }
+
+        public Object convert(Class<?> type, Object instance) {
+            return instance;
+        }
+
+        private String getOutput() {
+            console.flush();
+            try {
+                return out.toString(ENCODING);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.BatchListener;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.BatchResult;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.BatchSummary;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.CommandBatch;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.CommandBatches;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local batch endpoint of adapted commands for automation scripts. Server listens on loopback
+ * interface only. Every connection must start with a line containing the shared secret that is
+ * generated on server start and written to a file readable only by the framework user, so only
+ * local clients of that user could run commands. Every next line is a command with arguments, commands
+ * are pipelined: client does not need to wait for results. Command that ends with <code>&amp;</code>
+ * could run in parallel with other commands, any other command waits for all previous commands.
+ * Empty line or end of input closes current batch.
+ * <p/>
+ * Results are sent as frames in order of completion: header line
+ * <code>result &lt;seq&gt; &lt;status&gt; &lt;microseconds&gt; &lt;length&gt;</code> followed by
+ * <code>length</code> bytes of UTF-8 output. Closed batch is reported with frame
+ * <code>batch &lt;commands&gt; &lt;errors&gt; &lt;microseconds&gt; &lt;length&gt;</code> followed by
+ * summary of batch throughput and latency. Errors of connection, e.g. wrong secret, are reported with
+ * sequence number <code>0</code>.
+ * <p/>
+ * Connections use blocking channel I/O, every connection is served by own thread. Number of open
+ * connections is limited, connection over the limit gets error frame and is closed. Connection that
+ * does not send the secret in time or has no reads and writes during idle timeout is closed as well,
+ * so silent clients could not hold all connections.
+ *
+ * @author dmytro.pishchukhin
+ */
+public class BatchServer implements Runnable {
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(BatchServer.class.getName());
+
+    /**
+     * Max length of command line in characters
+     */
+    static final int MAX_LINE = 64 * 1024;
+    /**
+     * Read buffer size
+     */
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * Shared secret size in bytes
+     */
+    private static final int SECRET_SIZE = 32;
+    /**
+     * Default time to send the shared secret in milliseconds
+     */
+    public static final long DEFAULT_AUTH_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    /**
+     * Default idle timeout of connections in milliseconds
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Batch API of commands
+     */
+    private final CommandBatches batches;
+    /**
+     * Max number of open connections
+     */
+    private final int maxConnections;
+    /**
+     * Time to send the shared secret in milliseconds
+     */
+    private final long authTimeout;
+    /**
+     * Idle timeout of connections in milliseconds, <code>0</code> for no timeout
+     */
+    private final long idleTimeout;
+    /**
+     * Closes connections on timeouts
+     */
+    private final ScheduledExecutorService watchdog;
+    /**
+     * Server channel bound to loopback interface
+     */
+    private final ServerSocketChannel serverChannel;
+    /**
+     * Shared secret that clients send as the first line
+     */
+    private final byte[] secret;
+    /**
+     * Shared secret file
+     */
+    private final File secretFile;
+    /**
+     * Open client connections
+     */
+    private final Set<SocketChannel> connections = Collections.synchronizedSet(new HashSet<SocketChannel>());
+    /**
+     * Accepting thread or <code>null</code> if server is not started
+     */
+    private Thread thread;
+
+    /**
+     * Create batch server. New shared secret is written to the secret file
+     *
+     * @param batches        batch API of commands
+     * @param port           loopback port, <code>0</code> for any free port
+     * @param maxConnections max number of open connections
+     * @param secretFile     shared secret file
+     * @throws IOException unable to write secret file that is readable only by its owner or to bind port
+     */
+    public BatchServer(CommandBatches batches, int port, int maxConnections, File secretFile) throws IOException {
+        this(batches, port, maxConnections, secretFile, DEFAULT_AUTH_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Create batch server. New shared secret is written to the secret file
+     *
+     * @param batches        batch API of commands
+     * @param port           loopback port, <code>0</code> for any free port
+     * @param maxConnections max number of open connections
+     * @param secretFile     shared secret file
+     * @param authTimeout    time to send the shared secret in milliseconds
+     * @param idleTimeout    idle timeout of connections in milliseconds, <code>0</code> for no timeout
+     * @throws IOException unable to write secret file that is readable only by its owner or to bind port
+     */
+    public BatchServer(CommandBatches batches, int port, int maxConnections, File secretFile,
+                       long authTimeout, long idleTimeout) throws IOException {
+        if (authTimeout <= 0) {
+            throw new IllegalArgumentException("Authentication timeout must be positive: " + authTimeout);
+        }
+        this.batches = batches;
+        this.maxConnections = maxConnections;
+        this.authTimeout = authTimeout;
+        this.idleTimeout = idleTimeout;
+        this.secretFile = secretFile;
+        secret = writeSecret(secretFile);
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(null), port));
+        } catch (IOException e) {
+            serverChannel.close();
+            secretFile.delete();
+            throw e;
+        }
+        watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Equinox GoGo batch watchdog " + getPort());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start accepting connections
+     */
+    public synchronized void start() {
+        thread = new Thread(this, "Equinox GoGo batch server " + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop server and close all connections
+     */
+    public void stop() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Unable to close batch server", e);
+        }
+        watchdog.shutdownNow();
+        synchronized (connections) {
+            for (SocketChannel channel : connections) {
+                close(channel);
+            }
+            connections.clear();
+        }
+        secretFile.delete();
+        Thread acceptor;
+        synchronized (this) {
+            acceptor = thread;
+            thread = null;
+        }
+        if (acceptor != null) {
+            try {
+                acceptor.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Get server port
+     *
+     * @return loopback port
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Get shared secret file. Clients must send its content as the first line
+     *
+     * @return shared secret file
+     */
+    public File getSecretFile() {
+        return secretFile;
+    }
+
+    /**
+     * Get number of open connections
+     *
+     * @return number of connections
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Accept connections until server is stopped
+     */
+    public void run() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (!accept(channel)) {
+                    continue;
+                }
+                if (!serverChannel.isOpen()) {
+                    // server is stopped while connection was accepted
+                    connections.remove(channel);
+                    close(channel);
+                    return;
+                }
+                Connection connection = new Connection(channel);
+                Thread thread = new Thread(connection, "Equinox GoGo batch connection " + channel.socket().getPort());
+                thread.setDaemon(true);
+                thread.start();
+                watch(connection, authTimeout);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Unable to accept batch connection", e);
+            }
+        }
+    }
+
+    /**
+     * Check connection timeouts after delay
+     *
+     * @param connection connection
+     * @param delay      delay in milliseconds
+     */
+    private void watch(final Connection connection, long delay) {
+        try {
+            watchdog.schedule(new Runnable() {
+                public void run() {
+                    connection.checkTimeouts();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // server is stopped
+        }
+    }
+
+    /**
+     * Register accepted connection if limit of connections is not reached
+     *
+     * @param channel accepted connection
+     * @return <code>false</code> if connection is rejected and closed
+     */
+    private boolean accept(SocketChannel channel) {
+        synchronized (connections) {
+            if (connections.size() < maxConnections) {
+                connections.add(channel);
+                return true;
+            }
+        }
+        LOG.log(Level.WARNING, "Batch connection is rejected: " + maxConnections + " connections are open");
+        try {
+            byte[] body = "Too many connections".getBytes(BatchExecutor.ENCODING);
+            channel.write(ByteBuffer.wrap(("result 0 " + BatchResult.ERROR + " 0 " + body.length + '\n')
+                    .getBytes(BatchExecutor.ENCODING)));
+            channel.write(ByteBuffer.wrap(body));
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Unable to reject batch connection", e);
+        }
+        close(channel);
+        return false;
+    }
+
+    /**
+     * Generate shared secret and write it to a file that is readable only by its owner
+     *
+     * @param file secret file
+     * @return secret in the same encoding as it is sent by clients
+     * @throws IOException unable to write file or to restrict its permissions
+     */
+    private static byte[] writeSecret(File file) throws IOException {
+        byte[] random = new byte[SECRET_SIZE];
+        new SecureRandom().nextBytes(random);
+        StringBuilder builder = new StringBuilder(SECRET_SIZE * 2);
+        for (byte b : random) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        byte[] secret = builder.toString().getBytes(BatchExecutor.ENCODING);
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory: " + directory);
+        }
+        // permissions are restricted before secret is written
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace secret file: " + file);
+        }
+        if (!file.createNewFile()) {
+            throw new IOException("Unable to create secret file: " + file);
+        }
+        try {
+            restrictToOwner(file);
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(secret);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return secret;
+    }
+
+    /**
+     * Make file readable and writable only by its owner. File permissions API is available since Java 6
+     *
+     * @param file file
+     * @throws IOException permissions could not be restricted
+     */
+    private static void restrictToOwner(File file) throws IOException {
+        try {
+            Method setReadable = File.class.getMethod("setReadable", boolean.class, boolean.class);
+            Method setWritable = File.class.getMethod("setWritable", boolean.class, boolean.class);
+            Method setExecutable = File.class.getMethod("setExecutable", boolean.class, boolean.class);
+            boolean restricted = (Boolean) setReadable.invoke(file, false, false)
+                    && (Boolean) setReadable.invoke(file, true, true)
+                    && (Boolean) setWritable.invoke(file, false, false)
+                    && (Boolean) setWritable.invoke(file, true, true)
+                    && (Boolean) setExecutable.invoke(file, false, false);
+            if (!restricted) {
+                throw new IOException("Unable to restrict permissions of file: " + file);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            IOException exception = new IOException("Unable to restrict permissions of file: " + file);
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Unable to close batch connection", e);
+        }
+    }
+
+    /**
+     * Client connection: reads command lines and writes result frames
+     */
+    private class Connection implements Runnable, BatchListener {
+        private final SocketChannel channel;
+        private final CharsetDecoder decoder = Charset.forName(BatchExecutor.ENCODING).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final StringBuilder line = new StringBuilder();
+        private CommandBatch batch;
+        /**
+         * Client has sent the shared secret
+         */
+        private volatile boolean authenticated;
+        /**
+         * Time of the last read or write in nanoseconds
+         */
+        private volatile long lastActivity = System.nanoTime();
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Close connection that is not authenticated in time or is idle
+         */
+        private void checkTimeouts() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            if (!authenticated) {
+                LOG.log(Level.WARNING, "Batch connection is closed: secret is not sent in " + authTimeout + " ms");
+                // nothing else is written before authentication, so error frame does not wait for other writes
+                try {
+                    write("result 0 " + BatchResult.ERROR + " 0", "Authentication timeout");
+                } catch (IOException e) {
+                    LOG.log(Level.FINE, "Unable to report batch authentication timeout", e);
+                }
+                close(channel);
+                return;
+            }
+            if (idleTimeout > 0) {
+                long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+                if (idle >= idleTimeout) {
+                    // result writer could be blocked by client, so connection is closed without error frame
+                    LOG.log(Level.WARNING, "Batch connection is closed: idle for " + idle + " ms");
+                    close(channel);
+                } else {
+                    watch(this, idleTimeout - idle);
+                }
+            }
+        }
+
+        public void run() {
+            ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+            CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+            try {
+                boolean eof = false;
+                while (!eof) {
+                    eof = channel.read(in) < 0;
+                    lastActivity = System.nanoTime();
+                    in.flip();
+                    decoder.decode(in, chars, eof);
+                    in.compact();
+                    if (eof) {
+                        decoder.flush(chars);
+                    }
+                    chars.flip();
+                    if (!process(chars)) {
+                        line.setLength(0);
+                        break;
+                    }
+                    chars.clear();
+                }
+                if (!authenticated) {
+                    return;
+                }
+                if (line.length() > 0) {
+                    submit(line);
+                }
+                closeBatch();
+                channel.socket().shutdownOutput();
+            } catch (InterruptedException e) {
+                // server is stopped
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    LOG.log(Level.FINE, "Batch connection is closed", e);
+                }
+            } finally {
+                if (batch != null) {
+                    batch.close();
+                }
+                connections.remove(channel);
+                close(channel);
+            }
+        }
+
+        /**
+         * Process decoded characters
+         *
+         * @return <code>false</code> if command line is too long
+         */
+        private boolean process(CharBuffer chars) throws IOException, InterruptedException {
+            while (chars.hasRemaining()) {
+                char c = chars.get();
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    if (!authenticated) {
+                        authenticated = MessageDigest.isEqual(secret, line.toString().getBytes(BatchExecutor.ENCODING));
+                        line.setLength(0);
+                        if (!authenticated) {
+                            LOG.log(Level.WARNING, "Batch connection with wrong secret is closed");
+                            write("result 0 " + BatchResult.ERROR + " 0", "Wrong secret");
+                            return false;
+                        }
+                        batch = batches.open(this);
+                        continue;
+                    }
+                    if (line.toString().trim().length() == 0) {
+                        closeBatch();
+                        batch = batches.open(this);
+                    } else {
+                        submit(line);
+                    }
+                    line.setLength(0);
+                } else if (line.length() < MAX_LINE) {
+                    line.append(c);
+                } else {
+                    write("result 0 " + BatchResult.ERROR + " 0", "Command line is too long");
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void submit(CharSequence commandLine) throws InterruptedException {
+            String command = commandLine.toString().trim();
+            boolean parallel = command.endsWith("&");
+            if (parallel) {
+                command = command.substring(0, command.length() - 1);
+            }
+            String[] tokens = BatchExecutor.parse(command);
+            if (tokens.length > 0) {
+                batch.submit(tokens, parallel);
+            }
+        }
+
+        private void closeBatch() throws IOException {
+            BatchSummary summary = batch.close();
+            batch = null;
+            write(String.format("batch %d %d %d", summary.getCommands(), summary.getErrors(),
+                    TimeUnit.NANOSECONDS.toMicros(summary.getTime())), summary.toString());
+        }
+
+        public void completed(BatchResult result) {
+            try {
+                write(String.format("result %d %s %d", result.getSeq(), result.getStatus(),
+                        TimeUnit.NANOSECONDS.toMicros(result.getDuration())), result.toString());
+            } catch (IOException e) {
+                // client is gone - reading thread stops on closed channel
+                LOG.log(Level.FINE, "Unable to write batch result", e);
+                close(channel);
+            }
+        }
+
+        /**
+         * Write frame: header with body length and body
+         */
+        private synchronized void write(String header, String body) throws IOException {
+            byte[] bytes = body.getBytes(BatchExecutor.ENCODING);
+            ByteBuffer frame = ByteBuffer.allocate(header.length() + 16 + bytes.length);
+            frame.put((header + ' ' + bytes.length + '\n').getBytes(BatchExecutor.ENCODING));
+            frame.put(bytes);
+            frame.flip();
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            lastActivity = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk cache of generated GoGo adapters bytecode. Entries are stored per CommandProvider class
+ * and keyed by provider class name, its bundle symbolic name, version, last modification time,
+ * help digest and fingerprint of this bundle, so entries of updated providers or of adapters generated by
+ * other version of this bundle are replaced automatically.
+ *
+ * @author dmytro.pishchukhin
+ */
+public class BytecodeCache {
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(BytecodeCache.class.getName());
+
+    /**
+     * Cache file extension
+     */
+    private static final String FILE_EXTENSION = ".adapter";
+
+    /**
+     * Cache directory
+     */
+    private final File directory;
+    /**
+     * Max number of cached adapters
+     */
+    private final int maxSize;
+
+    public BytecodeCache(File directory, int maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get cache key of CommandProvider class
+     *
+     * @param providerClass CommandProvider class
+     * @param help          CommandProvider help
+     * @return cache key or <code>null</code> if adapter could not be cached
+     */
+    public String getKey(Class<?> providerClass, String help) {
+        String bundleFingerprint = getBundleFingerprint(providerClass);
+        if (bundleFingerprint == null) {
+            return null;
+        }
+        String generatorFingerprint = getGeneratorFingerprint();
+        if (generatorFingerprint == null) {
+            return null;
+        }
+        return providerClass.getName() + ';' + bundleFingerprint + ';' + digest(help) + ';' + generatorFingerprint;
+    }
+
+    /**
+     * Get fingerprint of bundle that generates adapters. Adapters generated by other version of bundle are replaced
+     *
+     * @return generator fingerprint or <code>null</code> if generator is not provided by bundle
+     */
+    protected String getGeneratorFingerprint() {
+        return getBundleFingerprint(BytecodeCache.class);
+    }
+
+    /**
+     * Get SHA-1 digest of help
+     *
+     * @param help CommandProvider help or <code>null</code>
+     * @return hex digest
+     */
+    private static String digest(String help) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            if (help != null) {
+                digest.update(help.getBytes("UTF-8"));
+            }
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest()) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Get fingerprint of bundle that provides class
+     *
+     * @param providerClass CommandProvider class
+     * @return bundle fingerprint or <code>null</code> if class is not provided by bundle
+     */
+    protected String getBundleFingerprint(Class<?> providerClass) {
+        Bundle bundle = FrameworkUtil.getBundle(providerClass);
+        if (bundle == null) {
+            return null;
+        }
+        return bundle.getSymbolicName() + ';' + bundle.getVersion() + ';' + bundle.getLastModified();
+    }
+
+    /**
+     * Load cached adapter bytecode
+     *
+     * @param key       cache key
+     * @param className adapter class name
+     * @return bytecode or <code>null</code> if there is no valid entry for this key
+     */
+    public synchronized byte[] load(String key, String className) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                // stale entry - it will be replaced with new one
+                if (!key.equals(in.readUTF()) || !className.equals(in.readUTF())) {
+                    return null;
+                }
+                byte[] bytecode = new byte[in.readInt()];
+                in.readFully(bytecode);
+                // mark as recently used
+                file.setLastModified(System.currentTimeMillis());
+                return bytecode;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to read cached adapter: " + file, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Store generated adapter bytecode
+     *
+     * @param key       cache key
+     * @param className adapter class name
+     * @param bytecode  adapter bytecode
+     */
+    public synchronized void store(String key, String className, byte[] bytecode) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOG.log(Level.WARNING, "Unable to create adapters cache directory: " + directory);
+            return;
+        }
+        File file = getFile(key);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeUTF(key);
+                out.writeUTF(className);
+                out.writeInt(bytecode.length);
+                out.write(bytecode);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to cache adapter: " + file, e);
+            file.delete();
+            return;
+        }
+        evict();
+    }
+
+    /**
+     * Remove all cached adapters
+     */
+    public synchronized void clear() {
+        File[] files = listFiles();
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Get number of cached adapters
+     *
+     * @return number of cached adapters
+     */
+    public synchronized int size() {
+        return listFiles().length;
+    }
+
+    /**
+     * Remove least recently used entries if cache is over its max size
+     */
+    private void evict() {
+        File[] files = listFiles();
+        if (files.length > maxSize) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File f1, File f2) {
+                    long m1 = f1.lastModified();
+                    long m2 = f2.lastModified();
+                    return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < files.length - maxSize; i++) {
+                files[i].delete();
+            }
+        }
+    }
+
+    private File[] listFiles() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(FILE_EXTENSION);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    /**
+     * Cache file of the key. Provider class name and bundle symbolic name are used for
+     * file name, so there is only one entry per provider class
+     *
+     * @param key cache key
+     * @return cache file
+     */
+    private File getFile(String key) {
+        int nameEnd = key.indexOf(';', key.indexOf(';') + 1);
+        String name = key.substring(0, nameEnd);
+        return new File(directory, Integer.toHexString(name.hashCode()) + FILE_EXTENSION);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executor of adapted commands outside of GoGo session thread. Session thread waits for command
+ * with configured timeout, command is interrupted on timeout or when session thread is interrupted (Ctrl-C).
+ * Commands run in virtual threads if runtime supports them, otherwise in bounded threads pool.
+ * Pool gets an extra thread for every interrupted command that is still running, so commands
+ * that ignore interruption do not take pool threads from other commands.
+ *
+ * @author dmytro.pishchukhin
+ */
+public class CommandExecutor {
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(CommandExecutor.class.getName());
+
+    /**
+     * Marks threads that execute commands, nested commands are executed in the same thread
+     */
+    private static final ThreadLocal<Boolean> WORKER = new ThreadLocal<Boolean>();
+
+    /**
+     * Commands executor
+     */
+    private final ExecutorService executor;
+    /**
+     * Commands are executed in virtual threads
+     */
+    private final boolean virtual;
+    /**
+     * Default timeout in milliseconds, <code>0</code> for no timeout
+     */
+    private final long defaultTimeout;
+    /**
+     * Timeouts of commands in milliseconds
+     */
+    private final Map<String, Long> timeouts;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong interrupted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger abandoned = new AtomicInteger();
+
+    /**
+     * Create commands executor
+     *
+     * @param useVirtualThreads use virtual threads if runtime supports them
+     * @param threads           max number of threads of pool
+     * @param queueSize         max number of commands that wait for pool thread
+     * @param defaultTimeout    default timeout in milliseconds, <code>0</code> for no timeout
+     * @param timeouts          timeouts of commands in milliseconds
+     */
+    public CommandExecutor(boolean useVirtualThreads, int threads, int queueSize, long defaultTimeout, Map<String, Long> timeouts) {
+        ExecutorService virtualExecutor = useVirtualThreads ? createVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            virtual = true;
+        } else {
+            executor = createThreadPool(threads, queueSize);
+            virtual = false;
+        }
+        this.defaultTimeout = defaultTimeout;
+        this.timeouts = new HashMap<String, Long>(timeouts);
+    }
+
+    /**
+     * Execute command and wait for its result
+     *
+     * @param commandName command name
+     * @param command     command
+     * @return command result
+     * @throws TimeoutException           command is not completed in time and interrupted
+     * @throws InterruptedException       waiting thread is interrupted, command is interrupted too
+     * @throws RejectedExecutionException too many commands wait for execution
+     * @throws Exception                  command execution error
+     */
+    public <T> T execute(String commandName, Callable<T> command) throws Exception {
+        // nested command - keep it in the same thread
+        if (WORKER.get() != null) {
+            return command.call();
+        }
+        Task<T> task = new Task<T>(command);
+        queued.incrementAndGet();
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            throw e;
+        }
+        long timeout = getTimeout(commandName);
+        try {
+            return timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            timedOut.incrementAndGet();
+            cancel(task, future);
+            throw e;
+        } catch (InterruptedException e) {
+            interrupted.incrementAndGet();
+            cancel(task, future);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Get timeout of command
+     *
+     * @param commandName command name
+     * @return timeout in milliseconds or <code>0</code> if there is no timeout
+     */
+    public long getTimeout(String commandName) {
+        Long timeout = timeouts.get(commandName);
+        return timeout != null ? timeout : defaultTimeout;
+    }
+
+    /**
+     * Stop executor and interrupt running commands
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Get number of commands that wait for execution
+     *
+     * @return number of queued commands
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    public long getInterrupted() {
+        return interrupted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Get number of interrupted commands that are still running
+     *
+     * @return number of abandoned commands
+     */
+    public int getAbandoned() {
+        return abandoned.get();
+    }
+
+    private void cancel(Task<?> task, Future<?> future) {
+        future.cancel(true);
+        // command was not started
+        if (task.started.compareAndSet(false, true)) {
+            queued.decrementAndGet();
+        } else {
+            task.abandon();
+        }
+    }
+
+    /**
+     * Change number of pool threads
+     *
+     * @param delta number of threads to add or remove
+     */
+    private void resizePool(int delta) {
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            synchronized (pool) {
+                // max pool size is never less than core pool size
+                if (delta > 0) {
+                    pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+                    pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+                } else {
+                    pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+                    pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create virtual threads executor
+     *
+     * @return virtual threads executor or <code>null</code> if runtime does not support virtual threads
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            LOG.log(Level.INFO, "Virtual threads are not supported, threads pool is used for commands");
+            return null;
+        }
+    }
+
+    /**
+     * Create bounded threads pool
+     *
+     * @param threads   max number of threads
+     * @param queueSize max number of commands that wait for thread
+     * @return threads pool
+     */
+    private static ExecutorService createThreadPool(int threads, int queueSize) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Equinox GoGo command executor " + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Command task that marks its thread as commands executor thread
+     */
+    private class Task<T> implements Callable<T> {
+        private final Callable<T> command;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private boolean finished;
+        /**
+         * Session thread does not wait for this command anymore and its thread is replaced in pool
+         */
+        private boolean replaced;
+
+        private Task(Callable<T> command) {
+            this.command = command;
+        }
+
+        /**
+         * Replace thread of interrupted command until command is finished
+         */
+        private synchronized void abandon() {
+            if (!finished && !replaced) {
+                replaced = true;
+                abandoned.incrementAndGet();
+                resizePool(1);
+            }
+        }
+
+        public T call() throws Exception {
+            if (started.compareAndSet(false, true)) {
+                queued.decrementAndGet();
+            }
+            executed.incrementAndGet();
+            WORKER.set(Boolean.TRUE);
+            try {
+                return command.call();
+            } finally {
+                WORKER.remove();
+                synchronized (this) {
+                    finished = true;
+                    if (replaced) {
+                        abandoned.decrementAndGet();
+                        resizePool(-1);
+                    }
+                }
+            }
+        }
+    }
+}
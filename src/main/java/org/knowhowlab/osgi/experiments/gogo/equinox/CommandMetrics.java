@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.knowhowlab.osgi.experiments.gogo.equinox.stats.CommandStatisticsSnapshot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free execution counters of a command
+ *
+ * @author dmytro.pishchukhin
+ */
+public class CommandMetrics {
+    /**
+     * Statistics that own counters
+     */
+    private final CommandStatisticsImpl statistics;
+    private final String scope;
+    private final String command;
+    private final String bundle;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong maxTime = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(CommandStatisticsSnapshot.BUCKET_BOUNDS.length + 1);
+    /**
+     * Number of adapters that use counters. Guarded by statistics
+     */
+    int references;
+
+    CommandMetrics(CommandStatisticsImpl statistics, String scope, String command, String bundle) {
+        this.statistics = statistics;
+        this.scope = scope;
+        this.command = command;
+        this.bundle = bundle;
+    }
+
+    /**
+     * Get statistics key
+     *
+     * @return scope, command and bundle
+     */
+    String getKey() {
+        return scope + ':' + command + ' ' + bundle;
+    }
+
+    /**
+     * Check if statistics are collected
+     *
+     * @return <code>true</code> if statistics are collected
+     */
+    public boolean isEnabled() {
+        return statistics.isEnabled();
+    }
+
+    /**
+     * Record command execution
+     *
+     * @param time   execution time in nanoseconds
+     * @param failed <code>true</code> if command failed
+     */
+    public void record(long time, boolean failed) {
+        count.incrementAndGet();
+        if (failed) {
+            errors.incrementAndGet();
+        }
+        totalTime.addAndGet(time);
+        long max = maxTime.get();
+        while (time > max && !maxTime.compareAndSet(max, time)) {
+            max = maxTime.get();
+        }
+        histogram.incrementAndGet(getBucket(time));
+    }
+
+    /**
+     * Get counters snapshot
+     *
+     * @param reset reset counters
+     * @return snapshot
+     */
+    CommandStatisticsSnapshot snapshot(boolean reset) {
+        long[] buckets = new long[histogram.length()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = reset ? histogram.getAndSet(i, 0) : histogram.get(i);
+        }
+        if (reset) {
+            return new CommandStatisticsSnapshot(scope, command, bundle, count.getAndSet(0), errors.getAndSet(0),
+                    totalTime.getAndSet(0), maxTime.getAndSet(0), buckets);
+        }
+        return new CommandStatisticsSnapshot(scope, command, bundle, count.get(), errors.get(),
+                totalTime.get(), maxTime.get(), buckets);
+    }
+
+    private static int getBucket(long time) {
+        long[] bounds = CommandStatisticsSnapshot.BUCKET_BOUNDS;
+        for (int i = 0; i < bounds.length; i++) {
+            if (time <= bounds[i]) {
+                return i;
+            }
+        }
+        return bounds.length;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+/**
+ * Adapted command is not found
+ *
+ * @author dmytro.pishchukhin
+ */
+public class CommandNotFoundException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public CommandNotFoundException(String command) {
+        super("Command not found: " + command);
+    }
+}
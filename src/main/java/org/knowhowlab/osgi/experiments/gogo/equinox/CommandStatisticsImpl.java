@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.knowhowlab.osgi.experiments.gogo.equinox.stats.CommandStatistics;
+import org.knowhowlab.osgi.experiments.gogo.equinox.stats.CommandStatisticsSnapshot;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Execution statistics of adapted commands per scope, command and CommandProvider bundle.
+ * Counters are resolved when adapter is created, so dispatch path does not do any lookups.
+ * Counters are reference-counted by adapters and removed when the last adapter is released.
+ *
+ * @author dmytro.pishchukhin
+ */
+public class CommandStatisticsImpl implements CommandStatistics {
+    /**
+     * Bundle name of classes that are not loaded by bundles
+     */
+    private static final String NO_BUNDLE = "<none>";
+
+    /**
+     * Counters by scope, command and bundle
+     */
+    private final ConcurrentMap<String, CommandMetrics> metrics = new ConcurrentHashMap<String, CommandMetrics>();
+    /**
+     * Statistics are collected
+     */
+    private volatile boolean enabled;
+
+    public CommandStatisticsImpl(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Get counters of adapter commands
+     *
+     * @param shellInfo     GoGo service info
+     * @param providerClass CommandProvider class
+     * @return counters by command index
+     */
+    public synchronized CommandMetrics[] getMetrics(ShellInfo shellInfo, Class<?> providerClass) {
+        Bundle providerBundle = FrameworkUtil.getBundle(providerClass);
+        String bundle = providerBundle != null ? providerBundle.getSymbolicName() : NO_BUNDLE;
+        String[] commands = shellInfo.getCommands();
+        CommandMetrics[] commandMetrics = new CommandMetrics[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            CommandMetrics newMetrics = new CommandMetrics(this, shellInfo.getScope(), commands[i], bundle);
+            commandMetrics[i] = metrics.putIfAbsent(newMetrics.getKey(), newMetrics);
+            if (commandMetrics[i] == null) {
+                commandMetrics[i] = newMetrics;
+            }
+            commandMetrics[i].references++;
+        }
+        return commandMetrics;
+    }
+
+    /**
+     * Release counters of adapter. Counters that are not used by other adapters are removed
+     *
+     * @param commandMetrics counters by command index
+     */
+    public synchronized void release(CommandMetrics[] commandMetrics) {
+        for (CommandMetrics commandMetric : commandMetrics) {
+            if (--commandMetric.references <= 0) {
+                metrics.remove(commandMetric.getKey(), commandMetric);
+            }
+        }
+    }
+
+    /**
+     * Get number of counters
+     *
+     * @return number of counters
+     */
+    public int size() {
+        return metrics.size();
+    }
+
+    public List<CommandStatisticsSnapshot> snapshot() {
+        return snapshot(false);
+    }
+
+    public List<CommandStatisticsSnapshot> snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    public void reset() {
+        snapshot(true);
+    }
+
+    private List<CommandStatisticsSnapshot> snapshot(boolean reset) {
+        List<CommandStatisticsSnapshot> snapshots = new ArrayList<CommandStatisticsSnapshot>();
+        // sorted by key
+        for (Map.Entry<String, CommandMetrics> entry : new TreeMap<String, CommandMetrics>(metrics).entrySet()) {
+            snapshots.add(entry.getValue().snapshot(reset));
+        }
+        return snapshots;
+    }
+}
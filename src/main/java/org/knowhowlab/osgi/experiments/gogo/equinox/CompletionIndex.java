@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.knowhowlab.osgi.experiments.gogo.equinox.completion.CommandCompletions;
+import org.knowhowlab.osgi.experiments.gogo.equinox.completion.Completion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Completion index of adapted commands. Index is a prefix trie of <code>scope:command</code> and
+ * <code>command</code> names with arguments hints from CommandProvider help. It is updated incrementally
+ * when CommandProvider services come and go, so completion does not depend on number of GoGo services
+ *
+ * @author dmytro.pishchukhin
+ */
+public class CompletionIndex implements CommandCompletions {
+    /**
+     * Default max number of completions
+     */
+    public static final int DEFAULT_MAX_COMPLETIONS = 64;
+
+    /**
+     * Trie root
+     */
+    private final Node root = new Node();
+    /**
+     * Names indexed by owner
+     */
+    private final Map<Object, String[]> owners = new HashMap<Object, String[]>();
+    /**
+     * Number of indexed names
+     */
+    private int size;
+
+    /**
+     * Add commands of owner. Commands that were added by owner before are replaced
+     *
+     * @param owner    commands owner, e.g. CommandProvider service reference
+     * @param scope    commands scope
+     * @param commands command names
+     * @param help     CommandProvider help index
+     */
+    public synchronized void add(Object owner, String scope, String[] commands, HelpIndex help) {
+        remove(owner);
+        String[] names = new String[commands.length * 2];
+        for (int i = 0; i < commands.length; i++) {
+            String hint = help.getArguments(commands[i]);
+            names[i * 2] = scope + ':' + commands[i];
+            names[i * 2 + 1] = commands[i];
+            insert(names[i * 2], owner, hint);
+            insert(names[i * 2 + 1], owner, hint);
+        }
+        owners.put(owner, names);
+    }
+
+    /**
+     * Remove commands of owner
+     *
+     * @param owner commands owner
+     */
+    public synchronized void remove(Object owner) {
+        String[] names = owners.remove(owner);
+        if (names != null) {
+            for (String name : names) {
+                delete(root, name.toLowerCase(Locale.ENGLISH), 0, owner);
+            }
+        }
+    }
+
+    public synchronized List<Completion> complete(String prefix, int max) {
+        List<Completion> completions = new ArrayList<Completion>();
+        Node node = root;
+        String key = prefix.toLowerCase(Locale.ENGLISH);
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.get(key.charAt(i));
+        }
+        if (node != null) {
+            collect(node, completions, max);
+        }
+        return completions;
+    }
+
+    /**
+     * Get number of indexed names
+     *
+     * @return number of names
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void insert(String name, Object owner, String hint) {
+        String key = name.toLowerCase(Locale.ENGLISH);
+        Node node = root;
+        for (int i = 0; i < key.length(); i++) {
+            node = node.getOrAdd(key.charAt(i));
+        }
+        if (node.hints == null) {
+            node.name = name;
+            node.hints = new LinkedHashMap<Object, String>(2);
+            size++;
+        }
+        node.hints.put(owner, hint);
+    }
+
+    /**
+     * Delete owner of name and prune empty nodes
+     *
+     * @return <code>true</code> if node is empty
+     */
+    private boolean delete(Node node, String key, int index, Object owner) {
+        if (index == key.length()) {
+            if (node.hints != null) {
+                node.hints.remove(owner);
+                if (node.hints.isEmpty()) {
+                    node.hints = null;
+                    node.name = null;
+                    size--;
+                }
+            }
+        } else {
+            Node child = node.get(key.charAt(index));
+            if (child != null && delete(child, key, index + 1, owner)) {
+                node.remove(key.charAt(index));
+            }
+        }
+        return node.hints == null && node.childrenCount == 0;
+    }
+
+    private void collect(Node node, List<Completion> completions, int max) {
+        if (completions.size() >= max) {
+            return;
+        }
+        if (node.hints != null) {
+            String hint = null;
+            for (String ownerHint : node.hints.values()) {
+                if (ownerHint != null) {
+                    hint = ownerHint;
+                    break;
+                }
+            }
+            completions.add(new Completion(node.name, hint, node.hints.size()));
+        }
+        for (int i = 0; i < node.childrenCount; i++) {
+            collect(node.children[i], completions, max);
+        }
+    }
+
+    /**
+     * Trie node. Children are sorted by key char
+     */
+    private static class Node {
+        private char[] keys;
+        private Node[] children;
+        private int childrenCount;
+        /**
+         * Command name of terminal node
+         */
+        private String name;
+        /**
+         * Arguments hints by owner of terminal node, <code>null</code> for intermediate node
+         */
+        private Map<Object, String> hints;
+
+        private Node get(char key) {
+            int index = indexOf(key);
+            return index >= 0 ? children[index] : null;
+        }
+
+        private Node getOrAdd(char key) {
+            int index = indexOf(key);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            if (keys == null) {
+                keys = new char[2];
+                children = new Node[2];
+            } else if (childrenCount == keys.length) {
+                char[] newKeys = new char[keys.length * 2];
+                Node[] newChildren = new Node[keys.length * 2];
+                System.arraycopy(keys, 0, newKeys, 0, childrenCount);
+                System.arraycopy(children, 0, newChildren, 0, childrenCount);
+                keys = newKeys;
+                children = newChildren;
+            }
+            System.arraycopy(keys, index, keys, index + 1, childrenCount - index);
+            System.arraycopy(children, index, children, index + 1, childrenCount - index);
+            Node child = new Node();
+            keys[index] = key;
+            children[index] = child;
+            childrenCount++;
+            return child;
+        }
+
+        private void remove(char key) {
+            int index = indexOf(key);
+            if (index >= 0) {
+                System.arraycopy(keys, index + 1, keys, index, childrenCount - index - 1);
+                System.arraycopy(children, index + 1, children, index, childrenCount - index - 1);
+                children[--childrenCount] = null;
+            }
+        }
+
+        /**
+         * Binary search of child key
+         *
+         * @return child index or <code>-(insertion point) - 1</code>
+         */
+        private int indexOf(char key) {
+            int low = 0;
+            int high = childrenCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                char middleKey = keys[middle];
+                if (middleKey < key) {
+                    low = middle + 1;
+                } else if (middleKey > key) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+}
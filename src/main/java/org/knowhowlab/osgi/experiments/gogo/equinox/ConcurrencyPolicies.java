@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrency policies of CommandProvider services. Policies are configured by provider class name
+ * or by symbolic name of provider bundle, class name has priority. Policy specification is one of:
+ * <ul>
+ * <li><code>concurrent</code> - no restrictions</li>
+ * <li><code>serialized</code> - one command of provider at a time</li>
+ * <li><code>striped[:stripes]</code> - one call of the same command at a time</li>
+ * <li><code>semaphore:permits</code> - max number of commands of provider at a time</li>
+ * </ul>
+ * Policy is shared by all adapters of the same CommandProvider instance, e.g. by lazy and generated adapters
+ * or by adapters of updated service
+ *
+ * @author dmytro.pishchukhin
+ */
+public class ConcurrencyPolicies {
+    public static final String CONCURRENT = "concurrent";
+    public static final String SERIALIZED = "serialized";
+    public static final String STRIPED = "striped";
+    public static final String SEMAPHORE = "semaphore";
+
+    /**
+     * Policy of providers that are not configured explicitly
+     */
+    private final String defaultPolicy;
+    /**
+     * Policies by provider class name or bundle symbolic name
+     */
+    private final Map<String, String> policies;
+    /**
+     * Contention counters by provider class name
+     */
+    private final ConcurrentMap<String, ConcurrencyPolicy.Contention> contentions =
+            new ConcurrentHashMap<String, ConcurrencyPolicy.Contention>();
+    /**
+     * Created policies by CommandProvider instance
+     */
+    private final Map<CommandProvider, ConcurrencyPolicy> instances = new WeakHashMap<CommandProvider, ConcurrencyPolicy>();
+
+    /**
+     * Create concurrency policies
+     *
+     * @param defaultPolicy policy of providers that are not configured explicitly
+     * @param policies      policies by provider class name or bundle symbolic name
+     * @throws IllegalArgumentException invalid policy specification
+     */
+    public ConcurrencyPolicies(String defaultPolicy, Map<String, String> policies) {
+        this.defaultPolicy = defaultPolicy != null ? defaultPolicy : CONCURRENT;
+        this.policies = new HashMap<String, String>(policies);
+        // fail fast on invalid specifications
+        create(this.defaultPolicy, null, 1);
+        for (String policy : this.policies.values()) {
+            create(policy, null, 1);
+        }
+    }
+
+    /**
+     * Get concurrency policy of CommandProvider service instance. Policy is created once per instance
+     *
+     * @param provider      Equinox CommandProvider service instance
+     * @param commandsCount number of provider commands
+     * @return policy or <code>null</code> if provider is fully concurrent
+     */
+    public ConcurrencyPolicy create(CommandProvider provider, int commandsCount) {
+        synchronized (instances) {
+            ConcurrencyPolicy policy = instances.get(provider);
+            if (policy == null) {
+                policy = createPolicy(provider, commandsCount);
+                if (policy != null) {
+                    instances.put(provider, policy);
+                }
+            }
+            return policy;
+        }
+    }
+
+    private ConcurrencyPolicy createPolicy(CommandProvider provider, int commandsCount) {
+        String className = provider.getClass().getName();
+        String policy = policies.get(className);
+        if (policy == null) {
+            Bundle bundle = FrameworkUtil.getBundle(provider.getClass());
+            if (bundle != null && bundle.getSymbolicName() != null) {
+                policy = policies.get(bundle.getSymbolicName());
+            }
+        }
+        if (policy == null) {
+            policy = defaultPolicy;
+        }
+        return create(policy, getContention(className, policy), Math.max(1, commandsCount));
+    }
+
+    /**
+     * Get contention counters of providers with concurrency policies
+     *
+     * @return contention counters
+     */
+    public Collection<ConcurrencyPolicy.Contention> getContentions() {
+        return new ArrayList<ConcurrencyPolicy.Contention>(contentions.values());
+    }
+
+    private ConcurrencyPolicy.Contention getContention(String className, String policy) {
+        ConcurrencyPolicy.Contention contention = contentions.get(className);
+        if (contention == null) {
+            ConcurrencyPolicy.Contention newContention = new ConcurrencyPolicy.Contention(className, policy.trim());
+            contention = contentions.putIfAbsent(className, newContention);
+            if (contention == null) {
+                contention = newContention;
+            }
+        }
+        return contention;
+    }
+
+    /**
+     * Create policy by its specification
+     *
+     * @param policy        policy specification
+     * @param contention    contention counters
+     * @param commandsCount number of provider commands
+     * @return policy or <code>null</code> for fully concurrent provider
+     * @throws IllegalArgumentException invalid policy specification
+     */
+    private static ConcurrencyPolicy create(String policy, ConcurrencyPolicy.Contention contention, int commandsCount) {
+        String name = policy.trim();
+        String parameter = null;
+        int index = name.indexOf(':');
+        if (index != -1) {
+            parameter = name.substring(index + 1).trim();
+            name = name.substring(0, index).trim();
+        }
+        if (CONCURRENT.equalsIgnoreCase(name) && parameter == null) {
+            return null;
+        } else if (SERIALIZED.equalsIgnoreCase(name) && parameter == null) {
+            return new ConcurrencyPolicy.Serialized(contention);
+        } else if (STRIPED.equalsIgnoreCase(name)) {
+            return new ConcurrencyPolicy.Striped(contention, parameter == null ? commandsCount : getPositive(policy, parameter));
+        } else if (SEMAPHORE.equalsIgnoreCase(name) && parameter != null) {
+            return new ConcurrencyPolicy.Bounded(contention, getPositive(policy, parameter));
+        }
+        throw new IllegalArgumentException("Invalid concurrency policy: " + policy);
+    }
+
+    private static int getPositive(String policy, String value) {
+        try {
+            int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // invalid number
+        }
+        throw new IllegalArgumentException("Invalid concurrency policy: " + policy);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency policy of CommandProvider service that is not thread-safe. Fully concurrent
+ * providers have no policy at all, so they have no dispatch overhead
+ *
+ * @author dmytro.pishchukhin
+ */
+public abstract class ConcurrencyPolicy {
+    /**
+     * Contention counters of policy
+     */
+    private final Contention contention;
+
+    protected ConcurrencyPolicy(Contention contention) {
+        this.contention = contention;
+    }
+
+    /**
+     * Wait until command could be executed
+     *
+     * @param commandIndex command index in generated adapter
+     * @throws InterruptedException waiting thread is interrupted
+     */
+    public abstract void acquire(int commandIndex) throws InterruptedException;
+
+    /**
+     * Release command that is acquired before
+     *
+     * @param commandIndex command index in generated adapter
+     */
+    public abstract void release(int commandIndex);
+
+    public Contention getContention() {
+        return contention;
+    }
+
+    /**
+     * Acquire lock and record contention if lock is held by other thread
+     *
+     * @param lock lock
+     * @throws InterruptedException waiting thread is interrupted
+     */
+    protected void lock(ReentrantLock lock) throws InterruptedException {
+        if (lock.tryLock()) {
+            contention.record(0, false);
+        } else {
+            long start = System.nanoTime();
+            lock.lockInterruptibly();
+            contention.record(System.nanoTime() - start, true);
+        }
+    }
+
+    /**
+     * Policy that executes one command of provider at a time
+     */
+    public static class Serialized extends ConcurrencyPolicy {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        public Serialized(Contention contention) {
+            super(contention);
+        }
+
+        public void acquire(int commandIndex) throws InterruptedException {
+            lock(lock);
+        }
+
+        public void release(int commandIndex) {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Policy that executes one call of the same command at a time. Commands are mapped
+     * to locks by their index, so different commands could share the same lock. Nested commands
+     * of the same provider take no more locks, so threads never wait for each other's stripes
+     */
+    public static class Striped extends ConcurrencyPolicy {
+        private final ReentrantLock[] locks;
+        /**
+         * Number of nested commands of this provider in the current thread and stripe of the outer command
+         */
+        private final ThreadLocal<int[]> held = new ThreadLocal<int[]>() {
+            protected int[] initialValue() {
+                return new int[2];
+            }
+        };
+
+        public Striped(Contention contention, int stripes) {
+            super(contention);
+            locks = new ReentrantLock[stripes];
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = new ReentrantLock();
+            }
+        }
+
+        public void acquire(int commandIndex) throws InterruptedException {
+            int[] state = held.get();
+            if (state[0] == 0) {
+                int stripe = commandIndex % locks.length;
+                lock(locks[stripe]);
+                state[1] = stripe;
+            }
+            state[0]++;
+        }
+
+        public void release(int commandIndex) {
+            int[] state = held.get();
+            if (--state[0] == 0) {
+                held.remove();
+                locks[state[1]].unlock();
+            }
+        }
+    }
+
+    /**
+     * Policy that limits number of commands of provider that are executed at a time.
+     * Nested commands of the same provider do not take more permits
+     */
+    public static class Bounded extends ConcurrencyPolicy {
+        private final Semaphore semaphore;
+        /**
+         * Number of nested commands of this provider in the current thread
+         */
+        private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
+
+        public Bounded(Contention contention, int permits) {
+            super(contention);
+            semaphore = new Semaphore(permits);
+        }
+
+        public void acquire(int commandIndex) throws InterruptedException {
+            int[] counter = depth.get();
+            if (counter[0] == 0) {
+                if (semaphore.tryAcquire()) {
+                    getContention().record(0, false);
+                } else {
+                    long start = System.nanoTime();
+                    semaphore.acquire();
+                    getContention().record(System.nanoTime() - start, true);
+                }
+            }
+            counter[0]++;
+        }
+
+        public void release(int commandIndex) {
+            int[] counter = depth.get();
+            if (--counter[0] == 0) {
+                depth.remove();
+                semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * Contention counters of CommandProvider class
+     */
+    public static class Contention {
+        private final String provider;
+        private final String policy;
+
+        private final AtomicLong acquired = new AtomicLong();
+        private final AtomicLong contended = new AtomicLong();
+        private final AtomicLong waitTime = new AtomicLong();
+
+        public Contention(String provider, String policy) {
+            this.provider = provider;
+            this.policy = policy;
+        }
+
+        /**
+         * Record acquired command
+         *
+         * @param time      waiting time in nanoseconds
+         * @param contended <code>true</code> if command waited for other commands
+         */
+        void record(long time, boolean contended) {
+            acquired.incrementAndGet();
+            if (contended) {
+                this.contended.incrementAndGet();
+                waitTime.addAndGet(time);
+            }
+        }
+
+        public String getProvider() {
+            return provider;
+        }
+
+        public String getPolicy() {
+            return policy;
+        }
+
+        public long getAcquired() {
+            return acquired.get();
+        }
+
+        public long getContended() {
+            return contended.get();
+        }
+
+        /**
+         * Get total waiting time
+         *
+         * @return waiting time in nanoseconds
+         */
+        public long getWaitTime() {
+            return waitTime.get();
+        }
+
+        public String toString() {
+            return String.format("%s (%s): %d acquired, %d contended, %.3f ms waited",
+                    provider, policy, getAcquired(), getContended(), getWaitTime() / 1000000.0);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Backend that registers generic dispatcher for every CommandProvider service.
+ * No classes are generated: command methods are looked up once per CommandProvider class
+ * and called reflectively. Command descriptions are not available in GoGo help.
+ *
+ * @author dmytro.pishchukhin
+ * @see DispatcherEquinoxGogoAdapter
+ */
+public class DispatcherAdapterBackend implements AdapterBackend {
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(DispatcherAdapterBackend.class.getName());
+
+    /**
+     * Backend name
+     */
+    public static final String NAME = "dispatcher";
+
+    public ShellInfo createShellInfo(CommandProvider provider) {
+        SortedMap<String, Method> commandMethods = Utils.findCommandMethods(provider.getClass());
+        Collection<Method> methods = commandMethods.values();
+        for (Method method : methods) {
+            try {
+                // public methods of non-public classes
+                method.setAccessible(true);
+            } catch (SecurityException e) {
+                LOG.log(Level.FINE, "Unable to suppress access checks for: " + method, e);
+            }
+        }
+        Set<String> commands = commandMethods.keySet();
+        return new ShellInfo(Utils.DEFAULT_SCOPE, commands.toArray(new String[commands.size()]),
+                DispatcherEquinoxGogoAdapter.class, methods.toArray(new Method[methods.size()]));
+    }
+
+    public EquinoxGogoAdapter createAdapter(ShellInfo shellInfo, CommandProvider provider) throws Exception {
+        return new DispatcherEquinoxGogoAdapter(provider, shellInfo.getCommands(), shellInfo.getMethods());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+import org.eclipse.osgi.framework.console.CommandInterpreter;
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Generic GoGo adapter that dispatches all registered functions to CommandProvider methods.
+ * GoGo calls <code>_main</code> method with command name as the first argument for every
+ * registered function.
+ *
+ * @author dmytro.pishchukhin
+ */
+public class DispatcherEquinoxGogoAdapter extends EquinoxGogoAdapter {
+    /**
+     * Equinox CommandProvider service instance
+     */
+    private final CommandProvider provider;
+    /**
+     * Command methods by command index
+     */
+    private final Method[] methods;
+    /**
+     * Command indexes by command name in lower case (GoGo passes lower-cased name to <code>_main</code>)
+     */
+    private final Map<String, Integer> commandIndexes = new HashMap<String, Integer>();
+    /**
+     * Sorted command names
+     */
+    private final String[] commands;
+
+    public DispatcherEquinoxGogoAdapter(CommandProvider provider, String[] commands, Method[] methods) {
+        super(provider);
+        this.provider = provider;
+        this.commands = commands;
+        this.methods = methods;
+        for (int i = 0; i < commands.length; i++) {
+            commandIndexes.put(commands[i].toLowerCase(Locale.ENGLISH), i);
+        }
+    }
+
+    /**
+     * Run shell command. Generic GoGo entry point for all registered functions
+     *
+     * @param commandSession GoGo CommandSession
+     * @param commandName    command name
+     * @param args           command arguments
+     * @return command result or <code>null</code>
+     */
+    public Object _main(CommandSession commandSession, String commandName, String[] args) {
+        Integer commandIndex = commandIndexes.get(commandName.toLowerCase(Locale.ENGLISH));
+        if (commandIndex == null) {
+            fail(commandSession, commandName, "Unknown shell command: " + commandName, null);
+            return null;
+        }
+        return runCommandWithResult(commandSession, args, commands[commandIndex], commandIndex);
+    }
+
+    protected Object invokeCommand(int commandIndex, String commandName, CommandInterpreter interpreter) throws Exception {
+        try {
+            return methods[commandIndex].invoke(provider, interpreter);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Descriptor;
+import org.knowhowlab.osgi.experiments.gogo.equinox.completion.Completion;
+import org.knowhowlab.osgi.experiments.gogo.equinox.stats.CommandStatistics;
+import org.knowhowlab.osgi.experiments.gogo.equinox.stats.CommandStatisticsSnapshot;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GoGo commands of Equinox adapter
+ *
+ * @author dmytro.pishchukhin
+ */
+public class EquinoxCommands {
+    /**
+     * Commands scope
+     */
+    public static final String SCOPE = "equinox";
+    /**
+     * Commands
+     */
+    public static final String[] FUNCTIONS = new String[]{"ready", "adapters", "stats", "which", "complete", "recorder", "more"};
+
+    /**
+     * Number of invocations printed by default
+     */
+    private static final int LAST_RECORDS = 20;
+
+    /**
+     * Adapter bundle activator
+     */
+    private final Activator activator;
+    /**
+     * Commands execution statistics
+     */
+    private final CommandStatistics statistics;
+
+    public EquinoxCommands(Activator activator, CommandStatistics statistics) {
+        this.activator = activator;
+        this.statistics = statistics;
+    }
+
+    @Descriptor("report whether all known CommandProvider services are adapted")
+    public String ready() {
+        return status(activator.getPendingCount() == 0);
+    }
+
+    @Descriptor("wait until all known CommandProvider services are adapted")
+    public String ready(@Descriptor("timeout in milliseconds") long timeout) throws InterruptedException {
+        return status(activator.awaitReady(timeout));
+    }
+
+    @Descriptor("report number of registered, lazy and materialized GoGo adapters")
+    public String adapters() {
+        int adapted = activator.getAdaptedCount();
+        int lazy = activator.getLazyCount();
+        return String.format("adapters: %d registered, %d lazy, %d materialized, %d pending, %d providers not activated",
+                adapted, lazy, adapted - lazy, activator.getPendingCount(), activator.getUnactivatedCount());
+    }
+
+    @Descriptor("print execution statistics of adapted commands")
+    public String stats() {
+        return format(statistics.snapshot());
+    }
+
+    @Descriptor("control execution statistics of adapted commands")
+    public String stats(@Descriptor("on, off, reset or snapshot (print and reset)") String action) {
+        if ("on".equalsIgnoreCase(action)) {
+            statistics.setEnabled(true);
+        } else if ("off".equalsIgnoreCase(action)) {
+            statistics.setEnabled(false);
+        } else if ("reset".equalsIgnoreCase(action)) {
+            statistics.reset();
+        } else if ("snapshot".equalsIgnoreCase(action)) {
+            return format(statistics.snapshotAndReset());
+        } else {
+            return "Unknown action: " + action + ". Use on, off, reset or snapshot";
+        }
+        return format(statistics.snapshot());
+    }
+
+    @Descriptor("show CommandProvider services that provide command")
+    public String which(@Descriptor("command name") String command) {
+        List<String> providers = activator.which(command);
+        if (providers.isEmpty()) {
+            return "Unknown command: " + command;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String provider : providers) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(provider);
+        }
+        return builder.toString();
+    }
+
+    @Descriptor("complete name of adapted command")
+    public String complete(@Descriptor("command name prefix, e.g. equinox:s or ss") String prefix) {
+        return complete(prefix, CompletionIndex.DEFAULT_MAX_COMPLETIONS);
+    }
+
+    @Descriptor("complete name of adapted command")
+    public String complete(@Descriptor("command name prefix, e.g. equinox:s or ss") String prefix,
+                           @Descriptor("max number of completions") int max) {
+        StringBuilder builder = new StringBuilder();
+        for (Completion completion : activator.getCompletions().complete(prefix, max)) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(completion);
+        }
+        return builder.toString();
+    }
+
+    @Descriptor("print last invocations of adapted commands")
+    public String recorder() throws IOException {
+        return recorder("last");
+    }
+
+    @Descriptor("inspect or dump last invocations of adapted commands")
+    public String recorder(@Descriptor("last (last 20 invocations), all, slow (with stack samples) or dump") String action)
+            throws IOException {
+        FlightRecorder flightRecorder = activator.getFlightRecorder();
+        if (flightRecorder == null) {
+            return "Flight recorder is disabled";
+        }
+        if ("dump".equalsIgnoreCase(action)) {
+            return "Flight recorder is dumped to: " + flightRecorder.dump();
+        }
+        boolean slow = "slow".equalsIgnoreCase(action);
+        if (!slow && !"all".equalsIgnoreCase(action) && !"last".equalsIgnoreCase(action)) {
+            return "Unknown action: " + action + ". Use last, all, slow or dump";
+        }
+        List<FlightRecorder.Record> records = flightRecorder.getRecords();
+        if ("last".equalsIgnoreCase(action) && records.size() > LAST_RECORDS) {
+            records = records.subList(records.size() - LAST_RECORDS, records.size());
+        }
+        StringWriter writer = new StringWriter();
+        writer.write(String.format("recorder: %d invocations, %d slow (over %d ms), last %d kept",
+                flightRecorder.getRecorded(), flightRecorder.getSlow(), flightRecorder.getThreshold(),
+                flightRecorder.getCapacity()));
+        for (FlightRecorder.Record record : records) {
+            if (!slow || record.getDuration() >= TimeUnit.MILLISECONDS.toNanos(flightRecorder.getThreshold())) {
+                writer.write('\n');
+                writer.write(record.toString());
+                if (slow) {
+                    writer.write('\n');
+                    record.writeSamples(writer);
+                }
+            }
+        }
+        return writer.toString();
+    }
+
+    @Descriptor("print next page of truncated output")
+    public String more(CommandSession session) {
+        OutputChannels outputChannels = activator.getOutputChannels();
+        Object continuation = session.get(OutputChannels.CONTINUATION_VARIABLE);
+        if (outputChannels == null || continuation == null) {
+            return "No more output";
+        }
+        String output = continuation.toString();
+        int pageSize = outputChannels.getPageSize();
+        if (output.length() <= pageSize) {
+            session.put(OutputChannels.CONTINUATION_VARIABLE, null);
+            return output;
+        }
+        session.put(OutputChannels.CONTINUATION_VARIABLE, output.substring(pageSize));
+        return output.substring(0, pageSize) + String.format("%n-- %d characters are left, run equinox:more to continue --",
+                output.length() - pageSize);
+    }
+
+    private String format(List<CommandStatisticsSnapshot> snapshots) {
+        StringBuilder builder = new StringBuilder("statistics: ").append(statistics.isEnabled() ? "on" : "off");
+        CommandExecutor commandExecutor = activator.getCommandExecutor();
+        if (commandExecutor != null) {
+            builder.append(String.format("\nexecutor (%s): %d queued, %d executed, %d timed out, %d interrupted, %d rejected, %d abandoned",
+                    commandExecutor.isVirtual() ? "virtual threads" : "threads pool", commandExecutor.getQueued(),
+                    commandExecutor.getExecuted(), commandExecutor.getTimedOut(), commandExecutor.getInterrupted(),
+                    commandExecutor.getRejected(), commandExecutor.getAbandoned()));
+        }
+        ConcurrencyPolicies concurrencyPolicies = activator.getConcurrencyPolicies();
+        if (concurrencyPolicies != null) {
+            for (ConcurrencyPolicy.Contention contention : concurrencyPolicies.getContentions()) {
+                if (contention.getAcquired() > 0) {
+                    builder.append("\ncontention: ").append(contention);
+                }
+            }
+        }
+        ResultCache resultCache = activator.getResultCache();
+        if (resultCache != null) {
+            builder.append(String.format("\nresult cache: %d entries, %d hits, %d misses",
+                    resultCache.size(), resultCache.getHits(), resultCache.getMisses()));
+        }
+        BatchExecutor batchExecutor = activator.getBatchExecutor();
+        BatchServer batchServer = activator.getBatchServer();
+        if (batchExecutor != null && (batchExecutor.getBatches() > 0 || batchServer != null)) {
+            builder.append(String.format("\nbatch: %d batches, %d commands, %d errors", batchExecutor.getBatches(),
+                    batchExecutor.getCommands(), batchExecutor.getErrors()));
+            if (batchServer != null) {
+                builder.append(String.format(", %d connections on port %d", batchServer.getConnections(), batchServer.getPort()));
+            }
+        }
+        OutputChannels outputChannels = activator.getOutputChannels();
+        if (outputChannels != null) {
+            for (OutputChannels.Metrics metrics : outputChannels.getMetrics()) {
+                builder.append("\noutput ").append(metrics);
+            }
+        }
+        for (CommandStatisticsSnapshot snapshot : snapshots) {
+            if (snapshot.getCount() > 0) {
+                builder.append('\n').append(snapshot);
+            }
+        }
+        return builder.toString();
+    }
+
+    private String status(boolean ready) {
+        return String.format("%s: %d adapted, %d pending", ready ? "ready" : "not ready",
+                activator.getAdaptedCount(), activator.getPendingCount());
+    }
+}
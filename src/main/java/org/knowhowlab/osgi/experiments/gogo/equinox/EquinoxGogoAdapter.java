@@ -23,13 +23,26 @@ import org.osgi.framework.Bundle;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.net.URL;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.Dictionary;
 import java.util.Enumeration;
-import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,137 +61,1118 @@ public abstract class EquinoxGogoAdapter {
      * Equinox CommandProvider service instance
      */
     private CommandProvider provider;
+    /**
+     * Execution counters by command index or <code>null</code>
+     */
+    private CommandMetrics[] metrics;
+    /**
+     * Console output settings
+     */
+    private OutputSettings outputSettings = OutputSettings.DEFAULT;
+    /**
+     * Results cache of read-only commands or <code>null</code>
+     */
+    private ResultCache resultCache;
+    /**
+     * Executor of commands or <code>null</code> if commands are executed in session thread
+     */
+    private CommandExecutor commandExecutor;
+    /**
+     * Concurrency policy of provider or <code>null</code> if provider is fully concurrent
+     */
+    private ConcurrencyPolicy concurrencyPolicy;
+    /**
+     * Flight recorder of invocations or <code>null</code>
+     */
+    private FlightRecorder flightRecorder;
+    /**
+     * Bounded output channels or <code>null</code> if output is written to the session console directly
+     */
+    private OutputChannels outputChannels;
 
     public EquinoxGogoAdapter(CommandProvider provider) {
         this.provider = provider;
     }
 
+    /**
+     * Set execution counters. Must be called before adapter is registered
+     *
+     * @param metrics execution counters by command index
+     */
+    public void setMetrics(CommandMetrics[] metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get execution counters
+     *
+     * @return execution counters by command index or <code>null</code>
+     */
+    public CommandMetrics[] getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set console output settings. Must be called before adapter is registered
+     *
+     * @param outputSettings console output settings
+     */
+    public void setOutputSettings(OutputSettings outputSettings) {
+        this.outputSettings = outputSettings;
+    }
+
+    /**
+     * Set results cache of read-only commands. Must be called before adapter is registered
+     *
+     * @param resultCache results cache
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Set executor of commands. Must be called before adapter is registered
+     *
+     * @param commandExecutor executor of commands or <code>null</code> to execute commands in session thread
+     */
+    public void setCommandExecutor(CommandExecutor commandExecutor) {
+        this.commandExecutor = commandExecutor;
+    }
+
+    /**
+     * Set concurrency policy of provider. Must be called before adapter is registered
+     *
+     * @param concurrencyPolicy concurrency policy or <code>null</code> if provider is fully concurrent
+     */
+    public void setConcurrencyPolicy(ConcurrencyPolicy concurrencyPolicy) {
+        this.concurrencyPolicy = concurrencyPolicy;
+    }
+
+    /**
+     * Set flight recorder of invocations. Must be called before adapter is registered
+     *
+     * @param flightRecorder flight recorder or <code>null</code> to disable recording
+     */
+    public void setFlightRecorder(FlightRecorder flightRecorder) {
+        this.flightRecorder = flightRecorder;
+    }
+
+    /**
+     * Set bounded output channels. Must be called before adapter is registered
+     *
+     * @param outputChannels output channels or <code>null</code> to write output to the session console directly
+     */
+    public void setOutputChannels(OutputChannels outputChannels) {
+        this.outputChannels = outputChannels;
+    }
+
     /**
      * Run shell command without any return value
      *
      * @param commandSession GoGo CommandSession
      * @param args           command arguments
      * @param commandName    command name
+     * @param commandIndex   command index in generated adapter
+     */
+    protected void runCommand(CommandSession commandSession, String[] args, String commandName, int commandIndex) {
+        runCommandWithResult(commandSession, args, commandName, commandIndex);
+    }
+
+    /**
+     * Run shell command with a return value
+     *
+     * @param commandSession GoGo CommandSession
+     * @param args           command arguments
+     * @param commandName    command name
+     * @param commandIndex   command index in generated adapter
+     * @return result or <code>null</code> in case of error
      */
-    protected void runCommand(CommandSession commandSession, String[] args, String commandName) {
+    protected Object runCommandWithResult(final CommandSession commandSession, final String[] args,
+                                          final String commandName, final int commandIndex) {
+        if (commandExecutor == null) {
+            return runCommandInline(commandSession, args, commandName, commandIndex);
+        }
+        // command that ignores interruption must not write to console after prompt is returned
+        final DetachableCommandSession workerSession = commandSession != null ? new DetachableCommandSession(commandSession) : null;
         try {
-            // get method
-            Method method = provider.getClass().getMethod("_" + commandName, CommandInterpreter.class);
-            // invoke method
-            method.invoke(provider, new CommandInterpreterImpl(commandSession, args));
+            return commandExecutor.execute(commandName, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return runCommandInline(workerSession, args, commandName, commandIndex);
+                }
+            });
+        } catch (TimeoutException e) {
+            detach(workerSession);
+            fail(commandSession, commandName, String.format("Command %s is interrupted after %d ms timeout",
+                    commandName, commandExecutor.getTimeout(commandName)), null);
+        } catch (InterruptedException e) {
+            detach(workerSession);
+            Thread.currentThread().interrupt();
+            fail(commandSession, commandName, "Command is interrupted: " + commandName, null);
+        } catch (RejectedExecutionException e) {
+            fail(commandSession, commandName, "Too many running commands, command is rejected: " + commandName, null);
         } catch (Exception e) {
-            LOG.log(Level.WARNING, "Unable to execute shell command: " + commandName, e);
-            e.printStackTrace();
+            fail(commandSession, commandName, "Unable to execute shell command: " + commandName, e);
+        }
+        return null;
+    }
+
+    private static void detach(DetachableCommandSession commandSession) {
+        if (commandSession != null) {
+            commandSession.detach();
         }
     }
 
     /**
-     * Run shell command with a return value
+     * Run shell command in the current thread
      *
      * @param commandSession GoGo CommandSession
      * @param args           command arguments
      * @param commandName    command name
+     * @param commandIndex   command index in generated adapter
      * @return result or <code>null</code> in case of error
      */
-    protected Object runCommandWithResult(CommandSession commandSession, String[] args, String commandName) {
+    private Object runCommandInline(CommandSession commandSession, String[] args, String commandName, int commandIndex) {
+        boolean structured = outputSettings.isStructured(commandSession);
+        if (resultCache != null && resultCache.isCacheable(commandName)) {
+            return runCachedCommand(commandSession, args, commandName, commandIndex, structured);
+        }
+        InterpreterPool pool = InterpreterPool.get(commandSession);
+        CommandInterpreterImpl interpreter = acquireInterpreter(pool);
+        interpreter.reset(commandSession, args, outputSettings.getBufferSize(commandSession, commandName),
+                outputSettings.getFlushInterval(), structured);
+        interpreter.scheduleFlush(outputSettings.getFlusher());
+        if (outputChannels != null && !structured && commandSession != null) {
+            interpreter.setChannel(outputChannels.open(commandSession, commandName));
+        }
         try {
-            Method method = provider.getClass().getMethod("_" + commandName, CommandInterpreter.class);
-            return method.invoke(provider, new CommandInterpreterImpl(commandSession, args));
-        } catch (Exception e) {
-            LOG.log(Level.WARNING, "Unable to execute shell command: " + commandName, e);
-            e.printStackTrace();
+            return interpreter.getResult(execute(interpreter, commandName, commandIndex));
+        } catch (Throwable e) {
+            // keep output order of command and its error
+            interpreter.flush();
+            fail(commandSession, commandName, "Unable to execute shell command: " + commandName, e);
+            return interpreter.getResult(null);
+        } finally {
+            // flush command output
+            interpreter.close();
+            releaseInterpreter(pool, interpreter);
+        }
+    }
+
+    /**
+     * Run read-only shell command. Command output and result are cached until framework state is changed.
+     * On cache miss output is printed as command produces it and captured for replay. Results of commands
+     * that execute nested commands or return mutable objects are not cached
+     *
+     * @param commandSession GoGo CommandSession
+     * @param args           command arguments
+     * @param commandName    command name
+     * @param commandIndex   command index in generated adapter
+     * @param structured     output is captured as records
+     * @return result or <code>null</code> in case of error
+     */
+    private Object runCachedCommand(CommandSession commandSession, String[] args, String commandName, int commandIndex,
+                                    boolean structured) {
+        ResultCache.Key key = new ResultCache.Key(this, commandName, args, structured);
+        ResultCache.Result cached = resultCache.get(key);
+        if (cached != null) {
+            replay(commandSession, commandName, cached, structured);
+            return cached.getValue();
+        }
+        long generation = resultCache.getGeneration();
+        TrackingCommandSession trackingSession = commandSession != null ? new TrackingCommandSession(commandSession) : null;
+        StringBuilder capture = new StringBuilder();
+        InterpreterPool pool = InterpreterPool.get(commandSession);
+        CommandInterpreterImpl interpreter = acquireInterpreter(pool);
+        interpreter.reset(trackingSession, args, 0, 0, structured);
+        interpreter.setCapture(capture);
+        if (outputChannels != null && !structured && commandSession != null) {
+            interpreter.setChannel(outputChannels.open(commandSession, commandName));
+        }
+        Object value;
+        Object result;
+        try {
+            value = execute(interpreter, commandName, commandIndex);
+            result = interpreter.getResult(value);
+        } catch (Throwable e) {
+            // keep output order of command and its error
+            interpreter.flush();
+            fail(commandSession, commandName, "Unable to execute shell command: " + commandName, e);
+            return interpreter.getResult(null);
+        } finally {
+            interpreter.close();
+            releaseInterpreter(pool, interpreter);
+        }
+        if ((trackingSession == null || !trackingSession.isNested()) && ResultCache.isShareable(value)) {
+            resultCache.put(key, new ResultCache.Result(capture.toString(), result), generation);
+        }
+        return result;
+    }
+
+    /**
+     * Print captured output of command through output channel, so cached output has the same limits
+     * as command output
+     *
+     * @param commandSession GoGo CommandSession
+     * @param commandName    command name
+     * @param cached         captured output and result
+     * @param structured     output is captured as records
+     */
+    private void replay(CommandSession commandSession, String commandName, ResultCache.Result cached, boolean structured) {
+        String output = cached.getOutput();
+        if (output.length() == 0 || commandSession == null) {
+            return;
+        }
+        if (outputChannels != null && !structured) {
+            OutputChannel channel = outputChannels.open(commandSession, commandName);
+            try {
+                channel.write(output);
+            } finally {
+                channel.close();
+            }
+        } else {
+            PrintStream console = commandSession.getConsole();
+            console.print(output);
+            console.flush();
+        }
+    }
+
+    /**
+     * Execute shell command according to provider concurrency policy
+     *
+     * @param interpreter  command interpreter
+     * @param commandName  command name
+     * @param commandIndex command index in generated adapter
+     * @return command result
+     * @throws Throwable command execution error
+     */
+    private Object execute(CommandInterpreterImpl interpreter, String commandName, int commandIndex) throws Throwable {
+        ConcurrencyPolicy policy = concurrencyPolicy;
+        if (policy == null) {
+            return executeWithMetrics(interpreter, commandName, commandIndex);
+        }
+        policy.acquire(commandIndex);
+        try {
+            return executeWithMetrics(interpreter, commandName, commandIndex);
+        } finally {
+            policy.release(commandIndex);
+        }
+    }
+
+    /**
+     * Execute shell command and record its statistics and invocation
+     *
+     * @param interpreter  command interpreter
+     * @param commandName  command name
+     * @param commandIndex command index in generated adapter
+     * @return command result
+     * @throws Throwable command execution error
+     */
+    private Object executeWithMetrics(CommandInterpreterImpl interpreter, String commandName, int commandIndex)
+            throws Throwable {
+        CommandMetrics commandMetrics = getMetrics(commandIndex);
+        FlightRecorder recorder = flightRecorder;
+        // statistics and recorder share time measurement
+        long start = commandMetrics != null || recorder != null ? System.nanoTime() : 0;
+        FlightRecorder.Invocation invocation = recorder != null ? recorder.begin(commandName, start) : null;
+        Throwable error = null;
+        try {
+            return invokeCommand(commandIndex, commandName, interpreter);
+        } catch (Throwable e) {
+            error = e;
+            throw e;
+        } finally {
+            long end = start != 0 ? System.nanoTime() : 0;
+            if (commandMetrics != null) {
+                commandMetrics.record(end - start, error != null);
+            }
+            if (invocation != null) {
+                recorder.end(invocation, end, interpreter.args, interpreter.commandSession, interpreter.outputSize, error);
+            }
+        }
+    }
+
+    private static CommandInterpreterImpl acquireInterpreter(InterpreterPool pool) {
+        return pool != null ? pool.acquire() : new CommandInterpreterImpl();
+    }
+
+    private static void releaseInterpreter(InterpreterPool pool, CommandInterpreterImpl interpreter) {
+        if (pool != null) {
+            pool.release(interpreter);
+        }
+    }
+
+    /**
+     * Report failed command: log it, print error to session console and notify session
+     * if it is {@link FailureListener}
+     *
+     * @param commandSession GoGo CommandSession or <code>null</code>
+     * @param commandName    command name
+     * @param message        error message
+     * @param error          error or <code>null</code>
+     */
+    static void fail(CommandSession commandSession, String commandName, String message, Throwable error) {
+        LOG.log(Level.WARNING, message, error);
+        if (commandSession == null) {
+            return;
+        }
+        PrintStream console = commandSession.getConsole();
+        console.println(message);
+        if (error != null) {
+            error.printStackTrace(console);
+        }
+        console.flush();
+        if (commandSession instanceof FailureListener) {
+            ((FailureListener) commandSession).failed(commandName, error);
+        }
+    }
+
+    /**
+     * Get execution counters of command if statistics are enabled
+     *
+     * @param commandIndex command index in generated adapter
+     * @return execution counters or <code>null</code>
+     */
+    private CommandMetrics getMetrics(int commandIndex) {
+        if (metrics == null || commandIndex < 0 || commandIndex >= metrics.length) {
             return null;
         }
+        CommandMetrics commandMetrics = metrics[commandIndex];
+        return commandMetrics.isEnabled() ? commandMetrics : null;
     }
 
     /**
-     * Implementation of Equinox CommandInterpreter
+     * Invoke CommandProvider command method. Generated adapters override this method
+     * with direct calls to the provider. Reflection is used only if provider class is not
+     * accessible from generated code.
+     *
+     * @param commandIndex command index in generated adapter
+     * @param commandName  command name
+     * @param interpreter  command interpreter
+     * @return command result or <code>null</code>
+     * @throws Exception command execution error
+     */
+    protected Object invokeCommand(int commandIndex, String commandName, CommandInterpreter interpreter) throws Exception {
+        // get method
+        Method method = provider.getClass().getMethod("_" + commandName, CommandInterpreter.class);
+        // invoke method
+        return method.invoke(provider, interpreter);
+    }
+
+    /**
+     * CommandSession that is notified about failed commands. Adapters handle command errors
+     * and return <code>null</code>, so callers could not tell failed command from command without result
+     */
+    interface FailureListener {
+        /**
+         * Command is failed, timed out or rejected
+         *
+         * @param commandName command name
+         * @param error       error or <code>null</code>
+         */
+        void failed(String commandName, Throwable error);
+    }
+
+    /**
+     * CommandSession of cached command that tracks nested commands execution
+     */
+    private static class TrackingCommandSession implements CommandSession {
+        private final CommandSession commandSession;
+        /**
+         * Nested command is executed
+         */
+        private volatile boolean nested;
+
+        private TrackingCommandSession(CommandSession commandSession) {
+            this.commandSession = commandSession;
+        }
+
+        public Object execute(CharSequence commandline) throws Exception {
+            nested = true;
+            return commandSession.execute(commandline);
+        }
+
+        public void close() {
+            commandSession.close();
+        }
+
+        public InputStream getKeyboard() {
+            return commandSession.getKeyboard();
+        }
+
+        public PrintStream getConsole() {
+            return commandSession.getConsole();
+        }
+
+        public Object get(String name) {
+            return commandSession.get(name);
+        }
+
+        public void put(String name, Object value) {
+            commandSession.put(name, value);
+        }
+
+        public CharSequence format(Object target, int level) {
+            return commandSession.format(target, level);
+        }
+
+        public Object convert(Class<?> type, Object instance) {
+            return commandSession.convert(type, instance);
+        }
+
+        /**
+         * Check if nested command is executed in session
+         *
+         * @return <code>true</code> if nested command is executed
+         */
+        public boolean isNested() {
+            return nested;
+        }
+    }
+
+    /**
+     * CommandSession of command that is executed by commands executor. Session is detached when session thread
+     * stops waiting for command, after that command output is discarded and nested commands are not executed
+     */
+    private static class DetachableCommandSession implements CommandSession, FailureListener {
+        private final CommandSession commandSession;
+        private final PrintStream console;
+        private volatile boolean detached;
+
+        private DetachableCommandSession(final CommandSession commandSession) {
+            this.commandSession = commandSession;
+            console = new PrintStream(new OutputStream() {
+                public void write(int b) {
+                    if (!detached) {
+                        commandSession.getConsole().write(b);
+                    }
+                }
+
+                public void write(byte[] b, int off, int len) {
+                    if (!detached) {
+                        commandSession.getConsole().write(b, off, len);
+                    }
+                }
+
+                public void flush() {
+                    if (!detached) {
+                        commandSession.getConsole().flush();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Discard further output of command
+         */
+        public void detach() {
+            detached = true;
+        }
+
+        public Object execute(CharSequence commandline) throws Exception {
+            if (detached) {
+                throw new IllegalStateException("Command session is detached: " + commandline);
+            }
+            return commandSession.execute(commandline);
+        }
+
+        public void close() {
+            commandSession.close();
+        }
+
+        public InputStream getKeyboard() {
+            return commandSession.getKeyboard();
+        }
+
+        public PrintStream getConsole() {
+            return console;
+        }
+
+        public Object get(String name) {
+            return commandSession.get(name);
+        }
+
+        public void put(String name, Object value) {
+            commandSession.put(name, value);
+        }
+
+        public CharSequence format(Object target, int level) {
+            return commandSession.format(target, level);
+        }
+
+        public Object convert(Class<?> type, Object instance) {
+            return commandSession.convert(type, instance);
+        }
+
+        public void failed(String commandName, Throwable error) {
+            if (!detached && commandSession instanceof FailureListener) {
+                ((FailureListener) commandSession).failed(commandName, error);
+            }
+        }
+    }
+
+    /**
+     * Implementation of Equinox CommandInterpreter. Output could be collected in a buffer that is flushed
+     * to the session console when it is full, before nested commands, on {@link #flush()} and on command completion
      *
      * @author dmytro.pishchukhin
      */
     public static class CommandInterpreterImpl implements CommandInterpreter {
-        private final CommandSession commandSession;
-        private Iterator<String> argsIterator;
+        /**
+         * Max capacity of output buffer that is reused by the next command in the same thread
+         */
+        private static final int MAX_REUSABLE_CAPACITY = 64 * 1024;
+        /**
+         * Output buffer that is reused by commands of the thread
+         */
+        private static final ThreadLocal<StringBuilder> REUSABLE_BUFFER = new ThreadLocal<StringBuilder>();
+        /**
+         * Line separator
+         */
+        private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+        /**
+         * Resources copy buffer that is reused by commands of the thread
+         */
+        private static final ThreadLocal<byte[]> COPY_BUFFER = new ThreadLocal<byte[]>() {
+            protected byte[] initialValue() {
+                return new byte[64 * 1024];
+            }
+        };
+
+        private CommandSession commandSession;
+        /**
+         * Command arguments
+         */
+        private String[] args;
+        /**
+         * Index of the next argument
+         */
+        private int argIndex;
+        /**
+         * Output buffer or <code>null</code> if output is not buffered
+         */
+        private StringBuilder buffer;
+        /**
+         * Output buffer size
+         */
+        private int bufferSize;
+        /**
+         * Max time in nanoseconds between output flushes, <code>0</code> if there is no time-based flush
+         */
+        private long flushInterval;
+        /**
+         * Time of the last flush in nanoseconds
+         */
+        private long lastFlush;
+        /**
+         * Captured output records in structured mode or <code>null</code>
+         */
+        private StructuredOutput structuredOutput;
+        /**
+         * Number of written characters and bytes of printed resources
+         */
+        private long outputSize;
+        /**
+         * Bounded output channel or <code>null</code> if output is written to the session console directly
+         */
+        private OutputChannel channel;
+        /**
+         * Copy of printed output for result cache or <code>null</code>
+         */
+        private StringBuilder capture;
+        /**
+         * Scheduled time-based flush or <code>null</code>
+         */
+        private Future<?> flushTask;
+
+        /**
+         * Create interpreter that is initialized later by {@link #reset}
+         */
+        CommandInterpreterImpl() {
+        }
 
         public CommandInterpreterImpl(CommandSession commandSession, String[] args) {
+            this(commandSession, args, 0, 0);
+        }
+
+        public CommandInterpreterImpl(CommandSession commandSession, String[] args, int bufferSize, long flushInterval) {
+            this(commandSession, args, bufferSize, flushInterval, false);
+        }
+
+        /**
+         * Create command interpreter
+         *
+         * @param commandSession GoGo CommandSession
+         * @param args           command arguments
+         * @param bufferSize     output buffer size in characters, <code>0</code> for unbuffered output
+         * @param flushInterval  max time in milliseconds between output flushes, <code>0</code> to disable
+         * @param structured     capture output as records instead of printing it
+         */
+        public CommandInterpreterImpl(CommandSession commandSession, String[] args, int bufferSize, long flushInterval,
+                                      boolean structured) {
+            reset(commandSession, args, bufferSize, flushInterval, structured);
+        }
+
+        /**
+         * Prepare interpreter for the next command. Interpreter must be closed before it is reset
+         *
+         * @param commandSession GoGo CommandSession
+         * @param args           command arguments
+         * @param bufferSize     output buffer size in characters, <code>0</code> for unbuffered output
+         * @param flushInterval  max time in milliseconds between output flushes, <code>0</code> to disable
+         * @param structured     capture output as records instead of printing it
+         */
+        void reset(CommandSession commandSession, String[] args, int bufferSize, long flushInterval, boolean structured) {
             this.commandSession = commandSession;
-            argsIterator = Arrays.asList(args).iterator();
+            this.args = args;
+            argIndex = 0;
+            outputSize = 0;
+            capture = null;
+            if (structured) {
+                structuredOutput = new StructuredOutput();
+            } else {
+                structuredOutput = null;
+            }
+            this.bufferSize = bufferSize;
+            this.flushInterval = flushInterval * 1000000L;
+            if (bufferSize > 0) {
+                // nested commands of the same thread allocate own buffer
+                buffer = REUSABLE_BUFFER.get();
+                REUSABLE_BUFFER.set(null);
+                if (buffer == null) {
+                    buffer = new StringBuilder(Math.min(bufferSize, MAX_REUSABLE_CAPACITY));
+                }
+                if (flushInterval > 0) {
+                    lastFlush = System.nanoTime();
+                }
+            }
+        }
+
+        /**
+         * Flush buffered output by scheduler, so output of blocked command is not delayed longer than
+         * flush interval. Scheduled flush is cancelled when interpreter is closed
+         *
+         * @param flusher scheduler of time-based flushes or <code>null</code>
+         */
+        void scheduleFlush(ScheduledExecutorService flusher) {
+            if (flusher == null || buffer == null || flushInterval <= 0) {
+                return;
+            }
+            try {
+                flushTask = flusher.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        flushIfDue();
+                    }
+                }, flushInterval, flushInterval, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // scheduler is stopped - output is flushed by writes
+            }
+        }
+
+        /**
+         * Write output through bounded output channel. Channel is closed with interpreter
+         *
+         * @param channel output channel or <code>null</code>
+         */
+        void setChannel(OutputChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Copy printed output, so it could be replayed from result cache
+         *
+         * @param capture output copy or <code>null</code>
+         */
+        void setCapture(StringBuilder capture) {
+            this.capture = capture;
         }
 
         public String nextArgument() {
-            if (argsIterator.hasNext()) {
-                return argsIterator.next();
+            if (args != null && argIndex < args.length) {
+                return args[argIndex++];
             }
             return null;
         }
 
         public Object execute(String cmd) {
+            // keep output order of this and nested command
+            flush();
             try {
                 return commandSession.execute(cmd);
             } catch (Exception e) {
-                e.printStackTrace(commandSession.getConsole());
+                printStackTrace(e);
                 return null;
             }
         }
 
         public void print(Object o) {
-            commandSession.getConsole().print(o);
+            write(String.valueOf(o));
         }
 
         public void println() {
-            commandSession.getConsole().println();
+            write(LINE_SEPARATOR);
         }
 
         public void println(Object o) {
-            commandSession.getConsole().println(o);
+            write(String.valueOf(o));
+            write(LINE_SEPARATOR);
         }
 
         public void printStackTrace(Throwable t) {
-            t.printStackTrace(commandSession.getConsole());
+            StringWriter trace = new StringWriter();
+            t.printStackTrace(new PrintWriter(trace));
+            write(trace.toString());
         }
 
         public void printDictionary(Dictionary dic, String title) {
-            PrintStream console = commandSession.getConsole();
-            console.println(title);
+            if (structuredOutput != null) {
+                if (dic != null) {
+                    Enumeration<?> keys = dic.keys();
+                    while (keys.hasMoreElements()) {
+                        Object key = keys.nextElement();
+                        structuredOutput.addRecord(new StructuredOutput.Entry(title, key, dic.get(key)));
+                    }
+                }
+                return;
+            }
+            println(title);
             if (dic != null) {
-                Enumeration keys = dic.elements();
+                Enumeration<?> keys = dic.keys();
                 while (keys.hasMoreElements()) {
                     Object key = keys.nextElement();
-                    console.printf("%s = %s", key, dic.get(key));
+                    println(String.format("%s = %s", key, dic.get(key)));
+                }
+            }
+        }
+
+        /**
+         * Write buffered output to the session console. If output channel is used, waits until
+         * the console takes all output
+         */
+        public void flush() {
+            flushBuffer();
+            if (channel != null) {
+                channel.flush();
+            }
+        }
+
+        /**
+         * Write buffered output if flush interval is over
+         */
+        private synchronized void flushIfDue() {
+            if (buffer != null && System.nanoTime() - lastFlush >= flushInterval) {
+                flushBuffer();
+            }
+        }
+
+        /**
+         * Write buffered output to the output channel or to the session console. Synchronized with
+         * scheduled flush
+         */
+        private synchronized void flushBuffer() {
+            if (buffer != null && buffer.length() > 0) {
+                if (channel != null) {
+                    channel.write(buffer);
+                } else {
+                    PrintStream console = commandSession.getConsole();
+                    console.print(buffer);
+                    console.flush();
+                }
+                buffer.setLength(0);
+            }
+            if (flushInterval > 0) {
+                lastFlush = System.nanoTime();
+            }
+        }
+
+        /**
+         * Get command result. In structured mode captured output records are returned with command
+         * result as the last record
+         *
+         * @param result command result
+         * @return command result or captured output records in structured mode
+         */
+        public Object getResult(Object result) {
+            if (structuredOutput == null) {
+                return result;
+            }
+            completeLine();
+            if (result != null) {
+                structuredOutput.addRecord(result);
+            }
+            return structuredOutput;
+        }
+
+        /**
+         * Flush output and release output buffer. Interpreter output is not buffered after this call
+         */
+        public void close() {
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            completeLine();
+            flush();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            synchronized (this) {
+                // running scheduled flush could still use buffer
+                if (buffer != null) {
+                    if (buffer.capacity() <= MAX_REUSABLE_CAPACITY) {
+                        REUSABLE_BUFFER.set(buffer);
+                    }
+                    buffer = null;
+                }
+            }
+            args = null;
+            capture = null;
+            structuredOutput = null;
+        }
+
+        /**
+         * Write output to the buffer or to the console if output is not buffered
+         *
+         * @param s output
+         */
+        private void write(String s) {
+            outputSize += s.length();
+            if (structuredOutput != null) {
+                structuredOutput.append(s);
+                return;
+            }
+            if (capture != null) {
+                capture.append(s);
+            }
+            if (buffer == null) {
+                if (channel != null) {
+                    channel.write(s);
+                } else {
+                    commandSession.getConsole().print(s);
+                }
+                return;
+            }
+            synchronized (this) {
+                buffer.append(s);
+                if (buffer.length() >= bufferSize
+                        || (flushInterval > 0 && System.nanoTime() - lastFlush >= flushInterval)) {
+                    flushBuffer();
                 }
             }
         }
 
+        /**
+         * Print bundle resource range that is set by session resource offset and limit variables
+         *
+         * @param bundle   bundle
+         * @param resource resource path
+         */
         public void printBundleResource(Bundle bundle, String resource) {
+            long offset;
+            long limit;
+            try {
+                offset = getResourceRange(OutputSettings.SESSION_RESOURCE_OFFSET_VARIABLE, 0);
+                limit = getResourceRange(OutputSettings.SESSION_RESOURCE_LIMIT_VARIABLE, -1);
+            } catch (NumberFormatException e) {
+                println("Invalid resource range: " + e.getMessage());
+                return;
+            }
+            printBundleResource(bundle, resource, offset, limit);
+        }
+
+        /**
+         * Print part of bundle resource. Resource is decoded in chunks with session resource encoding or platform
+         * default encoding and printed through the console or output channel, so it is transcoded to the console
+         * encoding and is never loaded into memory. Characters that are cut by offset or limit are skipped
+         *
+         * @param bundle   bundle
+         * @param resource resource path
+         * @param offset   number of bytes to skip
+         * @param limit    max number of bytes to print, <code>-1</code> for unlimited
+         */
+        public void printBundleResource(Bundle bundle, String resource, long offset, long limit) {
+            if (structuredOutput != null) {
+                structuredOutput.addRecord(new StructuredOutput.Resource(bundle, resource));
+                return;
+            }
             URL entry = bundle.getEntry(resource);
             if (entry != null) {
                 try {
                     println(resource);
+                    // keep output order of buffered and streamed output
+                    flush();
                     InputStream in = entry.openStream();
-                    byte[] buffer = new byte[1024];
-                    int read;
                     try {
-                        while ((read = in.read(buffer)) != -1) {
-                            print(new String(buffer, 0, read));
-                        }
+                        outputSize += copy(in, offset, limit);
                     } finally {
-                        if (in != null) {
-                            try {
-                                in.close();
-                            } catch (IOException e) {
-                                // ignore
-                            }
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            // ignore
                         }
                     }
+                    if (channel == null) {
+                        commandSession.getConsole().flush();
+                    }
                 } catch (Exception e) {
-                    PrintStream console = commandSession.getConsole();
-                    console.println("Error reading resource: " + resource);
-                    e.printStackTrace(console);
+                    println("Error reading resource: " + resource);
+                    printStackTrace(e);
                 }
             } else {
-                PrintStream console = commandSession.getConsole();
-                console.println("Unknown resource: " + resource);
+                println("Unknown resource: " + resource);
+            }
+        }
+
+        /**
+         * Capture incomplete output line in structured mode
+         */
+        private void completeLine() {
+            if (structuredOutput != null) {
+                structuredOutput.completeLine();
+            }
+        }
+
+        /**
+         * Decode stream range and print it
+         *
+         * @param in     input stream
+         * @param offset number of bytes to skip
+         * @param limit  max number of bytes to copy, <code>-1</code> for unlimited
+         * @return number of printed characters
+         * @throws IOException unable to copy
+         */
+        private long copy(InputStream in, long offset, long limit) throws IOException {
+            if (!skip(in, offset)) {
+                return 0;
+            }
+            CharsetDecoder decoder = getResourceEncoding().newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+            byte[] bytes = COPY_BUFFER.get();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, 0);
+            CharBuffer chars = CharBuffer.allocate(8192);
+            long remaining = limit < 0 ? Long.MAX_VALUE : limit;
+            long written = 0;
+            while (remaining > 0) {
+                // keep incomplete character from previous read
+                buffer.compact();
+                int read = in.read(bytes, buffer.position(), (int) Math.min(buffer.remaining(), remaining));
+                if (read == -1) {
+                    buffer.flip();
+                    break;
+                }
+                buffer.position(buffer.position() + read);
+                buffer.flip();
+                remaining -= read;
+                // character at the start could be cut by offset
+                written += decode(decoder, buffer, chars, false, offset > 0 && written == 0);
+            }
+            if (limit >= 0 && remaining == 0) {
+                // incomplete character at the end is cut by limit
+                buffer.position(buffer.limit());
+            }
+            written += decode(decoder, buffer, chars, true, false);
+            decoder.flush(chars);
+            return written + print(chars);
+        }
+
+        /**
+         * Get bundle resource range value
+         *
+         * @param name         session variable name
+         * @param defaultValue value if session variable is not set
+         * @return range value
+         * @throws NumberFormatException session variable is not a number
+         */
+        private long getResourceRange(String name, long defaultValue) {
+            Object value = commandSession.get(name);
+            return value != null ? Long.parseLong(value.toString().trim()) : defaultValue;
+        }
+
+        /**
+         * Get encoding of bundle resources
+         *
+         * @return session resource encoding or platform default encoding
+         */
+        private Charset getResourceEncoding() {
+            Object encoding = commandSession.get(OutputSettings.SESSION_RESOURCE_ENCODING_VARIABLE);
+            return encoding != null ? Charset.forName(encoding.toString()) : Charset.defaultCharset();
+        }
+
+        /**
+         * Decode bytes and print characters
+         *
+         * @param decoder     decoder
+         * @param buffer      bytes
+         * @param chars       characters buffer
+         * @param endOfInput  no more bytes
+         * @param skipLeading skip malformed input before the first decoded character
+         * @return number of printed characters
+         */
+        private int decode(CharsetDecoder decoder, ByteBuffer buffer, CharBuffer chars, boolean endOfInput,
+                           boolean skipLeading) {
+            int written = 0;
+            while (true) {
+                CoderResult result = decoder.decode(buffer, chars, endOfInput);
+                if (result.isError()) {
+                    buffer.position(buffer.position() + result.length());
+                    if (!skipLeading || written > 0 || chars.position() > 0) {
+                        if (!chars.hasRemaining()) {
+                            written += print(chars);
+                        }
+                        chars.put(decoder.replacement());
+                    }
+                } else if (result.isOverflow()) {
+                    written += print(chars);
+                } else {
+                    return written;
+                }
+            }
+        }
+
+        /**
+         * Print decoded characters and clear buffer
+         *
+         * @param chars characters buffer
+         * @return number of printed characters
+         */
+        private int print(CharBuffer chars) {
+            chars.flip();
+            int length = chars.length();
+            if (length > 0) {
+                if (capture != null) {
+                    capture.append(chars);
+                }
+                if (channel != null) {
+                    channel.write(chars);
+                } else {
+                    commandSession.getConsole().append(chars);
+                }
+            }
+            chars.clear();
+            return length;
+        }
+
+        /**
+         * Skip stream bytes
+         *
+         * @param in     input stream
+         * @param offset number of bytes to skip
+         * @return <code>false</code> if end of stream is reached
+         * @throws IOException unable to skip
+         */
+        private static boolean skip(InputStream in, long offset) throws IOException {
+            while (offset > 0) {
+                long skipped = in.skip(offset);
+                if (skipped <= 0) {
+                    // skip is not supported or end of stream
+                    if (in.read() == -1) {
+                        return false;
+                    }
+                    skipped = 1;
+                }
+                offset -= skipped;
             }
+            return true;
         }
     }
 }
@@ -0,0 +1,559 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Flight recorder of adapted commands. Last invocations are kept in a ring buffer of immutable records that is
+ * written without locks. Stacks of invocations that run longer than threshold are sampled by background thread.
+ * Buffer is dumped to a file on demand and after slow invocations
+ *
+ * @author dmytro.pishchukhin
+ */
+public class FlightRecorder {
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(FlightRecorder.class.getName());
+
+    /**
+     * Max number of stack samples of invocation
+     */
+    private static final int MAX_SAMPLES = 8;
+    /**
+     * Max number of dump files
+     */
+    private static final int MAX_DUMPS = 10;
+    /**
+     * Min time in milliseconds between automatic dumps
+     */
+    private static final long DUMP_INTERVAL = 60000;
+    /**
+     * Dump file prefix
+     */
+    private static final String DUMP_PREFIX = "recorder-";
+    /**
+     * Dump file extension
+     */
+    private static final String DUMP_EXTENSION = ".txt";
+
+    /**
+     * Ring buffer of published records
+     */
+    private final AtomicReferenceArray<Record> slots;
+    /**
+     * Sequence of the next invocation record
+     */
+    private final AtomicLong sequence = new AtomicLong();
+    /**
+     * Number of slow invocations
+     */
+    private final AtomicLong slow = new AtomicLong();
+    /**
+     * Slow invocation threshold in nanoseconds
+     */
+    private final long threshold;
+    /**
+     * Dumps directory or <code>null</code> if dumps are disabled
+     */
+    private final File directory;
+    /**
+     * Wall clock time in milliseconds of {@link #baseNanos}, records timestamps are calculated from them
+     */
+    private final long baseTime = System.currentTimeMillis();
+    /**
+     * Recorder creation time in nanoseconds
+     */
+    private final long baseNanos = System.nanoTime();
+    /**
+     * Invocation of the thread
+     */
+    private final ThreadLocal<Invocation> invocations = new ThreadLocal<Invocation>();
+    /**
+     * Invocations of live threads that are watched by sampler
+     */
+    private final ConcurrentLinkedQueue<Invocation> watched = new ConcurrentLinkedQueue<Invocation>();
+    /**
+     * Automatic dump is requested by slow invocation
+     */
+    private volatile boolean dumpRequested;
+    /**
+     * Time of the last automatic dump
+     */
+    private long lastDump;
+    /**
+     * Stacks sampler or <code>null</code> if recorder is not started
+     */
+    private ScheduledExecutorService sampler;
+
+    /**
+     * Create flight recorder
+     *
+     * @param capacity  number of recorded invocations, rounded up to power of two
+     * @param threshold slow invocation threshold in milliseconds
+     * @param directory dumps directory or <code>null</code> to disable dumps
+     */
+    public FlightRecorder(int capacity, long threshold, File directory) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<Record>(size);
+        this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+        this.directory = directory;
+    }
+
+    /**
+     * Start stacks sampler and automatic dumps
+     */
+    public synchronized void start() {
+        if (sampler != null) {
+            return;
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Equinox GoGo flight recorder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.min(1000, Math.max(10, TimeUnit.NANOSECONDS.toMillis(threshold) / 4));
+        sampler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sample();
+                if (dumpRequested) {
+                    dumpRequested();
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop stacks sampler
+     */
+    public synchronized void stop() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+        watched.clear();
+    }
+
+    /**
+     * Start invocation in the current thread
+     *
+     * @param command command name
+     * @param start   start time from {@link System#nanoTime()}
+     * @return invocation that must be passed to {@link #end}
+     */
+    public Invocation begin(String command, long start) {
+        Invocation invocation = invocations.get();
+        if (invocation == null) {
+            invocation = new Invocation(Thread.currentThread());
+            invocations.set(invocation);
+            watched.add(invocation);
+        } else if (invocation.start != 0) {
+            // nested command of the same thread is not sampled
+            invocation = new Invocation(null);
+        }
+        invocation.command = command;
+        invocation.start = start;
+        return invocation;
+    }
+
+    /**
+     * Record finished invocation
+     *
+     * @param invocation     invocation
+     * @param end            end time from {@link System#nanoTime()}
+     * @param args           command arguments
+     * @param commandSession GoGo CommandSession or <code>null</code>
+     * @param outputSize     command output size in characters
+     * @param error          command error or <code>null</code>
+     */
+    public void end(Invocation invocation, long end, String[] args, CommandSession commandSession, long outputSize,
+                    Throwable error) {
+        long start = invocation.start;
+        long duration = end - start;
+        StackTraceElement[][] samples = null;
+        if (invocation.thread != null) {
+            // sampler could add a sample until invocation is finished, even to a fast invocation
+            synchronized (invocation) {
+                invocation.id++;
+                if (invocation.samplesCount > 0) {
+                    if (duration >= threshold) {
+                        samples = new StackTraceElement[invocation.samplesCount][];
+                        System.arraycopy(invocation.samples, 0, samples, 0, invocation.samplesCount);
+                    }
+                    Arrays.fill(invocation.samples, null);
+                    invocation.samplesCount = 0;
+                }
+                invocation.start = 0;
+            }
+        }
+        if (duration >= threshold) {
+            slow.incrementAndGet();
+            dumpRequested = directory != null;
+        }
+
+        long seq = sequence.getAndIncrement();
+        Record record = new Record(seq, invocation.command, args,
+                commandSession != null ? System.identityHashCode(commandSession) : 0,
+                invocation.thread != null ? invocation.threadName : Thread.currentThread().getName(),
+                baseTime + TimeUnit.NANOSECONDS.toMillis(start - baseNanos), duration, outputSize,
+                error != null ? error.getClass().getName() : null, samples);
+        int index = (int) (seq & (slots.length() - 1));
+        Record current;
+        do {
+            current = slots.get(index);
+            if (current != null && current.seq > seq) {
+                // slow writer is lapped by a newer record
+                return;
+            }
+        } while (!slots.compareAndSet(index, current, record));
+    }
+
+    /**
+     * Get recorded invocations. Records that are overwritten during this call are skipped
+     *
+     * @return records from the oldest to the newest
+     */
+    public List<Record> getRecords() {
+        long next = sequence.get();
+        List<Record> records = new ArrayList<Record>();
+        for (long seq = Math.max(0, next - slots.length()); seq < next; seq++) {
+            Record record = slots.get((int) (seq & (slots.length() - 1)));
+            // slot could keep an older record that is not overwritten yet or a newer one
+            if (record != null && record.seq == seq) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Get number of recorded invocations
+     *
+     * @return number of invocations
+     */
+    public long getRecorded() {
+        return sequence.get();
+    }
+
+    /**
+     * Get number of slow invocations
+     *
+     * @return number of invocations that run longer than threshold
+     */
+    public long getSlow() {
+        return slow.get();
+    }
+
+    /**
+     * Get max number of kept records
+     *
+     * @return ring buffer capacity
+     */
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * Get slow invocation threshold
+     *
+     * @return threshold in milliseconds
+     */
+    public long getThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(threshold);
+    }
+
+    /**
+     * Dump recorded invocations to a new file. Only last dumps are kept
+     *
+     * @return dump file
+     * @throws IOException unable to write dump or dumps are disabled
+     */
+    public synchronized File dump() throws IOException {
+        if (directory == null) {
+            throw new IOException("Flight recorder dumps are disabled");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create flight recorder directory: " + directory);
+        }
+        File file = new File(directory, DUMP_PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date())
+                + DUMP_EXTENSION);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (Record record : getRecords()) {
+                writer.write(record.toString());
+                writer.write('\n');
+                record.writeSamples(writer);
+            }
+        } finally {
+            writer.close();
+        }
+        removeOldDumps();
+        return file;
+    }
+
+    /**
+     * Sample stacks of invocations that run longer than threshold
+     */
+    private void sample() {
+        long now = System.nanoTime();
+        Iterator<Invocation> iterator = watched.iterator();
+        while (iterator.hasNext()) {
+            Invocation invocation = iterator.next();
+            if (!invocation.thread.isAlive()) {
+                iterator.remove();
+                continue;
+            }
+            long start = invocation.start;
+            if (start == 0 || now - start < threshold || invocation.samplesCount >= MAX_SAMPLES) {
+                continue;
+            }
+            long id = invocation.id;
+            StackTraceElement[] stackTrace = invocation.thread.getStackTrace();
+            synchronized (invocation) {
+                // invocation is not finished during sampling
+                if (invocation.id == id && invocation.start == start && invocation.samplesCount < MAX_SAMPLES) {
+                    invocation.samples[invocation.samplesCount++] = stackTrace;
+                }
+            }
+        }
+    }
+
+    /**
+     * Dump records after slow invocation if the last automatic dump is old enough
+     */
+    private void dumpRequested() {
+        long now = System.currentTimeMillis();
+        if (now - lastDump < DUMP_INTERVAL) {
+            return;
+        }
+        dumpRequested = false;
+        lastDump = now;
+        try {
+            File file = dump();
+            LOG.log(Level.INFO, "Slow commands are recorded to: " + file);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to dump flight recorder", e);
+        }
+    }
+
+    private void removeOldDumps() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(DUMP_PREFIX) && name.endsWith(DUMP_EXTENSION);
+            }
+        });
+        if (files != null && files.length > MAX_DUMPS) {
+            // names are ordered by time
+            Arrays.sort(files);
+            for (int i = 0; i < files.length - MAX_DUMPS; i++) {
+                files[i].delete();
+            }
+        }
+    }
+
+    /**
+     * Running invocation. Invocation of thread is reused by the next command of the same thread
+     */
+    public static class Invocation {
+        /**
+         * Invocation thread or <code>null</code> if invocation is not sampled
+         */
+        private final Thread thread;
+        private final String threadName;
+        /**
+         * Stack samples
+         */
+        private final StackTraceElement[][] samples;
+        private int samplesCount;
+        /**
+         * Number of finished slow invocations of thread
+         */
+        private volatile long id;
+        /**
+         * Start time in nanoseconds, <code>0</code> if invocation is not running
+         */
+        private volatile long start;
+        private String command;
+
+        private Invocation(Thread thread) {
+            this.thread = thread;
+            threadName = thread != null ? thread.getName() : null;
+            samples = thread != null ? new StackTraceElement[MAX_SAMPLES][] : null;
+        }
+    }
+
+    /**
+     * Recorded invocation
+     */
+    public static class Record {
+        /**
+         * Sequence of record in ring buffer
+         */
+        private final long seq;
+        private final String command;
+        private final String[] args;
+        private final int session;
+        private final String thread;
+        private final long startTime;
+        private final long duration;
+        private final long outputSize;
+        private final String error;
+        private final StackTraceElement[][] samples;
+
+        Record(long seq, String command, String[] args, int session, String thread, long startTime, long duration,
+               long outputSize, String error, StackTraceElement[][] samples) {
+            this.seq = seq;
+            this.command = command;
+            this.args = args;
+            this.session = session;
+            this.thread = thread;
+            this.startTime = startTime;
+            this.duration = duration;
+            this.outputSize = outputSize;
+            this.error = error;
+            this.samples = samples;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public String[] getArgs() {
+            return args;
+        }
+
+        /**
+         * Get session id
+         *
+         * @return identity hash code of GoGo CommandSession or <code>0</code>
+         */
+        public int getSession() {
+            return session;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        /**
+         * Get start time
+         *
+         * @return start time in milliseconds since epoch
+         */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * Get invocation duration
+         *
+         * @return duration in nanoseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Get output size
+         *
+         * @return output size in characters and bytes of printed resources
+         */
+        public long getOutputSize() {
+            return outputSize;
+        }
+
+        /**
+         * Get error
+         *
+         * @return class name of command error or <code>null</code> if command is succeeded
+         */
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * Get stack samples of slow invocation
+         *
+         * @return stack samples or <code>null</code>
+         */
+        public StackTraceElement[][] getSamples() {
+            return samples;
+        }
+
+        /**
+         * Write stack samples
+         *
+         * @param writer writer
+         * @throws IOException unable to write
+         */
+        public void writeSamples(Writer writer) throws IOException {
+            if (samples == null) {
+                return;
+            }
+            for (int i = 0; i < samples.length; i++) {
+                writer.write("  sample " + (i + 1) + ":\n");
+                for (StackTraceElement element : samples[i]) {
+                    writer.write("    at " + element + '\n');
+                }
+            }
+        }
+
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(startTime)))
+                    .append(String.format(" %.3f ms", duration / 1000000.0))
+                    .append(" session ").append(Integer.toHexString(session))
+                    .append(" [").append(thread).append("] ")
+                    .append(command);
+            if (args != null) {
+                for (String arg : args) {
+                    builder.append(' ').append(arg);
+                }
+            }
+            builder.append(" -> ").append(error != null ? "failed " + error : "ok")
+                    .append(", output ").append(outputSize);
+            if (samples != null) {
+                builder.append(", ").append(samples.length).append(" stack samples");
+            }
+            return builder.toString();
+        }
+    }
+}
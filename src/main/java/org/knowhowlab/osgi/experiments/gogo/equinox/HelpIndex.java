@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+/**
+ * Index of Equinox CommandProvider help. Help is parsed in a single pass without splitting it into lines,
+ * index keeps only offsets of command names and usages, so usage strings are created only for commands
+ * that are requested. Supported help format:
+ * <pre>
+ * ---Section---
+ * &lt;tab&gt;command &lt;parameters&gt; - description
+ * &lt;tab&gt;&lt;tab&gt;continuation of command usage
+ * </pre>
+ * Lines that are indented deeper than command line continue command usage. Section headers and empty lines
+ * end command usage. Both <code>\n</code> and <code>\r\n</code> line separators are supported
+ *
+ * @author dmytro.pishchukhin
+ */
+public class HelpIndex {
+    /**
+     * Index without commands
+     */
+    private static final HelpIndex EMPTY = new HelpIndex("");
+    /**
+     * Section header prefix
+     */
+    private static final String SECTION_PREFIX = "---";
+    /**
+     * Tab width that is used to compare lines indentation
+     */
+    private static final int TAB_WIDTH = 8;
+    /**
+     * Number of ints per command: name start, name end, usage start, usage end
+     */
+    private static final int ENTRY_SIZE = 4;
+    /**
+     * Entry of repeated command: its usage is skipped
+     */
+    private static final int DUPLICATE = -2;
+
+    /**
+     * Help string
+     */
+    private final String help;
+    /**
+     * Commands offsets
+     */
+    private int[] entries = new int[ENTRY_SIZE * 16];
+    /**
+     * Number of commands
+     */
+    private int size;
+    /**
+     * Open addressing hash table of command names: entry index + 1 or 0 for empty slot
+     */
+    private int[] table = new int[32];
+
+    private HelpIndex(String help) {
+        this.help = help;
+    }
+
+    /**
+     * Parse CommandProvider help
+     *
+     * @param help help string or <code>null</code>
+     * @return help index
+     */
+    public static HelpIndex parse(String help) {
+        if (help == null || help.length() == 0) {
+            return EMPTY;
+        }
+        HelpIndex index = new HelpIndex(help);
+        index.parse();
+        return index;
+    }
+
+    /**
+     * Get number of indexed commands
+     *
+     * @return number of commands
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check if help contains usage of command
+     *
+     * @param command command name
+     * @return <code>true</code> if command has non-empty usage
+     */
+    public boolean contains(String command) {
+        int entry = find(command);
+        return entry != -1 && entries[entry + 2] < entries[entry + 3];
+    }
+
+    /**
+     * Get command usage. Lines of multi-line usage are trimmed and joined with <code>\n</code>
+     *
+     * @param command command name
+     * @return usage or <code>null</code> if help has no usage of command
+     */
+    public String getUsage(String command) {
+        int entry = find(command);
+        if (entry == -1) {
+            return null;
+        }
+        int start = entries[entry + 2];
+        int end = entries[entry + 3];
+        if (start >= end) {
+            return null;
+        }
+        int lineEnd = help.indexOf('\n', start);
+        if (lineEnd == -1 || lineEnd >= end) {
+            return help.substring(start, end);
+        }
+        StringBuilder usage = new StringBuilder(end - start);
+        while (true) {
+            int contentEnd = trimEnd(start, Math.min(lineEnd, end));
+            if (contentEnd > start) {
+                if (usage.length() > 0) {
+                    usage.append('\n');
+                }
+                usage.append(help, start, contentEnd);
+            }
+            if (lineEnd >= end) {
+                return usage.toString();
+            }
+            start = trimStart(lineEnd + 1, end);
+            lineEnd = help.indexOf('\n', start);
+            if (lineEnd == -1) {
+                lineEnd = end;
+            }
+        }
+    }
+
+    /**
+     * Get arguments hint of command: part of the first usage line before <code>" - "</code> description separator
+     *
+     * @param command command name
+     * @return arguments hint, e.g. <code>&lt;key&gt;=&lt;value&gt;</code>, or <code>null</code> if usage has no hint
+     */
+    public String getArguments(String command) {
+        int entry = find(command);
+        if (entry == -1) {
+            return null;
+        }
+        int start = entries[entry + 2];
+        int end = help.indexOf('\n', start);
+        if (end == -1 || end > entries[entry + 3]) {
+            end = entries[entry + 3];
+        }
+        // separator is searched only in the first usage line, so lookup does not scan the rest of help
+        int separator = start;
+        while (separator < end && !help.regionMatches(separator, " - ", 0, 3)) {
+            separator++;
+        }
+        if (separator >= end) {
+            return null;
+        }
+        int hintEnd = trimEnd(start, separator);
+        return hintEnd > start ? help.substring(start, hintEnd) : null;
+    }
+
+    private void parse() {
+        int length = help.length();
+        // entry of command which usage could be continued
+        int current = -1;
+        int currentIndent = 0;
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = help.indexOf('\n', lineStart);
+            if (lineEnd == -1) {
+                lineEnd = length;
+            }
+            // indentation of line
+            int indent = 0;
+            int contentStart = lineStart;
+            for (; contentStart < lineEnd; contentStart++) {
+                char c = help.charAt(contentStart);
+                if (c == '\t') {
+                    indent += TAB_WIDTH - indent % TAB_WIDTH;
+                } else if (c == ' ') {
+                    indent++;
+                } else {
+                    break;
+                }
+            }
+            int contentEnd = trimEnd(contentStart, lineEnd);
+
+            if (contentStart == contentEnd || help.startsWith(SECTION_PREFIX, contentStart)) {
+                // empty line or section header
+                current = -1;
+            } else if (current != -1 && indent > currentIndent) {
+                // continuation of command usage
+                if (current != DUPLICATE) {
+                    if (entries[current + 2] == entries[current + 3]) {
+                        entries[current + 2] = contentStart;
+                    }
+                    entries[current + 3] = contentEnd;
+                }
+            } else {
+                current = addCommand(contentStart, contentEnd);
+                currentIndent = indent;
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Add command line to index
+     *
+     * @param start line content start
+     * @param end   line content end
+     * @return entry of command or <code>DUPLICATE</code> if command was already indexed
+     */
+    private int addCommand(int start, int end) {
+        int nameEnd = start;
+        while (nameEnd < end && !isWhitespace(help.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        int usageStart = trimStart(nameEnd, end);
+        // if command usage starts with "- " - remove those symbols
+        if (usageStart < end && help.charAt(usageStart) == '-'
+                && (usageStart + 1 == end || isWhitespace(help.charAt(usageStart + 1)))) {
+            usageStart = trimStart(usageStart + 1, end);
+        }
+
+        int hash = hash(start, nameEnd);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            int entry = (table[slot] - 1) * ENTRY_SIZE;
+            if (matches(entry, start, nameEnd)) {
+                // first usage of command wins
+                return DUPLICATE;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if ((size + 1) * ENTRY_SIZE > entries.length) {
+            int[] newEntries = new int[entries.length * 2];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            entries = newEntries;
+        }
+        int entry = size * ENTRY_SIZE;
+        entries[entry] = start;
+        entries[entry + 1] = nameEnd;
+        entries[entry + 2] = usageStart;
+        entries[entry + 3] = Math.max(usageStart, end);
+        table[slot] = ++size;
+        // keep load factor below 0.5
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return entry;
+    }
+
+    private void rehash() {
+        int[] newTable = new int[table.length * 2];
+        int mask = newTable.length - 1;
+        for (int i = 0; i < size; i++) {
+            int entry = i * ENTRY_SIZE;
+            int slot = hash(entries[entry], entries[entry + 1]) & mask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = i + 1;
+        }
+        table = newTable;
+    }
+
+    /**
+     * Find command entry
+     *
+     * @param command command name
+     * @return entry or <code>-1</code> if command is not indexed
+     */
+    private int find(String command) {
+        if (size == 0 || command == null) {
+            return -1;
+        }
+        // hash of name range is equal to String.hashCode() of name
+        int mask = table.length - 1;
+        int slot = spread(command.hashCode()) & mask;
+        while (table[slot] != 0) {
+            int entry = (table[slot] - 1) * ENTRY_SIZE;
+            int nameStart = entries[entry];
+            int nameLength = entries[entry + 1] - nameStart;
+            if (nameLength == command.length() && help.regionMatches(nameStart, command, 0, nameLength)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean matches(int entry, int start, int end) {
+        int nameStart = entries[entry];
+        int nameLength = entries[entry + 1] - nameStart;
+        return nameLength == end - start && help.regionMatches(nameStart, help, start, nameLength);
+    }
+
+    private int hash(int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + help.charAt(i);
+        }
+        return spread(h);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private int trimStart(int start, int end) {
+        while (start < end && isWhitespace(help.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && isWhitespace(help.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+}
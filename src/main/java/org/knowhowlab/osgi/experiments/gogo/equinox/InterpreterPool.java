@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+
+/**
+ * Command interpreters that are reused by commands of GoGo session. Pool is stored in session variable.
+ * Nested and concurrent (e.g. pipeline) commands of the session take different interpreters
+ *
+ * @author dmytro.pishchukhin
+ */
+public class InterpreterPool {
+    /**
+     * Session variable of interpreters pool
+     */
+    public static final String SESSION_VARIABLE = ".equinox.interpreters";
+    /**
+     * Max number of idle interpreters of session
+     */
+    private static final int MAX_IDLE = 4;
+
+    /**
+     * Idle interpreters
+     */
+    private final EquinoxGogoAdapter.CommandInterpreterImpl[] idle = new EquinoxGogoAdapter.CommandInterpreterImpl[MAX_IDLE];
+    /**
+     * Number of idle interpreters
+     */
+    private int size;
+
+    /**
+     * Get interpreters pool of session
+     *
+     * @param commandSession GoGo CommandSession
+     * @return interpreters pool or <code>null</code> if there is no session
+     */
+    public static InterpreterPool get(CommandSession commandSession) {
+        if (commandSession == null) {
+            return null;
+        }
+        Object pool = commandSession.get(SESSION_VARIABLE);
+        if (pool instanceof InterpreterPool) {
+            return (InterpreterPool) pool;
+        }
+        InterpreterPool newPool = new InterpreterPool();
+        commandSession.put(SESSION_VARIABLE, newPool);
+        return newPool;
+    }
+
+    /**
+     * Take idle interpreter or create new one
+     *
+     * @return interpreter that must be reset before use
+     */
+    public synchronized EquinoxGogoAdapter.CommandInterpreterImpl acquire() {
+        if (size == 0) {
+            return new EquinoxGogoAdapter.CommandInterpreterImpl();
+        }
+        EquinoxGogoAdapter.CommandInterpreterImpl interpreter = idle[--size];
+        idle[size] = null;
+        return interpreter;
+    }
+
+    /**
+     * Return closed interpreter to the pool
+     *
+     * @param interpreter closed interpreter
+     */
+    public synchronized void release(EquinoxGogoAdapter.CommandInterpreterImpl interpreter) {
+        if (size < idle.length) {
+            idle[size++] = interpreter;
+        }
+    }
+}
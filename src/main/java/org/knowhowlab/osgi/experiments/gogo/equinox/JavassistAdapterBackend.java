@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+/**
+ * Backend that generates GoGo adapter class for every CommandProvider class with javassist
+ *
+ * @author dmytro.pishchukhin
+ */
+public class JavassistAdapterBackend implements AdapterBackend {
+    /**
+     * Backend name
+     */
+    public static final String NAME = "javassist";
+
+    /**
+     * Adapters bytecode cache or <code>null</code>
+     */
+    private final BytecodeCache bytecodeCache;
+
+    public JavassistAdapterBackend(BytecodeCache bytecodeCache) {
+        this.bytecodeCache = bytecodeCache;
+    }
+
+    public ShellInfo createShellInfo(CommandProvider provider) {
+        return Utils.createGogoService(provider, bytecodeCache);
+    }
+
+    public EquinoxGogoAdapter createAdapter(ShellInfo shellInfo, CommandProvider provider) throws Exception {
+        return shellInfo.getShellClass().getConstructor(CommandProvider.class).newInstance(provider);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+import org.eclipse.osgi.framework.console.CommandProvider;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * GoGo service stub that is registered instead of generated adapter in lazy mode.
+ * GoGo calls <code>_main</code> method with command name as the first argument for every
+ * registered function. Adapter is generated on the first command call and listener could replace stub
+ * registration with generated adapter, so GoGo shows commands descriptions. If stub is created for
+ * service reference, CommandProvider service is not requested until the first command call.
+ * GoGo looks up commands case-insensitively, so of commands that differ only in case the first one
+ * in sorted order is available.
+ *
+ * @author dmytro.pishchukhin
+ */
+public class LazyEquinoxGogoAdapter {
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(LazyEquinoxGogoAdapter.class.getName());
+
+    /**
+     * Bundle context to get CommandProvider service or <code>null</code>
+     */
+    private final BundleContext bc;
+    /**
+     * CommandProvider service reference or <code>null</code>
+     */
+    private final ServiceReference reference;
+    /**
+     * Equinox CommandProvider service instance, <code>null</code> until the first command call
+     * if stub is created for service reference
+     */
+    private volatile CommandProvider provider;
+    /**
+     * Sorted command names
+     */
+    private final String[] commands;
+    /**
+     * Command names by lower-cased name (GoGo passes lower-cased name to <code>_main</code>)
+     */
+    private final Map<String, String> commandNames = new HashMap<String, String>();
+    /**
+     * Generated adapters cache
+     */
+    private final ShellInfoCache cache;
+
+    /**
+     * Generated adapter, <code>null</code> until the first command call
+     */
+    private volatile Materialized materialized;
+    /**
+     * Stub is unregistered
+     */
+    private boolean released;
+    /**
+     * Listener of adapter generation or <code>null</code>
+     */
+    private volatile Listener listener;
+
+    public LazyEquinoxGogoAdapter(CommandProvider provider, String[] commands, ShellInfoCache cache) {
+        this(null, null, provider, commands, cache);
+    }
+
+    public LazyEquinoxGogoAdapter(BundleContext bc, ServiceReference reference, String[] commands, ShellInfoCache cache) {
+        this(bc, reference, null, commands, cache);
+    }
+
+    private LazyEquinoxGogoAdapter(BundleContext bc, ServiceReference reference, CommandProvider provider,
+                                   String[] commands, ShellInfoCache cache) {
+        this.bc = bc;
+        this.reference = reference;
+        this.provider = provider;
+        this.commands = commands;
+        this.cache = cache;
+        for (String command : commands) {
+            String name = command.toLowerCase(Locale.ENGLISH);
+            String other = commandNames.get(name);
+            if (other == null) {
+                commandNames.put(name, command);
+            } else {
+                LOG.log(Level.WARNING, String.format("GoGo shell command %s is not available, it differs from command %s only in case",
+                        command, other));
+            }
+        }
+    }
+
+    /**
+     * Set listener of adapter generation
+     *
+     * @param listener listener or <code>null</code>
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Run shell command. Generic GoGo entry point for all registered functions
+     *
+     * @param commandSession GoGo CommandSession
+     * @param commandName    command name
+     * @param args           command arguments
+     * @return command result or <code>null</code>
+     */
+    public Object _main(CommandSession commandSession, String commandName, String[] args) {
+        String command = commandNames.get(commandName.toLowerCase(Locale.ENGLISH));
+        if (command == null) {
+            EquinoxGogoAdapter.fail(commandSession, commandName, "Unknown shell command: " + commandName, null);
+            return null;
+        }
+        Materialized gogoAdapter = materialize();
+        if (gogoAdapter == null) {
+            EquinoxGogoAdapter.fail(commandSession, command, "GoGo shell is not available for command: " + command, null);
+            return null;
+        }
+        // provider class could differ from the class that is used to create stub
+        int commandIndex = Arrays.binarySearch(gogoAdapter.shellInfo.getCommands(), command);
+        if (commandIndex < 0) {
+            EquinoxGogoAdapter.fail(commandSession, command, "Shell command is not provided by adapter: "
+                    + gogoAdapter.shellInfo.getShellClass() + ": " + command, null);
+            return null;
+        }
+        return gogoAdapter.adapter.runCommandWithResult(commandSession, args, command, commandIndex);
+    }
+
+    /**
+     * Get registered command names
+     *
+     * @return sorted command names
+     */
+    public String[] getCommands() {
+        return commands;
+    }
+
+    /**
+     * Check if adapter is generated
+     *
+     * @return <code>true</code> if adapter is generated
+     */
+    public boolean isMaterialized() {
+        return materialized != null;
+    }
+
+    /**
+     * Check if CommandProvider service is requested
+     *
+     * @return <code>true</code> if CommandProvider service is requested
+     */
+    public boolean isActivated() {
+        return provider != null;
+    }
+
+    /**
+     * Release generated adapter and CommandProvider service. Stub is not usable after this call
+     */
+    public synchronized void release() {
+        released = true;
+        if (materialized != null) {
+            cache.release(materialized.shellInfo, materialized.adapter);
+            materialized = null;
+        }
+        if (reference != null && provider != null) {
+            try {
+                bc.ungetService(reference);
+            } catch (IllegalStateException e) {
+                // bundle context is not valid anymore
+            }
+            provider = null;
+        }
+    }
+
+    /**
+     * Generate adapter on the first call
+     *
+     * @return generated adapter or <code>null</code>
+     */
+    private Materialized materialize() {
+        Materialized gogoAdapter = materialized;
+        if (gogoAdapter == null) {
+            boolean created = false;
+            synchronized (this) {
+                if (materialized == null && !released && getProvider() != null) {
+                    ShellInfo info = cache.acquire(provider);
+                    if (info != null) {
+                        try {
+                            EquinoxGogoAdapter instance = cache.newInstance(info, provider);
+                            materialized = new Materialized(instance, info);
+                            created = true;
+                            LOG.log(Level.INFO, String.format("GoGo shell for class: %s materialized", provider.getClass()));
+                        } catch (Exception e) {
+                            cache.release(info);
+                            LOG.log(Level.WARNING, "Unable to create GoGo shell for class: " + provider.getClass(), e);
+                        }
+                    }
+                }
+                gogoAdapter = materialized;
+            }
+            Listener currentListener = listener;
+            if (created && currentListener != null) {
+                // listener registers services, so it is called without stub lock
+                currentListener.materialized(this, gogoAdapter.adapter, gogoAdapter.shellInfo);
+            }
+        }
+        return gogoAdapter;
+    }
+
+    /**
+     * Get CommandProvider service. Service is requested on the first call if stub is created for service reference
+     *
+     * @return CommandProvider service or <code>null</code>
+     */
+    private CommandProvider getProvider() {
+        if (provider == null && reference != null) {
+            provider = (CommandProvider) bc.getService(reference);
+            if (provider == null) {
+                LOG.log(Level.WARNING, "CommandProvider service is not available: " + reference);
+            } else {
+                LOG.log(Level.INFO, String.format("CommandProvider service for class: %s activated", provider.getClass()));
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Listener of adapter generation
+     */
+    public interface Listener {
+        /**
+         * Adapter is generated on the first command call. Generated adapter is owned by stub
+         *
+         * @param lazyAdapter GoGo service stub
+         * @param adapter     generated adapter
+         * @param shellInfo   generated adapter info
+         */
+        void materialized(LazyEquinoxGogoAdapter lazyAdapter, EquinoxGogoAdapter adapter, ShellInfo shellInfo);
+    }
+
+    /**
+     * Generated adapter and its info
+     */
+    private static class Materialized {
+        private final EquinoxGogoAdapter adapter;
+        private final ShellInfo shellInfo;
+
+        private Materialized(EquinoxGogoAdapter adapter, ShellInfo shellInfo) {
+            this.adapter = adapter;
+            this.shellInfo = shellInfo;
+        }
+    }
+}
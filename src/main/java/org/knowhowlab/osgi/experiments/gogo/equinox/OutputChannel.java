@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Output channel of command. Output is copied to a bounded ring buffer and written to the session console
+ * by output thread. If channels have no buffer, output is written by command thread and only output limit
+ * is applied. If console does not take output within timeout, the rest of command output is dropped
+ *
+ * @author dmytro.pishchukhin
+ */
+public class OutputChannel implements Runnable {
+    private final OutputChannels channels;
+    private final CommandSession commandSession;
+    private final PrintStream console;
+    private final OutputChannels.Metrics metrics;
+
+    /**
+     * Ring buffer or <code>null</code> if output is written by command thread
+     */
+    private final char[] ring;
+    private int head;
+    private int size;
+    /**
+     * Output thread is writing buffered output
+     */
+    private boolean draining;
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when buffered output is written to console
+     */
+    private final Condition written = lock.newCondition();
+
+    /**
+     * Characters produced by command
+     */
+    private long produced;
+    /**
+     * Characters accepted for console
+     */
+    private long accepted;
+    private long dropped;
+    /**
+     * Dropped characters that are not marked in console yet
+     */
+    private long unmarked;
+    private long blocked;
+    /**
+     * Output limit is reached
+     */
+    private boolean limited;
+    /**
+     * Console has not taken output within timeout, command does not wait for console anymore
+     */
+    private boolean stalled;
+    /**
+     * Truncated output or <code>null</code> if output is not truncated
+     */
+    private StringBuilder continuation;
+
+    OutputChannel(OutputChannels channels, CommandSession commandSession, OutputChannels.Metrics metrics) {
+        this.channels = channels;
+        this.commandSession = commandSession;
+        this.metrics = metrics;
+        console = commandSession.getConsole();
+        ring = channels.getCapacity() > 0 ? new char[channels.getCapacity()] : null;
+    }
+
+    /**
+     * Write command output
+     *
+     * @param s output
+     */
+    public void write(CharSequence s) {
+        int length = s.length();
+        if (length == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            produced += length;
+            int offset = 0;
+            while (offset < length) {
+                if (continuation != null) {
+                    truncate(s, offset, length);
+                    return;
+                }
+                long allowed = remaining();
+                if (allowed == 0) {
+                    limited = true;
+                    overflow(s, offset, length);
+                    return;
+                }
+                int count = (int) Math.min(length - offset, allowed);
+                if (ring == null) {
+                    console.append(s, offset, offset + count);
+                    accepted += count;
+                    offset += count;
+                    continue;
+                }
+                if (unmarked > 0) {
+                    mark();
+                }
+                int free = ring.length - size;
+                if (free == 0) {
+                    if (OutputChannels.BLOCK.equals(channels.getOverflow()) && !stalled) {
+                        if (!await()) {
+                            stalled = true;
+                            drop(length - offset);
+                            return;
+                        }
+                        continue;
+                    }
+                    overflow(s, offset, length);
+                    return;
+                }
+                count = Math.min(count, free);
+                put(s, offset, count);
+                accepted += count;
+                offset += count;
+                drain();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get number of characters that could be printed before output limit is reached
+     *
+     * @return remaining output or {@link Long#MAX_VALUE} if output is not limited
+     */
+    public long remaining() {
+        long limit = channels.getLimit();
+        return limit > 0 ? Math.max(0, limit - accepted) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Wait until buffered output is written to console or timeout is over
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            while (!stalled && (draining || size > 0)) {
+                if (!await()) {
+                    stalled = true;
+                }
+            }
+            if (stalled) {
+                // output thread holds stalled console
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        console.flush();
+    }
+
+    /**
+     * Wait until output is written, print overflow markers and record output metrics. The rest of truncated
+     * output is kept in session for <code>equinox:more</code> command
+     */
+    public void close() {
+        flush();
+        StringBuilder trailer = new StringBuilder();
+        lock.lock();
+        try {
+            if (unmarked > 0) {
+                trailer.append(dropMarker());
+                unmarked = 0;
+            }
+            if (continuation != null) {
+                trailer.append(String.format("%n-- output is truncated, %d characters are left, run equinox:more to continue --%n",
+                        continuation.length()));
+            } else if (limited && dropped > 0) {
+                trailer.append(String.format("%n-- output is limited to %d characters, %d characters are dropped --%n",
+                        channels.getLimit(), dropped));
+            }
+        } finally {
+            lock.unlock();
+        }
+        // stalled console could block command forever
+        if (trailer.length() > 0 && !stalled) {
+            console.print(trailer);
+            console.flush();
+        }
+        // continuation of previous command is stale
+        commandSession.put(OutputChannels.CONTINUATION_VARIABLE, continuation != null ? continuation.toString() : null);
+        metrics.record(produced, dropped, continuation != null ? continuation.length() : 0, blocked);
+    }
+
+    /**
+     * Write buffered output to console in output thread
+     */
+    public void run() {
+        while (true) {
+            int start;
+            int count;
+            lock.lock();
+            try {
+                if (size == 0) {
+                    draining = false;
+                    written.signalAll();
+                    return;
+                }
+                start = head;
+                count = Math.min(size, ring.length - head);
+            } finally {
+                lock.unlock();
+            }
+            try {
+                // ring part is not changed by command until it is released
+                console.print(new String(ring, start, count));
+                console.flush();
+            } catch (RuntimeException e) {
+                // console is broken - buffered output is dropped
+                lock.lock();
+                try {
+                    dropped += size;
+                    head = 0;
+                    size = 0;
+                    draining = false;
+                    written.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+            lock.lock();
+            try {
+                head = (head + count) % ring.length;
+                size -= count;
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Handle output that does not fit into buffer or exceeds output limit
+     */
+    private void overflow(CharSequence s, int offset, int length) {
+        if (OutputChannels.TRUNCATE.equals(channels.getOverflow())) {
+            continuation = new StringBuilder();
+            truncate(s, offset, length);
+        } else {
+            drop(length - offset);
+        }
+    }
+
+    private void truncate(CharSequence s, int offset, int length) {
+        int count = Math.min(length - offset, OutputChannels.MAX_CONTINUATION - continuation.length());
+        continuation.append(s, offset, offset + count);
+        dropped += length - offset - count;
+    }
+
+    private void drop(int count) {
+        dropped += count;
+        if (!limited) {
+            unmarked += count;
+        }
+    }
+
+    /**
+     * Mark dropped output if marker fits into buffer
+     */
+    private void mark() {
+        String marker = dropMarker();
+        if (ring.length - size >= marker.length()) {
+            put(marker, 0, marker.length());
+            unmarked = 0;
+            drain();
+        }
+    }
+
+    private String dropMarker() {
+        return String.format("%n-- %d characters are dropped --%n", unmarked);
+    }
+
+    /**
+     * Wait until output thread writes buffered output
+     *
+     * @return <code>false</code> if console has not taken output within timeout or command thread is interrupted
+     */
+    private boolean await() {
+        long start = System.nanoTime();
+        try {
+            return written.awaitNanos(channels.getTimeout()) > 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            blocked += System.nanoTime() - start;
+        }
+    }
+
+    private void put(CharSequence s, int offset, int count) {
+        int tail = (head + size) % ring.length;
+        int first = Math.min(count, ring.length - tail);
+        getChars(s, offset, offset + first, tail);
+        getChars(s, offset + first, offset + count, 0);
+        size += count;
+    }
+
+    private void getChars(CharSequence s, int start, int end, int index) {
+        if (s instanceof String) {
+            ((String) s).getChars(start, end, ring, index);
+        } else if (s instanceof StringBuilder) {
+            ((StringBuilder) s).getChars(start, end, ring, index);
+        } else {
+            for (int i = start; i < end; i++) {
+                ring[index++] = s.charAt(i);
+            }
+        }
+    }
+
+    /**
+     * Start output thread if it is not running
+     */
+    private void drain() {
+        if (draining) {
+            return;
+        }
+        draining = true;
+        ExecutorService executor = channels.getExecutor();
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            // output threads are stopped - write output by command thread
+            run();
+        }
+    }
+}
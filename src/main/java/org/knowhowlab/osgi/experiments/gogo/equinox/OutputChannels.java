@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded output channels of adapted commands. Output of command is written to the session console by
+ * a separate thread through a bounded buffer, so slow consoles apply backpressure to commands according
+ * to overflow policy. Output of every command could be limited
+ *
+ * @author dmytro.pishchukhin
+ */
+public class OutputChannels {
+    /**
+     * Overflow policy: command waits until console takes buffered output
+     */
+    public static final String BLOCK = "block";
+    /**
+     * Overflow policy: output that does not fit into buffer is dropped, dropped output is marked in the console
+     */
+    public static final String DROP = "drop";
+    /**
+     * Overflow policy: output is truncated when buffer is full, the rest is printed by <code>equinox:more</code>
+     */
+    public static final String TRUNCATE = "truncate";
+    /**
+     * Session variable with the rest of truncated output
+     */
+    public static final String CONTINUATION_VARIABLE = ".equinox.more";
+    /**
+     * Max size of truncated output that is kept in session, in characters
+     */
+    static final int MAX_CONTINUATION = 1024 * 1024;
+    /**
+     * Default max number of output threads
+     */
+    public static final int DEFAULT_THREADS = 4;
+    /**
+     * Default max time in milliseconds that command waits for console
+     */
+    public static final long DEFAULT_TIMEOUT = 10000;
+    /**
+     * Max number of channels that wait for output thread
+     */
+    private static final int QUEUE_SIZE = 64;
+
+    /**
+     * Buffer capacity in characters, <code>0</code> if output is written to console by command thread
+     */
+    private final int capacity;
+    /**
+     * Overflow policy
+     */
+    private final String overflow;
+    /**
+     * Max output of command in characters, <code>0</code> for unlimited
+     */
+    private final long limit;
+    /**
+     * Max time in nanoseconds that command waits for console
+     */
+    private final long timeout;
+    /**
+     * Executor of output writes or <code>null</code> if output is written by command thread
+     */
+    private final ExecutorService executor;
+    /**
+     * Output metrics by command name
+     */
+    private final ConcurrentMap<String, Metrics> metrics = new ConcurrentHashMap<String, Metrics>();
+
+    /**
+     * Create output channels with default number of output threads and console timeout
+     *
+     * @param capacity buffer capacity in characters, <code>0</code> to write output by command thread
+     * @param overflow overflow policy: <code>block</code>, <code>drop</code> or <code>truncate</code>
+     * @param limit    max output of command in characters, <code>0</code> for unlimited
+     * @throws IllegalArgumentException unknown overflow policy
+     */
+    public OutputChannels(int capacity, String overflow, long limit) {
+        this(capacity, overflow, limit, DEFAULT_THREADS, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Create output channels. If all output threads are busy, output is written by command thread.
+     * Command that waits for console longer than timeout drops the rest of its output
+     *
+     * @param capacity buffer capacity in characters, <code>0</code> to write output by command thread
+     * @param overflow overflow policy: <code>block</code>, <code>drop</code> or <code>truncate</code>
+     * @param limit    max output of command in characters, <code>0</code> for unlimited
+     * @param threads  max number of output threads
+     * @param timeout  max time in milliseconds that command waits for console
+     * @throws IllegalArgumentException unknown overflow policy
+     */
+    public OutputChannels(int capacity, String overflow, long limit, int threads, long timeout) {
+        String policy = overflow != null ? overflow.trim().toLowerCase(Locale.ENGLISH) : BLOCK;
+        if (!BLOCK.equals(policy) && !DROP.equals(policy) && !TRUNCATE.equals(policy)) {
+            throw new IllegalArgumentException("Unknown output overflow policy: " + overflow);
+        }
+        this.capacity = Math.max(0, capacity);
+        this.overflow = policy;
+        this.limit = Math.max(0, limit);
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeout));
+        int poolSize = Math.max(1, threads);
+        executor = this.capacity > 0 ? new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Equinox GoGo output " + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    /**
+     * Open output channel of command
+     *
+     * @param commandSession GoGo CommandSession
+     * @param commandName    command name
+     * @return output channel that must be closed after command execution
+     */
+    public OutputChannel open(CommandSession commandSession, String commandName) {
+        return new OutputChannel(this, commandSession, getMetrics(commandName));
+    }
+
+    /**
+     * Get output metrics of commands
+     *
+     * @return output metrics of commands that have produced output
+     */
+    public List<Metrics> getMetrics() {
+        return new ArrayList<Metrics>(metrics.values());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public String getOverflow() {
+        return overflow;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Get max time that command waits for console
+     *
+     * @return timeout in nanoseconds
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Get size of truncated output part that is printed by <code>equinox:more</code>
+     *
+     * @return page size in characters
+     */
+    public int getPageSize() {
+        if (limit > 0) {
+            return (int) Math.min(limit, Integer.MAX_VALUE);
+        }
+        return capacity > 0 ? capacity : OutputSettings.DEFAULT_BUFFER_SIZE;
+    }
+
+    /**
+     * Stop output threads
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    private Metrics getMetrics(String commandName) {
+        Metrics commandMetrics = metrics.get(commandName);
+        if (commandMetrics == null) {
+            Metrics newMetrics = new Metrics(commandName);
+            commandMetrics = metrics.putIfAbsent(commandName, newMetrics);
+            if (commandMetrics == null) {
+                commandMetrics = newMetrics;
+            }
+        }
+        return commandMetrics;
+    }
+
+    /**
+     * Output metrics of command
+     */
+    public static class Metrics {
+        private final String command;
+        private final AtomicLong produced = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong truncated = new AtomicLong();
+        private final AtomicLong blocked = new AtomicLong();
+
+        private Metrics(String command) {
+            this.command = command;
+        }
+
+        void record(long produced, long dropped, long truncated, long blocked) {
+            this.produced.addAndGet(produced);
+            this.dropped.addAndGet(dropped);
+            this.truncated.addAndGet(truncated);
+            this.blocked.addAndGet(blocked);
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * Get output of command
+         *
+         * @return number of characters produced by command
+         */
+        public long getProduced() {
+            return produced.get();
+        }
+
+        /**
+         * Get dropped output of command
+         *
+         * @return number of characters that were not printed or kept for <code>equinox:more</code>
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Get truncated output of command
+         *
+         * @return number of characters that were kept for <code>equinox:more</code>
+         */
+        public long getTruncated() {
+            return truncated.get();
+        }
+
+        /**
+         * Get time spent by command waiting for console
+         *
+         * @return blocked time in nanoseconds
+         */
+        public long getBlocked() {
+            return blocked.get();
+        }
+
+        public String toString() {
+            return String.format("%s: %d produced, %d dropped, %d truncated, %.3f ms blocked", command,
+                    getProduced(), getDropped(), getTruncated(), TimeUnit.NANOSECONDS.toMicros(getBlocked()) / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Console output buffering settings of adapted commands
+ *
+ * @author dmytro.pishchukhin
+ */
+public class OutputSettings {
+    /**
+     * Session variable that disables output buffering for the session if it is set to <code>false</code>
+     */
+    public static final String SESSION_BUFFERED_VARIABLE = "equinox.buffered";
+    /**
+     * Session variable that enables structured output for the session if it is set to <code>true</code>
+     */
+    public static final String SESSION_STRUCTURED_VARIABLE = "equinox.structured";
+    /**
+     * Session variable with encoding of printed bundle resources. Platform default encoding is used if it is not set
+     */
+    public static final String SESSION_RESOURCE_ENCODING_VARIABLE = "equinox.resource.encoding";
+    /**
+     * Session variable with number of bytes of bundle resources that are skipped before printing
+     */
+    public static final String SESSION_RESOURCE_OFFSET_VARIABLE = "equinox.resource.offset";
+    /**
+     * Session variable with max number of printed bytes of bundle resources. Resources are not limited if it is not set
+     */
+    public static final String SESSION_RESOURCE_LIMIT_VARIABLE = "equinox.resource.limit";
+    /**
+     * Typical output buffer size in characters. Output is not buffered by default
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    /**
+     * Default settings: unbuffered output
+     */
+    public static final OutputSettings DEFAULT = new OutputSettings(0, 0, Collections.<String>emptySet());
+
+    /**
+     * Output buffer size in characters, <code>0</code> disables buffering
+     */
+    private final int bufferSize;
+    /**
+     * Max time in milliseconds between output flushes, <code>0</code> disables time-based flush
+     */
+    private final long flushInterval;
+    /**
+     * Names of commands with unbuffered output
+     */
+    private final Set<String> unbufferedCommands;
+    /**
+     * Scheduler of time-based flushes or <code>null</code> if time-based flush is disabled
+     */
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Create output settings. If both buffering and time-based flush are enabled, buffered output
+     * is flushed by a scheduler thread, also while command is blocked
+     *
+     * @param bufferSize         output buffer size in characters, <code>0</code> disables buffering
+     * @param flushInterval      max time in milliseconds between output flushes, <code>0</code> disables time-based flush
+     * @param unbufferedCommands names of commands with unbuffered output
+     */
+    public OutputSettings(int bufferSize, long flushInterval, Set<String> unbufferedCommands) {
+        this.bufferSize = bufferSize;
+        this.flushInterval = flushInterval;
+        this.unbufferedCommands = new HashSet<String>(unbufferedCommands);
+        flusher = bufferSize > 0 && flushInterval > 0 ? Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Equinox GoGo output flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    /**
+     * Get output buffer size of command
+     *
+     * @param commandSession GoGo CommandSession
+     * @param commandName    command name
+     * @return output buffer size in characters or <code>0</code> if output is not buffered
+     */
+    public int getBufferSize(CommandSession commandSession, String commandName) {
+        if (bufferSize <= 0 || unbufferedCommands.contains(commandName)) {
+            return 0;
+        }
+        if (commandSession != null) {
+            Object buffered = commandSession.get(SESSION_BUFFERED_VARIABLE);
+            if (buffered != null && !Boolean.valueOf(buffered.toString())) {
+                return 0;
+            }
+        }
+        return bufferSize;
+    }
+
+    /**
+     * Check if command output is captured as records instead of printing
+     *
+     * @param commandSession GoGo CommandSession
+     * @return <code>true</code> if output is structured
+     */
+    public boolean isStructured(CommandSession commandSession) {
+        if (commandSession == null) {
+            return false;
+        }
+        Object structured = commandSession.get(SESSION_STRUCTURED_VARIABLE);
+        return structured != null && Boolean.valueOf(structured.toString());
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Get scheduler of time-based flushes
+     *
+     * @return scheduler or <code>null</code> if time-based flush is disabled
+     */
+    public ScheduledExecutorService getFlusher() {
+        return flusher;
+    }
+
+    /**
+     * Stop scheduler of time-based flushes
+     */
+    public void shutdown() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+    }
+}
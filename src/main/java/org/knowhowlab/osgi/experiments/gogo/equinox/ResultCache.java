@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.osgi.framework.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of read-only commands results. All results are invalidated on any bundle, service or framework event
+ * of other bundles, so repeated calls of read-only commands in a static framework are not recomputed. Events of
+ * adapter bundle itself, e.g. registrations of generated GoGo services, do not invalidate results
+ *
+ * @author dmytro.pishchukhin
+ */
+public class ResultCache implements BundleListener, ServiceListener, FrameworkListener {
+    /**
+     * Names of read-only commands
+     */
+    private final Set<String> commands;
+    /**
+     * Bundle which events are ignored or <code>null</code>
+     */
+    private final Bundle bundle;
+    /**
+     * Cached results
+     */
+    private final Map<Key, Result> entries;
+    /**
+     * Framework state generation, it is changed by every event
+     */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ResultCache(Set<String> commands, int maxSize) {
+        this(commands, maxSize, null);
+    }
+
+    public ResultCache(Set<String> commands, final int maxSize, Bundle bundle) {
+        this.commands = new HashSet<String>(commands);
+        this.bundle = bundle;
+        entries = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Check if command result could be cached
+     *
+     * @param command command name
+     * @return <code>true</code> if command is read-only
+     */
+    public boolean isCacheable(String command) {
+        return commands.contains(command);
+    }
+
+    /**
+     * Get cached result
+     *
+     * @param key result key
+     * @return cached result or <code>null</code>
+     */
+    public synchronized Result get(Key key) {
+        Result result = entries.get(key);
+        if (result != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Get framework state generation. Generation should be taken before command execution
+     * and passed to {@link #put(Key, Result, long)}
+     *
+     * @return framework state generation
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Cache result if framework state is not changed during command execution
+     *
+     * @param key        result key
+     * @param result     command result
+     * @param generation framework state generation before command execution
+     */
+    public synchronized void put(Key key, Result result, long generation) {
+        if (this.generation == generation) {
+            entries.put(key, result);
+        }
+    }
+
+    /**
+     * Invalidate all cached results
+     */
+    public synchronized void invalidate() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Check if command result could be shared by sessions. Structured output is copied for every session,
+     * other results should be immutable
+     *
+     * @param value command result
+     * @return <code>true</code> if result could be cached
+     */
+    public static boolean isShareable(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Character) {
+            return true;
+        }
+        String className = value.getClass().getName();
+        return value instanceof Number && (className.startsWith("java.lang.") || className.startsWith("java.math."));
+    }
+
+    public void bundleChanged(BundleEvent event) {
+        if (event.getBundle() != bundle) {
+            invalidate();
+        }
+    }
+
+    public void serviceChanged(ServiceEvent event) {
+        if (event.getServiceReference().getBundle() != bundle) {
+            invalidate();
+        }
+    }
+
+    public void frameworkEvent(FrameworkEvent event) {
+        invalidate();
+    }
+
+    /**
+     * Cached result key: adapter instance, command, arguments and output mode
+     */
+    public static class Key {
+        private final Object adapter;
+        private final String command;
+        private final String[] args;
+        private final boolean structured;
+
+        public Key(Object adapter, String command, String[] args, boolean structured) {
+            this.adapter = adapter;
+            this.command = command;
+            this.args = args.clone();
+            this.structured = structured;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return adapter == key.adapter && structured == key.structured
+                    && command.equals(key.command) && Arrays.equals(args, key.args);
+        }
+
+        public int hashCode() {
+            int result = System.identityHashCode(adapter);
+            result = 31 * result + command.hashCode();
+            result = 31 * result + Arrays.hashCode(args);
+            return 31 * result + (structured ? 1 : 0);
+        }
+    }
+
+    /**
+     * Cached result: console output and returned value
+     */
+    public static class Result {
+        private final String output;
+        private final Object value;
+
+        public Result(String output, Object value) {
+            this.output = output;
+            this.value = value;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * Get returned value. Structured output is copied, so sessions do not share it
+         *
+         * @return returned value
+         */
+        public Object getValue() {
+            return value instanceof StructuredOutput ? ((StructuredOutput) value).copy() : value;
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.knowhowlab.osgi.experiments.gogo.equinox;
 
+import java.lang.reflect.Method;
+
 /**
  * GoGo service information
  *
@@ -34,11 +36,20 @@ public class ShellInfo {
      * Service class
      */
     private Class<? extends EquinoxGogoAdapter> shellClass;
+    /**
+     * CommandProvider methods of commands or <code>null</code> if methods are called by generated code
+     */
+    private Method[] methods;
 
     public ShellInfo(String scope, String[] commands, Class<? extends EquinoxGogoAdapter> shellClass) {
+        this(scope, commands, shellClass, null);
+    }
+
+    public ShellInfo(String scope, String[] commands, Class<? extends EquinoxGogoAdapter> shellClass, Method[] methods) {
         this.scope = scope;
         this.commands = commands;
         this.shellClass = shellClass;
+        this.methods = methods;
     }
 
     public String getScope() {
@@ -52,4 +63,8 @@ public class ShellInfo {
     public Class<? extends EquinoxGogoAdapter> getShellClass() {
         return shellClass;
     }
+
+    public Method[] getMethods() {
+        return methods;
+    }
 }
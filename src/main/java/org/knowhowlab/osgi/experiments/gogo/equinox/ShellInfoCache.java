@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory cache of generated GoGo adapters. Adapters are shared by all CommandProvider
+ * services of the same class and help and are reference-counted by live registrations
+ *
+ * @author dmytro.pishchukhin
+ */
+public class ShellInfoCache {
+    /**
+     * Cached adapters
+     */
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    /**
+     * Keys of acquired adapters
+     */
+    private final ConcurrentMap<ShellInfo, Key> keys = new ConcurrentHashMap<ShellInfo, Key>();
+    /**
+     * Adapters backend
+     */
+    private final AdapterBackend backend;
+    /**
+     * Settings and services of adapters
+     */
+    private final AdapterContext context;
+
+    public ShellInfoCache(AdapterBackend backend) {
+        this(backend, new AdapterContext());
+    }
+
+    public ShellInfoCache(AdapterBackend backend, AdapterContext context) {
+        this.backend = backend;
+        this.context = context;
+    }
+
+    /**
+     * Get GoGo adapter for CommandProvider service. Adapter is generated if there is
+     * no cached adapter for this provider class and help
+     *
+     * @param provider Equinox CommandProvider service instance
+     * @return GoGo service info or <code>null</code>
+     */
+    public ShellInfo acquire(CommandProvider provider) {
+        Key key = new Key(provider.getClass(), provider.getHelp());
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                Entry newEntry = new Entry();
+                entry = entries.putIfAbsent(key, newEntry);
+                if (entry == null) {
+                    entry = newEntry;
+                }
+            }
+            synchronized (entry) {
+                // entry was evicted concurrently - try again
+                if (entry.evicted) {
+                    continue;
+                }
+                if (entry.shellInfo == null) {
+                    entry.shellInfo = backend.createShellInfo(provider);
+                    if (entry.shellInfo == null) {
+                        evict(key, entry);
+                        return null;
+                    }
+                    keys.put(entry.shellInfo, key);
+                }
+                entry.references++;
+                return entry.shellInfo;
+            }
+        }
+    }
+
+    /**
+     * Create GoGo service instance for acquired adapter
+     *
+     * @param shellInfo GoGo service info
+     * @param provider  Equinox CommandProvider service instance
+     * @return GoGo service instance
+     * @throws Exception unable to create GoGo service
+     */
+    public EquinoxGogoAdapter newInstance(ShellInfo shellInfo, CommandProvider provider) throws Exception {
+        EquinoxGogoAdapter adapter = backend.createAdapter(shellInfo, provider);
+        context.configure(adapter, shellInfo, provider);
+        return adapter;
+    }
+
+    /**
+     * Release GoGo adapter. Adapter is evicted when it has no more live registrations
+     *
+     * @param shellInfo GoGo service info
+     */
+    public void release(ShellInfo shellInfo) {
+        Key key = keys.get(shellInfo);
+        if (key != null) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                synchronized (entry) {
+                    if (entry.shellInfo == shellInfo && --entry.references <= 0) {
+                        evict(key, entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Release GoGo adapter and its instance
+     *
+     * @param shellInfo GoGo service info
+     * @param adapter   GoGo service instance
+     */
+    public void release(ShellInfo shellInfo, EquinoxGogoAdapter adapter) {
+        context.release(adapter);
+        release(shellInfo);
+    }
+
+    /**
+     * Evict all adapters of CommandProvider classes that are provided by bundle
+     *
+     * @param bundle bundle
+     */
+    public void evict(Bundle bundle) {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> mapEntry = iterator.next();
+            if (bundle.equals(FrameworkUtil.getBundle(mapEntry.getKey().providerClass))) {
+                Entry entry = mapEntry.getValue();
+                synchronized (entry) {
+                    evict(mapEntry.getKey(), entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get number of cached adapters
+     *
+     * @return number of cached adapters
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void evict(Key key, Entry entry) {
+        entry.evicted = true;
+        entries.remove(key, entry);
+        if (entry.shellInfo != null) {
+            keys.remove(entry.shellInfo);
+        }
+    }
+
+    /**
+     * Cache entry
+     */
+    private static class Entry {
+        private ShellInfo shellInfo;
+        private int references;
+        private boolean evicted;
+    }
+
+    /**
+     * Cache key: CommandProvider class and help
+     */
+    private static class Key {
+        private final Class<?> providerClass;
+        private final String help;
+
+        private Key(Class<?> providerClass, String help) {
+            this.providerClass = providerClass;
+            this.help = help;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return providerClass.equals(key.providerClass)
+                    && (help != null ? help.equals(key.help) : key.help == null);
+        }
+
+        public int hashCode() {
+            return 31 * providerClass.hashCode() + (help != null ? help.hashCode() : 0);
+        }
+    }
+}
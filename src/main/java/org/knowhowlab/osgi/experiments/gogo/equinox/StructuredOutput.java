@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.osgi.framework.Bundle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output of adapted command in structured mode. CommandInterpreter output calls are captured
+ * as records that GoGo pipes could consume without formatting and parsing: lines, dictionary entries
+ * and bundle resources. Captured lines are kept as ranges of output text, so line records are materialized
+ * and resources are read only when they are requested.
+ *
+ * @author dmytro.pishchukhin
+ */
+public class StructuredOutput extends AbstractList<Object> {
+    /**
+     * Captured records, <code>null</code> for line that is not materialized yet
+     */
+    private final List<Object> records = new ArrayList<Object>();
+    /**
+     * Captured output text
+     */
+    private final StringBuilder text;
+    /**
+     * Start and end of line records in output text by record index
+     */
+    private int[] lines = new int[32];
+    /**
+     * Start of current line in output text
+     */
+    private int lineStart;
+
+    public StructuredOutput() {
+        text = new StringBuilder();
+    }
+
+    private StructuredOutput(StringBuilder text) {
+        this.text = text;
+    }
+
+    public synchronized Object get(int index) {
+        Object record = records.get(index);
+        if (record == null) {
+            record = new Line(text.substring(lines[index * 2], lines[index * 2 + 1]));
+            records.set(index, record);
+        }
+        return record;
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     * Copy completed output. Copy shares captured text and materialized records, but materializes its own lines
+     *
+     * @return output copy
+     */
+    synchronized StructuredOutput copy() {
+        StructuredOutput copy = new StructuredOutput(text);
+        copy.records.addAll(records);
+        copy.lines = lines.clone();
+        copy.lineStart = lineStart;
+        return copy;
+    }
+
+    /**
+     * Add record
+     *
+     * @param record record
+     */
+    synchronized void addRecord(Object record) {
+        records.add(record);
+    }
+
+    /**
+     * Capture output. Every completed line is added as line record
+     *
+     * @param s output
+     */
+    synchronized void append(String s) {
+        int start = 0;
+        int end;
+        while ((end = s.indexOf('\n', start)) != -1) {
+            text.append(s, start, end);
+            int lineEnd = text.length();
+            if (lineEnd > lineStart && text.charAt(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            addLine(lineEnd);
+            start = end + 1;
+        }
+        text.append(s, start, s.length());
+    }
+
+    /**
+     * Add incomplete output line as line record
+     */
+    synchronized void completeLine() {
+        if (text.length() > lineStart) {
+            addLine(text.length());
+        }
+    }
+
+    private void addLine(int lineEnd) {
+        int index = records.size();
+        if (lines.length < index * 2 + 2) {
+            int[] newLines = new int[Math.max(lines.length * 2, index * 2 + 2)];
+            System.arraycopy(lines, 0, newLines, 0, lines.length);
+            lines = newLines;
+        }
+        lines[index * 2] = lineStart;
+        lines[index * 2 + 1] = lineEnd;
+        records.add(null);
+        lineStart = text.length();
+    }
+
+    /**
+     * Output line
+     */
+    public static class Line {
+        private final String text;
+
+        public Line(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Dictionary entry
+     */
+    public static class Entry {
+        private final String title;
+        private final Object key;
+        private final Object value;
+
+        public Entry(String title, Object key, Object value) {
+            this.title = title;
+            this.key = key;
+            this.value = value;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public String toString() {
+            return key + " = " + value;
+        }
+    }
+
+    /**
+     * Bundle resource reference
+     */
+    public static class Resource {
+        private final Bundle bundle;
+        private final String resource;
+        private String content;
+
+        public Resource(Bundle bundle, String resource) {
+            this.bundle = bundle;
+            this.resource = resource;
+        }
+
+        public Bundle getBundle() {
+            return bundle;
+        }
+
+        public String getResource() {
+            return resource;
+        }
+
+        /**
+         * Read resource content in UTF-8
+         *
+         * @return resource content or <code>null</code> if there is no such resource
+         * @throws IOException unable to read resource
+         */
+        public synchronized String getContent() throws IOException {
+            if (content == null) {
+                URL entry = bundle.getEntry(resource);
+                if (entry == null) {
+                    return null;
+                }
+                InputStream in = entry.openStream();
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] bytes = new byte[8192];
+                    int read;
+                    while ((read = in.read(bytes)) != -1) {
+                        out.write(bytes, 0, read);
+                    }
+                    content = out.toString("UTF-8");
+                } finally {
+                    in.close();
+                }
+            }
+            return content;
+        }
+
+        public String toString() {
+            return bundle.getSymbolicName() + ":" + resource;
+        }
+    }
+}
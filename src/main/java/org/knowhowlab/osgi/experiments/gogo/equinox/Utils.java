@@ -26,12 +26,19 @@ import org.apache.felix.service.command.CommandSession;
 import org.apache.felix.service.command.Descriptor;
 import org.eclipse.osgi.framework.console.CommandInterpreter;
 import org.eclipse.osgi.framework.console.CommandProvider;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,159 +52,303 @@ public class Utils {
      * Logger
      */
     private static final Logger LOG = Logger.getLogger(Utils.class.getName());
+    /**
+     * Classes pool of the last adapter generation, it is checked by tests that the pool is not retained
+     */
+    static volatile WeakReference<ClassPool> lastClassPool;
 
     /**
      * Default scope
      */
-    private static final String DEFAULT_SCOPE = "equinox";
+    public static final String DEFAULT_SCOPE = "equinox";
 
     /**
-     * Classes pool
+     * Declarative Services component name service property
      */
-    private static final ClassPool POOL = ClassPool.getDefault();
+    private static final String COMPONENT_NAME = "component.name";
 
     /**
-     * Initialization of Classes pool
+     * Create GoGo service based on CommandProvider service
+     *
+     * @param provider Equinox CommandProvider service instance
+     * @return GoGo service info or <code>null</code>
      */
-    static {
-        POOL.appendClassPath(new ClassClassPath(EquinoxGogoAdapter.class));
-        POOL.appendClassPath(new ClassClassPath(CommandInterpreter.class));
+    public static <T extends CommandProvider> ShellInfo createGogoService(T provider) {
+        return createGogoService(provider, null);
     }
 
     /**
-     * Create GoGo service based on CommandProvider service
+     * Create GoGo service based on CommandProvider service. Generated adapter bytecode
+     * is taken from the cache if possible
      *
      * @param provider Equinox CommandProvider service instance
+     * @param cache    adapters bytecode cache or <code>null</code>
      * @return GoGo service info or <code>null</code>
      */
-    public static <T extends CommandProvider> ShellInfo createGogoService(T provider) {
-        // create class
-        CtClass ctClass = POOL.makeClass(EquinoxGogoAdapter.class.getName() + "_" + provider.getClass().getSimpleName());
+    public static <T extends CommandProvider> ShellInfo createGogoService(T provider, BytecodeCache cache) {
+        Class<? extends CommandProvider> providerClass = provider.getClass();
+        String className = getAdapterClassName(providerClass);
+        String help = provider.getHelp();
 
         // init set of commands
-        SortedSet<String> commands = new TreeSet<String>();
+        SortedMap<String, Method> commandMethods = findCommandMethods(providerClass);
 
         Class<EquinoxGogoAdapter> shellClass;
-
         try {
-            // check if class could be extended
-            if (!ctClass.isFrozen()) {
-                // create files and pool
-                ClassFile ccFile = ctClass.getClassFile();
-                ccFile.setVersionToJava5();
-                ConstPool constPool = ccFile.getConstPool();
-
-                // set superclass
-                CtClass abstractCtClass = POOL.getCtClass(EquinoxGogoAdapter.class.getName());
-                ctClass.setSuperclass(abstractCtClass);
-
-                // create constructor
-                CtClass serviceCtClass = POOL.getCtClass(CommandProvider.class.getName());
-                CtConstructor ctConstructor = new CtConstructor(new CtClass[]{
-                        serviceCtClass
-                }, ctClass);
-                ctConstructor.setModifiers(Modifier.PUBLIC);
-                ctConstructor.setBody("super($1);");
-                ctClass.addConstructor(ctConstructor);
-
-                Map<String, String> help = parseHelp(provider.getHelp());
-
-                // create methods based on methods in Equinox CommandProvider service instance
-                Class<? extends CommandProvider> providerClass = provider.getClass();
-                CtClass commandSessionCtClass = POOL.getCtClass(CommandSession.class.getName());
-                CtClass argsCtClass = POOL.getCtClass(String[].class.getName());
-                CtClass objectCtClass = POOL.getCtClass(Object.class.getName());
-                Method[] methods = providerClass.getMethods();
-                for (Method method : methods) {
-                    // if method starts with "_" - Equinox command name convention
-                    if (method.getName().startsWith("_")) {
-                        Class<?>[] params = method.getParameterTypes();
-                        // if method has only one param CommandInterpreter - Equinox command name convention
-                        if (params.length == 1 && params[0].equals(CommandInterpreter.class)) {
-                            String shellCommandName = method.getName().substring(1);
-                            commands.add(shellCommandName);
-
-                            // generate method for GoGo shell with 2 params: CommaneSession and
-                            // String[] for shell command parameters
-                            CtMethod ctMethod;
-                            // method returns nothing
-                            if (Void.class.equals(method.getReturnType())) {
-                                ctMethod = new CtMethod(CtClass.voidType, shellCommandName, new CtClass[]{
-                                        commandSessionCtClass, argsCtClass
-                                }, ctClass);
-                                ctMethod.setModifiers(Modifier.PUBLIC);
-                                ctMethod.setBody("runCommand($1, $2, \"" + shellCommandName + "\");");
-                            } else {
-                                // method return something
-                                ctMethod = new CtMethod(objectCtClass, shellCommandName, new CtClass[]{
-                                        commandSessionCtClass, argsCtClass
-                                }, ctClass);
-                                ctMethod.setModifiers(Modifier.PUBLIC);
-                                ctMethod.setBody("return runCommandWithResult($1, $2, \"" + shellCommandName + "\");");
-                            }
-
-                            // if help for this command is found - add GoGo descriptor for this shell command
-                            if (help.containsKey(shellCommandName)) {
-                                AnnotationsAttribute annotationsAttribute = new AnnotationsAttribute(constPool, AnnotationsAttribute.visibleTag);
-                                Annotation annotation = new Annotation(Descriptor.class.getName(), constPool);
-                                annotation.addMemberValue("value", new StringMemberValue(help.get(shellCommandName), constPool)); //todo: add help
-                                annotationsAttribute.addAnnotation(annotation);
-                                ctMethod.getMethodInfo().addAttribute(annotationsAttribute);
-                            }
-
-                            // add method to class
-                            ctClass.addMethod(ctMethod);
-                        }
-                    }
+            // try to reuse bytecode generated before
+            String cacheKey = cache != null ? cache.getKey(providerClass, help) : null;
+            byte[] bytecode = cacheKey != null ? cache.load(cacheKey, className) : null;
+            if (bytecode == null) {
+                bytecode = generateAdapter(className, providerClass, commandMethods, help);
+                if (cacheKey != null) {
+                    cache.store(cacheKey, className, bytecode);
                 }
             }
-            // generate class
-            shellClass = ctClass.toClass(EquinoxGogoAdapter.class.getClassLoader(),
-                    EquinoxGogoAdapter.class.getProtectionDomain());
+            // define class in loader that sees both adapter and provider classes
+            AdapterClassLoader classLoader = new AdapterClassLoader(providerClass.getClassLoader());
+            shellClass = (Class<EquinoxGogoAdapter>) classLoader.defineClass(className, bytecode);
         } catch (Exception e) {
-            LOG.log(Level.WARNING, "Unable to create Equinox GoGo adapter for: " + provider.getClass(), e);
+            LOG.log(Level.WARNING, "Unable to create Equinox GoGo adapter for: " + providerClass, e);
             return null;
         }
+        Set<String> commands = commandMethods.keySet();
         return new ShellInfo(DEFAULT_SCOPE, commands.toArray(new String[commands.size()]), shellClass);
     }
 
     /**
-     * Parse Equinox CommandProvider help
-     * @param help help string
-     * @return map with parsed commands and usages
+     * Get adapter class name. Name is unique for provider classes with the same simple name
+     * and stable between framework restarts
+     *
+     * @param providerClass CommandProvider class
+     * @return adapter class name
+     */
+    static String getAdapterClassName(Class<?> providerClass) {
+        String simpleName = providerClass.getSimpleName();
+        if (simpleName.length() == 0) {
+            simpleName = "Anonymous";
+        }
+        return EquinoxGogoAdapter.class.getName() + "_" + simpleName + "_"
+                + Integer.toHexString(providerClass.getName().hashCode());
+    }
+
+    /**
+     * Load CommandProvider implementation class from the bundle that registers service without getting
+     * service instance. Declarative Services <code>component.name</code> and <code>objectClass</code>
+     * service properties are used as candidate class names
+     *
+     * @param reference CommandProvider service reference
+     * @return CommandProvider implementation class or <code>null</code> if it could not be found
+     */
+    public static Class<? extends CommandProvider> loadProviderClass(ServiceReference reference) {
+        Bundle bundle = reference.getBundle();
+        if (bundle == null) {
+            return null;
+        }
+        List<String> classNames = new ArrayList<String>();
+        Object componentName = reference.getProperty(COMPONENT_NAME);
+        if (componentName instanceof String) {
+            classNames.add((String) componentName);
+        }
+        Object objectClass = reference.getProperty(Constants.OBJECTCLASS);
+        if (objectClass instanceof String[]) {
+            classNames.addAll(Arrays.asList((String[]) objectClass));
+        }
+        classNames.remove(CommandProvider.class.getName());
+        for (String className : classNames) {
+            try {
+                Class<?> clazz = bundle.loadClass(className);
+                if (CommandProvider.class.isAssignableFrom(clazz) && !clazz.isInterface()
+                        && !java.lang.reflect.Modifier.isAbstract(clazz.getModifiers())) {
+                    return clazz.asSubclass(CommandProvider.class);
+                }
+            } catch (ClassNotFoundException e) {
+                // not a class name - try next candidate
+            } catch (NoClassDefFoundError e) {
+                // class could not be loaded - try next candidate
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get names of Equinox commands that are provided by CommandProvider class
+     *
+     * @param providerClass CommandProvider class
+     * @return sorted command names
+     */
+    public static String[] getCommandNames(Class<? extends CommandProvider> providerClass) {
+        Set<String> commands = findCommandMethods(providerClass).keySet();
+        return commands.toArray(new String[commands.size()]);
+    }
+
+    /**
+     * Find Equinox command methods of CommandProvider class
+     *
+     * @param providerClass CommandProvider class
+     * @return map of command names and methods sorted by command name
      */
-    private static Map<String, String> parseHelp(String help) {
-        HashMap<String, String> map = new HashMap<String, String>();
-        if (help != null) {
-            // split by lines
-            String[] commandsHelp = help.split("\n");
-            for (String commandHelp : commandsHelp) {
-                // parse command name (<command_name> <command_usage>)
-                int spaceIndex = commandHelp.indexOf(" ");
-                if (spaceIndex != -1) {
-                    String commandName = commandHelp.substring(0, spaceIndex).trim();
-                    String commandUsage = commandHelp.substring(spaceIndex).trim();
-                    // if command usage starts with "- " - remove those symbols
-                    if (commandUsage.startsWith("- ")) {
-                        commandUsage = commandUsage.substring(2);
-                    }
-                    map.put(commandName, commandUsage);
+    static SortedMap<String, Method> findCommandMethods(Class<? extends CommandProvider> providerClass) {
+        SortedMap<String, Method> commandMethods = new TreeMap<String, Method>();
+        Method[] methods = providerClass.getMethods();
+        for (Method method : methods) {
+            // if method starts with "_" - Equinox command name convention
+            if (method.getName().startsWith("_")) {
+                Class<?>[] params = method.getParameterTypes();
+                // if method has only one param CommandInterpreter - Equinox command name convention
+                if (params.length == 1 && params[0].equals(CommandInterpreter.class)) {
+                    commandMethods.put(method.getName().substring(1), method);
                 }
             }
         }
-        return map;
+        return commandMethods;
     }
 
     /**
-     * Detach generated class
+     * Generate GoGo adapter bytecode
+     *
+     * @param className      adapter class name
+     * @param providerClass  CommandProvider class
+     * @param commandMethods command names and methods
+     * @param helpText       CommandProvider help
+     * @return adapter bytecode
+     * @throws Exception unable to generate adapter
      */
-    public static void clean(String className) {
+    private static byte[] generateAdapter(String className, Class<? extends CommandProvider> providerClass,
+                                          SortedMap<String, Method> commandMethods, String helpText) throws Exception {
+        // private classes pool is dropped after generation, so CtClasses of adapter and provider are not retained
+        ClassPool pool = createClassPool(providerClass);
+        lastClassPool = new WeakReference<ClassPool>(pool);
+
+        // create class
+        CtClass ctClass = pool.makeClass(className);
         try {
-            CtClass ctClass = POOL.getCtClass(className);
-            ctClass.defrost();
+            // create files and pool
+            ClassFile ccFile = ctClass.getClassFile();
+            ccFile.setVersionToJava5();
+            ConstPool constPool = ccFile.getConstPool();
+
+            // set superclass
+            CtClass abstractCtClass = pool.getCtClass(EquinoxGogoAdapter.class.getName());
+            ctClass.setSuperclass(abstractCtClass);
+
+            // provider could be called directly only if generated code has access to its methods
+            boolean directCall = isAccessible(providerClass);
+            for (Method method : commandMethods.values()) {
+                directCall &= isAccessible(method.getDeclaringClass());
+            }
+
+            // create field with typed provider instance
+            if (directCall) {
+                ctClass.addField(CtField.make("private " + providerClass.getName() + " target;", ctClass));
+            }
+
+            // create constructor
+            CtClass serviceCtClass = pool.getCtClass(CommandProvider.class.getName());
+            CtConstructor ctConstructor = new CtConstructor(new CtClass[]{
+                    serviceCtClass
+            }, ctClass);
+            ctConstructor.setModifiers(Modifier.PUBLIC);
+            if (directCall) {
+                ctConstructor.setBody("{super($1); target = (" + providerClass.getName() + ") $1;}");
+            } else {
+                ctConstructor.setBody("super($1);");
+            }
+            ctClass.addConstructor(ctConstructor);
+
+            // usages are materialized only for generated commands
+            HelpIndex help = HelpIndex.parse(helpText);
+
+            // create methods based on methods in Equinox CommandProvider service instance
+            CtClass commandSessionCtClass = pool.getCtClass(CommandSession.class.getName());
+            CtClass argsCtClass = pool.getCtClass(String[].class.getName());
+            CtClass objectCtClass = pool.getCtClass(Object.class.getName());
+            // body of direct dispatch method
+            StringBuilder dispatchBody = new StringBuilder("{switch ($1) {");
+            int commandIndex = 0;
+            for (Map.Entry<String, Method> entry : commandMethods.entrySet()) {
+                String shellCommandName = entry.getKey();
+                Method method = entry.getValue();
+
+                // generate method for GoGo shell with 2 params: CommaneSession and
+                // String[] for shell command parameters
+                // all methods return result, so output of void commands could be returned in structured mode
+                CtMethod ctMethod = new CtMethod(objectCtClass, shellCommandName, new CtClass[]{
+                        commandSessionCtClass, argsCtClass
+                }, ctClass);
+                ctMethod.setModifiers(Modifier.PUBLIC);
+                ctMethod.setBody("return runCommandWithResult($1, $2, \"" + shellCommandName + "\", " + commandIndex + ");");
+                // method returns nothing
+                if (void.class.equals(method.getReturnType())) {
+                    dispatchBody.append("case ").append(commandIndex).append(": target.")
+                            .append(method.getName()).append("($3); return null;");
+                } else {
+                    // method return something
+                    dispatchBody.append("case ").append(commandIndex).append(": return ($w) target.")
+                            .append(method.getName()).append("($3);");
+                }
+
+                // if help for this command is found - add GoGo descriptor for this shell command
+                String usage = help.getUsage(shellCommandName);
+                if (usage != null) {
+                    AnnotationsAttribute annotationsAttribute = new AnnotationsAttribute(constPool, AnnotationsAttribute.visibleTag);
+                    Annotation annotation = new Annotation(Descriptor.class.getName(), constPool);
+                    annotation.addMemberValue("value", new StringMemberValue(usage, constPool));
+                    annotationsAttribute.addAnnotation(annotation);
+                    ctMethod.getMethodInfo().addAttribute(annotationsAttribute);
+                }
+
+                // add method to class
+                ctClass.addMethod(ctMethod);
+                commandIndex++;
+            }
+
+            // override dispatch method with direct calls to provider
+            if (directCall) {
+                dispatchBody.append("default: return super.invokeCommand($1, $2, $3);}}");
+                CtMethod dispatchMethod = new CtMethod(objectCtClass, "invokeCommand", new CtClass[]{
+                        CtClass.intType, pool.getCtClass(String.class.getName()),
+                        pool.getCtClass(CommandInterpreter.class.getName())
+                }, ctClass);
+                dispatchMethod.setModifiers(Modifier.PROTECTED);
+                dispatchMethod.setExceptionTypes(new CtClass[]{pool.getCtClass(Exception.class.getName())});
+                dispatchMethod.setBody(dispatchBody.toString());
+                ctClass.addMethod(dispatchMethod);
+            } else {
+                LOG.log(Level.INFO, "CommandProvider class is not accessible, reflection is used for: " + providerClass);
+            }
+            return ctClass.toBytecode();
+        } finally {
             ctClass.detach();
-        } catch (NotFoundException e) {
-            LOG.log(Level.WARNING, "Unable to clean Console Service. " + e.getMessage(), e);
         }
     }
+
+    /**
+     * Create classes pool for adapter generation
+     *
+     * @param providerClass CommandProvider class
+     * @return classes pool that sees adapter and provider classes
+     */
+    private static ClassPool createClassPool(Class<?> providerClass) {
+        ClassPool pool = new ClassPool(false);
+        pool.appendClassPath(new ClassClassPath(EquinoxGogoAdapter.class));
+        pool.appendClassPath(new ClassClassPath(CommandInterpreter.class));
+        // make provider class visible for javassist compiler
+        pool.appendClassPath(new ClassClassPath(providerClass));
+        return pool;
+    }
+
+    /**
+     * Check if class is accessible from generated adapter
+     *
+     * @param clazz class
+     * @return <code>true</code> if class and all its enclosing classes are public
+     */
+    private static boolean isAccessible(Class<?> clazz) {
+        for (Class<?> c = clazz; c != null; c = c.getEnclosingClass()) {
+            if (!java.lang.reflect.Modifier.isPublic(c.getModifiers())) {
+                return false;
+            }
+        }
+        return clazz.getClassLoader() != null;
+    }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox.batch;
+
+/**
+ * Result of batch command
+ *
+ * @author dmytro.pishchukhin
+ */
+public class BatchResult {
+    /**
+     * Command is executed
+     */
+    public static final String OK = "ok";
+    /**
+     * Command is not found
+     */
+    public static final String UNKNOWN = "unknown";
+    /**
+     * Command is failed
+     */
+    public static final String ERROR = "error";
+
+    private final int seq;
+    private final String command;
+    private final String[] args;
+    private final String status;
+    private final String output;
+    private final Object value;
+    private final long duration;
+
+    public BatchResult(int seq, String command, String[] args, String status, String output, Object value, long duration) {
+        this.seq = seq;
+        this.command = command;
+        this.args = args;
+        this.status = status;
+        this.output = output;
+        this.value = value;
+        this.duration = duration;
+    }
+
+    /**
+     * Get sequence number of command in batch
+     *
+     * @return sequence number starting with 1
+     */
+    public int getSeq() {
+        return seq;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String[] getArgs() {
+        return args;
+    }
+
+    /**
+     * Get command status
+     *
+     * @return {@link #OK}, {@link #UNKNOWN} or {@link #ERROR}
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * Get console output of command
+     *
+     * @return console output
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * Get value returned by command
+     *
+     * @return value or <code>null</code>
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Get command execution time
+     *
+     * @return execution time in nanoseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Console output followed by returned value
+     *
+     * @return command output
+     */
+    public String toString() {
+        if (value == null) {
+            return output;
+        }
+        String separator = output.length() == 0 || output.endsWith("\n") ? "" : System.getProperty("line.separator");
+        return output + separator + value;
+    }
+}
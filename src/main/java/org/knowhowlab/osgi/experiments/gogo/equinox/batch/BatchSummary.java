@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox.batch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of batch
+ *
+ * @author dmytro.pishchukhin
+ */
+public class BatchSummary {
+    private final int commands;
+    private final int errors;
+    private final long time;
+    private final long latency;
+    private final long maxLatency;
+
+    public BatchSummary(int commands, int errors, long time, long latency, long maxLatency) {
+        this.commands = commands;
+        this.errors = errors;
+        this.time = time;
+        this.latency = latency;
+        this.maxLatency = maxLatency;
+    }
+
+    public int getCommands() {
+        return commands;
+    }
+
+    public int getErrors() {
+        return errors;
+    }
+
+    /**
+     * Get batch time from opening till closing
+     *
+     * @return batch time in nanoseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Get number of commands per second
+     *
+     * @return batch throughput
+     */
+    public double getThroughput() {
+        return time > 0 ? commands * (double) TimeUnit.SECONDS.toNanos(1) / time : 0;
+    }
+
+    /**
+     * Get mean command execution time
+     *
+     * @return mean latency in nanoseconds
+     */
+    public long getMeanLatency() {
+        return commands > 0 ? latency / commands : 0;
+    }
+
+    /**
+     * Get max command execution time
+     *
+     * @return max latency in nanoseconds
+     */
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public String toString() {
+        return String.format("%d commands, %d errors in %.3f ms: %.1f commands/s, latency %.3f ms mean, %.3f ms max",
+                commands, errors, time / 1000000.0, getThroughput(), getMeanLatency() / 1000000.0,
+                maxLatency / 1000000.0);
+    }
+}
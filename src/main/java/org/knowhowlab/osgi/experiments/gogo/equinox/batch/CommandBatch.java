@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox.batch;
+
+import java.util.concurrent.Future;
+
+/**
+ * Batch of commands. Commands of a batch are run in order, independent commands could run in parallel:
+ * a command that is not marked as parallel waits for all previous commands of its batch. Commands are
+ * submitted by one thread, session variables are shared by all commands of batch
+ *
+ * @author dmytro.pishchukhin
+ */
+public interface CommandBatch {
+    /**
+     * Submit command
+     *
+     * @param commandLine command name and arguments
+     * @param parallel    command is independent from previous commands and could run in parallel
+     * @return command result
+     * @throws InterruptedException submitting thread is interrupted while waiting for previous commands
+     */
+    Future<BatchResult> submit(String[] commandLine, boolean parallel) throws InterruptedException;
+
+    /**
+     * Wait for all submitted commands
+     *
+     * @throws InterruptedException waiting thread is interrupted
+     */
+    void await() throws InterruptedException;
+
+    /**
+     * Wait for all submitted commands and report batch
+     *
+     * @return batch summary
+     */
+    BatchSummary close();
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox.batch;
+
+import java.util.List;
+
+/**
+ * Batch API of adapted Equinox commands. Commands are run without GoGo shell parsing and formatting,
+ * every command gets own output. Service is registered by adapter bundle
+ *
+ * @author dmytro.pishchukhin
+ */
+public interface CommandBatches {
+    /**
+     * Open batch
+     *
+     * @param listener listener of command results or <code>null</code>
+     * @return batch that must be closed
+     */
+    CommandBatch open(BatchListener listener);
+
+    /**
+     * Run command
+     *
+     * @param commandLine command name and arguments
+     * @return command result
+     */
+    BatchResult execute(String... commandLine);
+
+    /**
+     * Run commands as one batch
+     *
+     * @param commandLines command names and arguments
+     * @param parallel     run all commands in parallel
+     * @return results in order of commands
+     * @throws InterruptedException waiting thread is interrupted
+     */
+    List<BatchResult> execute(List<String[]> commandLines, boolean parallel) throws InterruptedException;
+
+    /**
+     * Get number of closed batches
+     *
+     * @return number of batches
+     */
+    long getBatches();
+
+    /**
+     * Get number of executed commands
+     *
+     * @return number of commands
+     */
+    long getCommands();
+
+    /**
+     * Get number of unknown and failed commands
+     *
+     * @return number of failed commands
+     */
+    long getErrors();
+}
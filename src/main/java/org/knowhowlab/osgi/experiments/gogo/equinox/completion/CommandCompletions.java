@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox.completion;
+
+import java.util.List;
+
+/**
+ * Completion of adapted Equinox command names. Service is registered by adapter bundle
+ *
+ * @author dmytro.pishchukhin
+ */
+public interface CommandCompletions {
+    /**
+     * Complete command name
+     *
+     * @param prefix command name prefix, case insensitive
+     * @param max    max number of completions
+     * @return completions sorted by name
+     */
+    List<Completion> complete(String prefix, int max);
+}
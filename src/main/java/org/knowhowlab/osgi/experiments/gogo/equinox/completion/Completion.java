@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox.completion;
+
+/**
+ * Command name completion
+ *
+ * @author dmytro.pishchukhin
+ */
+public class Completion {
+    /**
+     * Command name
+     */
+    private final String name;
+    /**
+     * Arguments hint or <code>null</code>
+     */
+    private final String hint;
+    /**
+     * Number of providers of command
+     */
+    private final int providers;
+
+    public Completion(String name, String hint, int providers) {
+        this.name = name;
+        this.hint = hint;
+        this.providers = providers;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHint() {
+        return hint;
+    }
+
+    public int getProviders() {
+        return providers;
+    }
+
+    public String toString() {
+        return hint != null ? name + ' ' + hint : name;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox.stats;
+
+import java.util.List;
+
+/**
+ * Execution statistics of adapted Equinox commands. Service is registered by adapter bundle
+ *
+ * @author dmytro.pishchukhin
+ */
+public interface CommandStatistics {
+    /**
+     * Check if statistics are collected
+     *
+     * @return <code>true</code> if statistics are collected
+     */
+    boolean isEnabled();
+
+    /**
+     * Enable or disable statistics collection. Collected statistics are kept
+     *
+     * @param enabled <code>true</code> to collect statistics
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Get statistics of all executed commands
+     *
+     * @return statistics snapshots sorted by scope, command and bundle
+     */
+    List<CommandStatisticsSnapshot> snapshot();
+
+    /**
+     * Get statistics of all executed commands and reset them
+     *
+     * @return statistics snapshots sorted by scope, command and bundle
+     */
+    List<CommandStatisticsSnapshot> snapshotAndReset();
+
+    /**
+     * Reset statistics of all commands
+     */
+    void reset();
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox.stats;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of a command at some point in time
+ *
+ * @author dmytro.pishchukhin
+ */
+public class CommandStatisticsSnapshot {
+    /**
+     * Upper bounds of latency histogram buckets in nanoseconds. The last bucket has no upper bound
+     */
+    public static final long[] BUCKET_BOUNDS = new long[]{
+            TimeUnit.MICROSECONDS.toNanos(100),
+            TimeUnit.MILLISECONDS.toNanos(1),
+            TimeUnit.MILLISECONDS.toNanos(10),
+            TimeUnit.MILLISECONDS.toNanos(100),
+            TimeUnit.SECONDS.toNanos(1),
+            TimeUnit.SECONDS.toNanos(10)
+    };
+
+    /**
+     * Commands scope
+     */
+    private final String scope;
+    /**
+     * Command name
+     */
+    private final String command;
+    /**
+     * Symbolic name of CommandProvider bundle
+     */
+    private final String bundle;
+    /**
+     * Number of executions
+     */
+    private final long count;
+    /**
+     * Number of failed executions
+     */
+    private final long errors;
+    /**
+     * Total execution time in nanoseconds
+     */
+    private final long totalTime;
+    /**
+     * Max execution time in nanoseconds
+     */
+    private final long maxTime;
+    /**
+     * Number of executions per latency bucket
+     */
+    private final long[] histogram;
+
+    public CommandStatisticsSnapshot(String scope, String command, String bundle, long count, long errors,
+                                     long totalTime, long maxTime, long[] histogram) {
+        this.scope = scope;
+        this.command = command;
+        this.bundle = bundle;
+        this.count = count;
+        this.errors = errors;
+        this.totalTime = totalTime;
+        this.maxTime = maxTime;
+        this.histogram = histogram;
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String getBundle() {
+        return bundle;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    /**
+     * Get average execution time
+     *
+     * @return average execution time in nanoseconds
+     */
+    public long getAverageTime() {
+        return count > 0 ? totalTime / count : 0;
+    }
+
+    /**
+     * Get latency histogram
+     *
+     * @return number of executions per bucket of {@link #BUCKET_BOUNDS}, the last element
+     *         is number of executions above the last bound
+     */
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(scope).append(':').append(command).append(" [").append(bundle).append("] count=").append(count)
+                .append(" errors=").append(errors)
+                .append(" avg=").append(formatTime(getAverageTime()))
+                .append(" max=").append(formatTime(maxTime))
+                .append(" histogram=[");
+        for (int i = 0; i < histogram.length; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            if (i < BUCKET_BOUNDS.length) {
+                builder.append("<=").append(formatTime(BUCKET_BOUNDS[i]));
+            } else {
+                builder.append('>').append(formatTime(BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1]));
+            }
+            builder.append(':').append(histogram[i]);
+        }
+        return builder.append(']').toString();
+    }
+
+    private static String formatTime(long nanos) {
+        return String.format("%.3fms", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandProcessor;
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Descriptor;
+import org.eclipse.osgi.framework.console.CommandProvider;
+import org.eclipse.osgi.framework.internal.core.FrameworkProperties;
+import org.eclipse.osgi.launch.EquinoxFactory;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.BatchResult;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.CommandBatches;
+import org.knowhowlab.osgi.experiments.gogo.equinox.completion.CommandCompletions;
+import org.knowhowlab.osgi.experiments.gogo.equinox.completion.Completion;
+import org.knowhowlab.osgi.experiments.gogo.equinox.stats.CommandStatistics;
+import org.junit.*;
+import org.osgi.framework.*;
+import org.osgi.framework.launch.Framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Activator tests with embedded Equinox framework
+ *
+ * @author dmytro.pishchukhin
+ */
+public class ActivatorTest {
+    private static File storage;
+    private static Framework framework;
+
+    private BundleContext bc;
+
+    @BeforeClass
+    public static void startFramework() throws Exception {
+        storage = File.createTempFile("equinox", "");
+        storage.delete();
+        // Equinox could be started only once per JVM
+        Map<String, String> config = new HashMap<String, String>();
+        config.put(Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath());
+        framework = new EquinoxFactory().newFramework(config);
+        framework.start();
+    }
+
+    @AfterClass
+    public static void stopFramework() throws Exception {
+        framework.stop();
+        framework.waitForStop(10000);
+        delete(storage);
+    }
+
+    @Before
+    public void init() {
+        bc = framework.getBundleContext();
+    }
+
+    @After
+    public void clearProperties() {
+        FrameworkProperties.clearProperty(Activator.ASYNC_PROPERTY);
+        FrameworkProperties.clearProperty(Activator.LAZY_PROPERTY);
+        FrameworkProperties.clearProperty(Activator.BACKEND_PROPERTY);
+        FrameworkProperties.clearProperty(Activator.AGGREGATE_PROPERTY);
+    }
+
+    @Test
+    public void registrationTest() throws Exception {
+        Activator activator = new Activator();
+        activator.start(bc);
+        try {
+            ServiceRegistration registration = bc.registerService(CommandProvider.class.getName(), new NoHelpCommandProvider(), null);
+            Assert.assertTrue(activator.awaitReady(10000));
+            Assert.assertNotNull(findGogoService("hello"));
+            Assert.assertNotNull(bc.getServiceReference(CommandStatistics.class.getName()));
+            Assert.assertNotNull(bc.getServiceReference(CommandCompletions.class.getName()));
+            List<Completion> completions = activator.getCompletions().complete("equinox:hel", 10);
+            Assert.assertEquals(1, completions.size());
+            Assert.assertEquals("equinox:hello [name]", completions.get(0).toString());
+            BatchResult result = activator.getBatchExecutor().execute("equinox:hello", "batch");
+            Assert.assertEquals(BatchResult.OK, result.getStatus());
+            Assert.assertEquals("hello batch", result.getValue());
+            Assert.assertNotNull(bc.getServiceReference(CommandBatches.class.getName()));
+
+            registration.unregister();
+            Assert.assertNull(findGogoService("hello"));
+            Assert.assertTrue(activator.getCompletions().complete("equinox:hel", 10).isEmpty());
+            Assert.assertEquals(BatchResult.UNKNOWN, activator.getBatchExecutor().execute("equinox:hello", "batch").getStatus());
+        } finally {
+            activator.stop(bc);
+        }
+    }
+
+    @Test
+    public void dispatcherRegistrationTest() throws Exception {
+        FrameworkProperties.setProperty(Activator.BACKEND_PROPERTY, DispatcherAdapterBackend.NAME);
+        Activator activator = new Activator();
+        activator.start(bc);
+        try {
+            ServiceRegistration registration = bc.registerService(CommandProvider.class.getName(), new NoHelpCommandProvider(), null);
+            Assert.assertTrue(activator.awaitReady(10000));
+            ServiceReference reference = findGogoService("hello");
+            Assert.assertNotNull(reference);
+            Object adapter = bc.getService(reference);
+            Assert.assertTrue(adapter instanceof DispatcherEquinoxGogoAdapter);
+            Assert.assertEquals("hello world", ((DispatcherEquinoxGogoAdapter) adapter)._main(null, "hello", new String[]{"world"}));
+            bc.ungetService(reference);
+
+            registration.unregister();
+            Assert.assertNull(findGogoService("hello"));
+        } finally {
+            activator.stop(bc);
+        }
+    }
+
+    @Test
+    public void asyncRegistrationTest() throws Exception {
+        FrameworkProperties.setProperty(Activator.ASYNC_PROPERTY, "true");
+        Activator activator = new Activator();
+        activator.start(bc);
+        try {
+            ServiceRegistration[] registrations = new ServiceRegistration[10];
+            for (int i = 0; i < registrations.length; i++) {
+                registrations[i] = bc.registerService(CommandProvider.class.getName(), new NoHelpCommandProvider(), null);
+            }
+            // removed before or during generation
+            registrations[0].unregister();
+            Assert.assertTrue(activator.awaitReady(10000));
+            Assert.assertEquals(0, activator.getPendingCount());
+            Assert.assertEquals(registrations.length - 1, bc.getServiceReferences(null,
+                    "(" + CommandProcessor.COMMAND_FUNCTION + "=hello)").length);
+
+            for (int i = 1; i < registrations.length; i++) {
+                registrations[i].unregister();
+            }
+            Assert.assertNull(findGogoService("hello"));
+        } finally {
+            activator.stop(bc);
+        }
+    }
+
+    @Test
+    public void lazyRegistrationTest() throws Exception {
+        FrameworkProperties.setProperty(Activator.LAZY_PROPERTY, "true");
+        Activator activator = new Activator();
+        activator.start(bc);
+        try {
+            // CommandProvider registered with Declarative Services component name
+            Dictionary<String, Object> props = new Hashtable<String, Object>();
+            props.put("component.name", NoHelpCommandProvider.class.getName());
+            ServiceRegistration registration = bc.registerService(CommandProvider.class.getName(), new NoHelpCommandProvider(), props);
+            Assert.assertTrue(activator.awaitReady(10000));
+
+            ServiceReference reference = findGogoService("hello");
+            Assert.assertNotNull(reference);
+            LazyEquinoxGogoAdapter lazyAdapter = (LazyEquinoxGogoAdapter) bc.getService(reference);
+            Assert.assertFalse(lazyAdapter.isActivated());
+            Assert.assertFalse(lazyAdapter.isMaterialized());
+            Assert.assertTrue(activator.getUnactivatedCount() > 0);
+
+            // first command call activates provider
+            Assert.assertEquals("hello world", lazyAdapter._main(null, "hello", new String[]{"world"}));
+            Assert.assertTrue(lazyAdapter.isActivated());
+            Assert.assertTrue(lazyAdapter.isMaterialized());
+            bc.ungetService(reference);
+
+            // stub is replaced with generated adapter
+            ServiceReference adapterReference = findGogoService("hello");
+            Assert.assertTrue(bc.getService(adapterReference) instanceof EquinoxGogoAdapter);
+            bc.ungetService(adapterReference);
+
+            registration.unregister();
+            Assert.assertNull(findGogoService("hello"));
+            Assert.assertFalse(lazyAdapter.isMaterialized());
+        } finally {
+            activator.stop(bc);
+        }
+    }
+
+    @Test
+    public void modifiedServiceTest() throws Exception {
+        Activator activator = new Activator();
+        activator.start(bc);
+        try {
+            ServiceRegistration registration = bc.registerService(CommandProvider.class.getName(), new NoHelpCommandProvider(), null);
+            Assert.assertTrue(activator.awaitReady(10000));
+            ServiceReference reference = findGogoService("hello");
+            Assert.assertEquals(Utils.DEFAULT_SCOPE, reference.getProperty(CommandProcessor.COMMAND_SCOPE));
+
+            // ranking is updated in place
+            Dictionary<String, Object> props = new Hashtable<String, Object>();
+            props.put(Constants.SERVICE_RANKING, 5);
+            registration.setProperties(props);
+            ServiceReference updated = findGogoService("hello");
+            Assert.assertEquals(reference.getProperty(Constants.SERVICE_ID), updated.getProperty(Constants.SERVICE_ID));
+            Assert.assertEquals(5, updated.getProperty(Constants.SERVICE_RANKING));
+
+            // GoGo service is registered again with provider scope
+            props.put(CommandProcessor.COMMAND_SCOPE, "custom");
+            registration.setProperties(props);
+            updated = findGogoService("hello");
+            Assert.assertEquals("custom", updated.getProperty(CommandProcessor.COMMAND_SCOPE));
+            Assert.assertEquals(1, bc.getServiceReferences(null, "(" + CommandProcessor.COMMAND_FUNCTION + "=hello)").length);
+
+            registration.unregister();
+            Assert.assertNull(findGogoService("hello"));
+        } finally {
+            activator.stop(bc);
+        }
+    }
+
+    @Test
+    public void helpUpdateTest() throws Exception {
+        Activator activator = new Activator();
+        activator.start(bc);
+        try {
+            HelpCommandProvider provider = new HelpCommandProvider();
+            ServiceRegistration registration = bc.registerService(CommandProvider.class.getName(), provider, null);
+            Assert.assertTrue(activator.awaitReady(10000));
+            Assert.assertTrue(getDescriptor(findGogoService("hello")).contains("print hello with given name"));
+
+            // adapter is generated again with new help
+            provider.setHelp("hello [name] - greet given name");
+            registration.setProperties(new Hashtable<String, Object>());
+            Assert.assertTrue(getDescriptor(findGogoService("hello")).contains("greet given name"));
+            Assert.assertEquals(1, bc.getServiceReferences(null, "(" + CommandProcessor.COMMAND_FUNCTION + "=hello)").length);
+
+            registration.unregister();
+            Assert.assertNull(findGogoService("hello"));
+        } finally {
+            activator.stop(bc);
+        }
+    }
+
+    @Test
+    public void aggregateRegistrationTest() throws Exception {
+        FrameworkProperties.setProperty(Activator.AGGREGATE_PROPERTY, "true");
+        ServiceRegistration registration1 = bc.registerService(CommandProvider.class.getName(), new NoHelpCommandProvider(), null);
+        Activator activator = new Activator();
+        activator.start(bc);
+        try {
+            // conflicting provider with higher ranking
+            Dictionary<String, Object> props = new Hashtable<String, Object>();
+            props.put(Constants.SERVICE_RANKING, 10);
+            ServiceRegistration registration2 = bc.registerService(CommandProvider.class.getName(), new NoHelpCommandProvider(), props);
+            Assert.assertTrue(activator.awaitReady(10000));
+            Assert.assertEquals(1, bc.getServiceReferences(null, "(" + CommandProcessor.COMMAND_FUNCTION + "=hello)").length);
+
+            ServiceReference reference = findGogoService("hello");
+            AggregateDispatcher dispatcher = (AggregateDispatcher) bc.getService(reference);
+            Assert.assertEquals("hello world", dispatcher._main(null, "hello", new String[]{"world"}));
+            String qualifiedName = bc.getBundle().getSymbolicName() + ".hello";
+            Assert.assertTrue(Arrays.asList(dispatcher.getFunctions()).contains(qualifiedName));
+            List<String> providers = activator.which("hello");
+            Assert.assertEquals(2, providers.size());
+            Assert.assertTrue(providers.get(0).contains("ranking 10"));
+            Assert.assertEquals("hello batch", activator.getBatchExecutor().execute("hello", "batch").getValue());
+            bc.ungetService(reference);
+
+            registration2.unregister();
+            Assert.assertEquals(1, activator.which("hello").size());
+            Assert.assertNotNull(findGogoService("hello"));
+            Assert.assertNull(findGogoService(qualifiedName));
+
+            registration1.unregister();
+            registration1 = null;
+            Assert.assertNull(findGogoService("hello"));
+        } finally {
+            activator.stop(bc);
+            if (registration1 != null) {
+                registration1.unregister();
+            }
+        }
+    }
+
+    private ServiceReference findGogoService(String function) throws InvalidSyntaxException {
+        ServiceReference[] references = bc.getServiceReferences(null, "(" + CommandProcessor.COMMAND_FUNCTION + "=" + function + ")");
+        return references != null ? references[0] : null;
+    }
+
+    private String getDescriptor(ServiceReference reference) throws Exception {
+        Object service = bc.getService(reference);
+        try {
+            Method method = service.getClass().getMethod("hello", CommandSession.class, String[].class);
+            return method.getAnnotation(Descriptor.class).value();
+        } finally {
+            bc.ungetService(reference);
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * CommandProvider with changeable help
+     */
+    public static class HelpCommandProvider extends NoHelpCommandProvider {
+        private volatile String help = super.getHelp();
+
+        public String getHelp() {
+            return help;
+        }
+
+        public void setHelp(String help) {
+            this.help = help;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandInterpreter;
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+/**
+ * CommandProvider that counts its arguments without any output
+ *
+ * @author dmytro.pishchukhin
+ */
+public class ArgumentsCommandProvider implements CommandProvider {
+    private int arguments;
+    private String last;
+
+    public String getHelp() {
+        return "args - count arguments\nnested - run nested command and count arguments";
+    }
+
+    public void _args(CommandInterpreter intp) {
+        while ((last = intp.nextArgument()) != null) {
+            arguments++;
+        }
+    }
+
+    public void _nested(CommandInterpreter intp) {
+        last = intp.nextArgument();
+        intp.execute("args");
+        // arguments of this command are not affected by nested command
+        last = intp.nextArgument();
+    }
+
+    public int getArguments() {
+        return arguments;
+    }
+
+    public String getLast() {
+        return last;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+import org.junit.Assert;
+import org.junit.Test;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.BatchResult;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.BatchSummary;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.CommandBatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class BatchExecutorTest {
+    @Test
+    public void executeTest() throws Exception {
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null));
+        OutputCommandProvider provider = new OutputCommandProvider();
+        final ShellInfo shellInfo = cache.acquire(provider);
+        final EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+        BatchExecutor batchExecutor = new BatchExecutor(new BatchExecutor.Dispatcher() {
+            public Object dispatch(CommandSession commandSession, String command, String[] args) {
+                int commandIndex = Arrays.binarySearch(shellInfo.getCommands(), command);
+                if (commandIndex < 0) {
+                    throw new CommandNotFoundException(command);
+                }
+                return adapter.runCommandWithResult(commandSession, args, command, commandIndex);
+            }
+        }, 0);
+
+        String separator = System.getProperty("line.separator");
+        List<BatchResult> results = batchExecutor.execute(Arrays.asList(new String[]{"lines", "a", "b"},
+                new String[]{"unknown"}, new String[]{"lines", "c"}), true);
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(1, results.get(0).getSeq());
+        Assert.assertEquals(BatchResult.OK, results.get(0).getStatus());
+        Assert.assertEquals("line a" + separator + "line b" + separator, results.get(0).getOutput());
+        Assert.assertEquals(BatchResult.UNKNOWN, results.get(1).getStatus());
+        Assert.assertEquals("line c" + separator, results.get(2).toString());
+        Assert.assertEquals(1, batchExecutor.getBatches());
+        Assert.assertEquals(3, batchExecutor.getCommands());
+        Assert.assertEquals(1, batchExecutor.getErrors());
+    }
+
+    @Test
+    public void failureTest() throws Exception {
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null));
+        StackTraceCommandProvider provider = new StackTraceCommandProvider();
+        final ShellInfo shellInfo = cache.acquire(provider);
+        final EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+        BatchExecutor batchExecutor = new BatchExecutor(new BatchExecutor.Dispatcher() {
+            public Object dispatch(CommandSession commandSession, String command, String[] args) {
+                if ("parse".equals(command)) {
+                    return Integer.parseInt(args[0]);
+                }
+                int commandIndex = Arrays.binarySearch(shellInfo.getCommands(), command);
+                if (commandIndex < 0) {
+                    throw new CommandNotFoundException(command);
+                }
+                return adapter.runCommandWithResult(commandSession, args, command, commandIndex);
+            }
+        }, 0);
+
+        // adapter reports provider failure
+        BatchResult result = batchExecutor.execute("fail");
+        Assert.assertEquals(BatchResult.ERROR, result.getStatus());
+        Assert.assertTrue(result.getOutput().contains("Unable to execute shell command: fail"));
+        Assert.assertTrue(result.getOutput().contains("java.lang.Exception: fail"));
+        Assert.assertEquals(BatchResult.OK, batchExecutor.execute("count", "a").getStatus());
+        // command errors are not reported as unknown commands
+        result = batchExecutor.execute("parse", "x");
+        Assert.assertEquals(BatchResult.ERROR, result.getStatus());
+        Assert.assertTrue(result.getOutput().contains("NumberFormatException"));
+        Assert.assertEquals(BatchResult.UNKNOWN, batchExecutor.execute("foo").getStatus());
+        Assert.assertEquals(3, batchExecutor.getErrors());
+    }
+
+    @Test
+    public void parallelTest() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        BatchExecutor batchExecutor = new BatchExecutor(new BatchExecutor.Dispatcher() {
+            public Object dispatch(CommandSession commandSession, String command, String[] args) {
+                try {
+                    Thread.sleep(Long.parseLong(args[0]));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add(command);
+                return command;
+            }
+        }, 4);
+        try {
+            CommandBatch batch = batchExecutor.open(null);
+            long start = System.nanoTime();
+            List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(batch.submit(new String[]{"slow" + i, "200"}, true));
+            }
+            // waits for all independent commands
+            futures.add(batch.submit(new String[]{"barrier", "0"}, false));
+            BatchSummary summary = batch.close();
+
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 700);
+            Assert.assertEquals(5, order.size());
+            Assert.assertEquals("barrier", order.get(4));
+            Assert.assertEquals("barrier", futures.get(4).get().getValue());
+            Assert.assertEquals(5, summary.getCommands());
+            Assert.assertEquals(0, summary.getErrors());
+            Assert.assertTrue(summary.getMaxLatency() >= TimeUnit.MILLISECONDS.toNanos(200));
+            Assert.assertTrue(summary.getThroughput() > 0);
+        } finally {
+            batchExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void parseTest() throws Exception {
+        Assert.assertEquals(Arrays.asList("ss"), Arrays.asList(BatchExecutor.parse("  ss ")));
+        Assert.assertEquals(Arrays.asList("install", "file:/a b.jar", "it's"),
+                Arrays.asList(BatchExecutor.parse("install \"file:/a b.jar\"\tit\"'\"s")));
+        Assert.assertEquals(0, BatchExecutor.parse("   ").length);
+    }
+}
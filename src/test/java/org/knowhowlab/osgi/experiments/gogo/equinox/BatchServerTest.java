@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+import org.junit.Assert;
+import org.junit.Test;
+import org.knowhowlab.osgi.experiments.gogo.equinox.batch.BatchResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class BatchServerTest {
+    @Test
+    public void pipelineTest() throws Exception {
+        BatchExecutor batchExecutor = new BatchExecutor(new BatchExecutor.Dispatcher() {
+            public Object dispatch(CommandSession commandSession, String command, String[] args) {
+                if (!"echo".equals(command)) {
+                    throw new CommandNotFoundException(command);
+                }
+                for (String arg : args) {
+                    commandSession.getConsole().print(arg);
+                }
+                return null;
+            }
+        }, 2);
+        BatchServer server = new BatchServer(batchExecutor, 0, 16, createSecretFile());
+        server.start();
+        try {
+            Socket socket = new Socket(InetAddress.getByName(null), server.getPort());
+            try {
+                OutputStream out = socket.getOutputStream();
+                // commands are sent without waiting for results
+                out.write((readSecret(server.getSecretFile()) + "\necho a\r\necho \"b c\" &\necho d &\nfoo\n\necho \u00e9\n").getBytes("UTF-8"));
+                socket.shutdownOutput();
+
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                Map<String, String> results = new HashMap<String, String>();
+                String[] header;
+                for (int i = 0; i < 4; i++) {
+                    header = readHeader(in);
+                    Assert.assertEquals("result", header[0]);
+                    results.put(header[1] + ' ' + header[2], readBody(in, header));
+                }
+                Assert.assertEquals("a", results.get("1 ok"));
+                Assert.assertEquals("b c", results.get("2 ok"));
+                Assert.assertEquals("d", results.get("3 ok"));
+                Assert.assertEquals("Command not found: foo" + System.getProperty("line.separator"), results.get("4 unknown"));
+
+                header = readHeader(in);
+                Assert.assertEquals("batch", header[0]);
+                Assert.assertEquals("4", header[1]);
+                Assert.assertEquals("1", header[2]);
+                Assert.assertTrue(readBody(in, header).startsWith("4 commands, 1 errors in "));
+
+                // next batch
+                header = readHeader(in);
+                Assert.assertEquals("1", header[1]);
+                Assert.assertEquals("\u00e9", readBody(in, header));
+                header = readHeader(in);
+                Assert.assertEquals("batch", header[0]);
+                readBody(in, header);
+                Assert.assertEquals(-1, in.read());
+            } finally {
+                socket.close();
+            }
+            Assert.assertEquals(2, batchExecutor.getBatches());
+            Assert.assertEquals(5, batchExecutor.getCommands());
+        } finally {
+            server.stop();
+            batchExecutor.shutdown();
+        }
+        Assert.assertEquals(0, server.getConnections());
+        Assert.assertFalse(server.getSecretFile().exists());
+    }
+
+    @Test
+    public void wrongSecretTest() throws Exception {
+        BatchExecutor batchExecutor = new BatchExecutor(new BatchExecutor.Dispatcher() {
+            public Object dispatch(CommandSession commandSession, String command, String[] args) {
+                Assert.fail("Command is run without secret: " + command);
+                return null;
+            }
+        }, 0);
+        BatchServer server = new BatchServer(batchExecutor, 0, 16, createSecretFile());
+        server.start();
+        try {
+            Socket socket = new Socket(InetAddress.getByName(null), server.getPort());
+            try {
+                socket.getOutputStream().write("0123\nexit\n".getBytes("UTF-8"));
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                String[] header = readHeader(in);
+                Assert.assertEquals("0", header[1]);
+                Assert.assertEquals(BatchResult.ERROR, header[2]);
+                Assert.assertEquals("Wrong secret", readBody(in, header));
+                Assert.assertEquals(-1, in.read());
+            } finally {
+                socket.close();
+            }
+            Assert.assertEquals(0, batchExecutor.getBatches());
+        } finally {
+            server.stop();
+            batchExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void connectionsLimitTest() throws Exception {
+        BatchExecutor batchExecutor = new BatchExecutor(new BatchExecutor.Dispatcher() {
+            public Object dispatch(CommandSession commandSession, String command, String[] args) {
+                return command;
+            }
+        }, 0);
+        BatchServer server = new BatchServer(batchExecutor, 0, 1, createSecretFile());
+        server.start();
+        try {
+            Socket first = new Socket(InetAddress.getByName(null), server.getPort());
+            try {
+                first.getOutputStream().write((readSecret(server.getSecretFile()) + "\nping\n").getBytes("UTF-8"));
+                DataInputStream firstIn = new DataInputStream(first.getInputStream());
+                String[] header = readHeader(firstIn);
+                Assert.assertEquals(BatchResult.OK, header[2]);
+                Assert.assertEquals("ping", readBody(firstIn, header));
+                Assert.assertEquals(1, server.getConnections());
+
+                Socket second = new Socket(InetAddress.getByName(null), server.getPort());
+                try {
+                    DataInputStream in = new DataInputStream(second.getInputStream());
+                    header = readHeader(in);
+                    Assert.assertEquals("0", header[1]);
+                    Assert.assertEquals(BatchResult.ERROR, header[2]);
+                    Assert.assertEquals("Too many connections", readBody(in, header));
+                    Assert.assertEquals(-1, in.read());
+                } finally {
+                    second.close();
+                }
+                Assert.assertEquals(1, server.getConnections());
+            } finally {
+                first.close();
+            }
+        } finally {
+            server.stop();
+            batchExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void silentConnectionsTest() throws Exception {
+        BatchExecutor batchExecutor = new BatchExecutor(new BatchExecutor.Dispatcher() {
+            public Object dispatch(CommandSession commandSession, String command, String[] args) {
+                return command;
+            }
+        }, 0);
+        int maxConnections = 4;
+        BatchServer server = new BatchServer(batchExecutor, 0, maxConnections, createSecretFile(), 200, 0);
+        server.start();
+        List<Socket> silent = new ArrayList<Socket>();
+        try {
+            // silent clients take all connections and never send the secret
+            for (int i = 0; i < maxConnections; i++) {
+                silent.add(new Socket(InetAddress.getByName(null), server.getPort()));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.getConnections() < maxConnections && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(maxConnections, server.getConnections());
+
+            // silent clients are disconnected after authentication timeout
+            for (Socket socket : silent) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                String[] header = readHeader(in);
+                Assert.assertEquals(BatchResult.ERROR, header[2]);
+                Assert.assertEquals("Authentication timeout", readBody(in, header));
+                Assert.assertEquals(-1, in.read());
+            }
+            deadline = System.currentTimeMillis() + 5000;
+            while (server.getConnections() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            Socket socket = new Socket(InetAddress.getByName(null), server.getPort());
+            try {
+                socket.getOutputStream().write((readSecret(server.getSecretFile()) + "\nping\n").getBytes("UTF-8"));
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                String[] header = readHeader(in);
+                Assert.assertEquals(BatchResult.OK, header[2]);
+                Assert.assertEquals("ping", readBody(in, header));
+            } finally {
+                socket.close();
+            }
+        } finally {
+            for (Socket socket : silent) {
+                socket.close();
+            }
+            server.stop();
+            batchExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void idleConnectionTest() throws Exception {
+        BatchExecutor batchExecutor = new BatchExecutor(new BatchExecutor.Dispatcher() {
+            public Object dispatch(CommandSession commandSession, String command, String[] args) {
+                return command;
+            }
+        }, 0);
+        BatchServer server = new BatchServer(batchExecutor, 0, 1, createSecretFile(), 5000, 200);
+        server.start();
+        try {
+            Socket socket = new Socket(InetAddress.getByName(null), server.getPort());
+            try {
+                socket.getOutputStream().write((readSecret(server.getSecretFile()) + "\nping\n").getBytes("UTF-8"));
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                String[] header = readHeader(in);
+                Assert.assertEquals("ping", readBody(in, header));
+                // authenticated client that stays silent is disconnected
+                Assert.assertEquals(-1, in.read());
+            } finally {
+                socket.close();
+            }
+        } finally {
+            server.stop();
+            batchExecutor.shutdown();
+        }
+    }
+
+    private static File createSecretFile() {
+        return new File(System.getProperty("java.io.tmpdir"), "batch" + System.nanoTime() + ".secret");
+    }
+
+    private static String readSecret(File file) throws IOException {
+        Assert.assertTrue(file.canRead());
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] secret = new byte[(int) file.length()];
+            in.readFully(secret);
+            return new String(secret, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String[] readHeader(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            Assert.assertTrue(b >= 0);
+            line.write(b);
+        }
+        return line.toString("UTF-8").split(" ");
+    }
+
+    private static String readBody(DataInputStream in, String[] header) throws IOException {
+        byte[] body = new byte[Integer.parseInt(header[header.length - 1])];
+        in.readFully(body);
+        return new String(body, "UTF-8");
+    }
+}
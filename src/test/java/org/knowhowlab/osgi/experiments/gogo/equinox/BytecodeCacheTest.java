@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class BytecodeCacheTest {
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("adapters", "");
+        directory.delete();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void storeLoadTest() {
+        BytecodeCache cache = new TestBytecodeCache(directory, 10, "bundle;1.0.0;1");
+        String key = cache.getKey(NoHelpCommandProvider.class, "help");
+        Assert.assertNull(cache.load(key, "Adapter"));
+
+        cache.store(key, "Adapter", new byte[]{1, 2, 3});
+        Assert.assertTrue(Arrays.equals(new byte[]{1, 2, 3}, cache.load(key, "Adapter")));
+        Assert.assertNull(cache.load(key, "OtherAdapter"));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidationTest() {
+        BytecodeCache cache = new TestBytecodeCache(directory, 10, "bundle;1.0.0;1");
+        String key = cache.getKey(NoHelpCommandProvider.class, "help");
+        cache.store(key, "Adapter", new byte[]{1});
+
+        // help is changed
+        Assert.assertNull(cache.load(cache.getKey(NoHelpCommandProvider.class, "new help"), "Adapter"));
+
+        // bundle is updated
+        BytecodeCache updatedCache = new TestBytecodeCache(directory, 10, "bundle;1.0.0;2");
+        String updatedKey = updatedCache.getKey(NoHelpCommandProvider.class, "help");
+        Assert.assertNull(updatedCache.load(updatedKey, "Adapter"));
+
+        // stale entry is replaced
+        updatedCache.store(updatedKey, "Adapter", new byte[]{2});
+        Assert.assertEquals(1, updatedCache.size());
+        Assert.assertNull(cache.load(key, "Adapter"));
+    }
+
+    @Test
+    public void generatorInvalidationTest() {
+        BytecodeCache cache = new TestBytecodeCache(directory, 10, "bundle;1.0.0;1");
+        String key = cache.getKey(NoHelpCommandProvider.class, "help");
+        cache.store(key, "Adapter", new byte[]{1});
+
+        // adapter bundle is updated
+        BytecodeCache updatedCache = new TestBytecodeCache(directory, 10, "bundle;1.0.0;1") {
+            protected String getGeneratorFingerprint() {
+                return "adapter;1.0.0;2";
+            }
+        };
+        Assert.assertNull(updatedCache.load(updatedCache.getKey(NoHelpCommandProvider.class, "help"), "Adapter"));
+    }
+
+    @Test
+    public void helpDigestTest() {
+        BytecodeCache cache = new TestBytecodeCache(directory, 10, "bundle;1.0.0;1");
+        // same String hash codes
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        Assert.assertFalse(cache.getKey(NoHelpCommandProvider.class, "Aa").equals(
+                cache.getKey(NoHelpCommandProvider.class, "BB")));
+    }
+
+    @Test
+    public void maxSizeTest() {
+        BytecodeCache cache = new TestBytecodeCache(directory, 2, "bundle;1.0.0;1");
+        cache.store(cache.getKey(NoHelpCommandProvider.class, null), "Adapter1", new byte[]{1});
+        cache.store(cache.getKey(StackTraceCommandProvider.class, null), "Adapter2", new byte[]{2});
+        cache.store(cache.getKey(String.class, null), "Adapter3", new byte[]{3});
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void notBundleClassTest() {
+        BytecodeCache cache = new BytecodeCache(directory, 10);
+        Assert.assertNull(cache.getKey(NoHelpCommandProvider.class, "help"));
+    }
+
+    @Test
+    public void cachedAdapterTest() throws Exception {
+        BytecodeCache cache = new TestBytecodeCache(directory, 10, "bundle;1.0.0;1");
+        NoHelpCommandProvider provider = new NoHelpCommandProvider();
+
+        ShellInfo generated = Utils.createGogoService(provider, cache);
+        Assert.assertNotNull(generated);
+        Assert.assertEquals(1, cache.size());
+
+        ShellInfo cached = Utils.createGogoService(provider, cache);
+        Assert.assertNotNull(cached);
+        Assert.assertTrue(Arrays.equals(generated.getCommands(), cached.getCommands()));
+        Assert.assertNotSame(generated.getShellClass(), cached.getShellClass());
+
+        EquinoxGogoAdapter adapter = cached.getShellClass().getConstructor(CommandProvider.class).newInstance(provider);
+        Assert.assertEquals("hello world", cached.getShellClass().getMethod("hello", org.apache.felix.service.command.CommandSession.class,
+                String[].class).invoke(adapter, null, new String[]{"world"}));
+    }
+
+    /**
+     * Cache with predefined bundle fingerprint
+     */
+    private static class TestBytecodeCache extends BytecodeCache {
+        private final String bundleFingerprint;
+
+        private TestBytecodeCache(File directory, int maxSize, String bundleFingerprint) {
+            super(directory, maxSize);
+            this.bundleFingerprint = bundleFingerprint;
+        }
+
+        protected String getBundleFingerprint(Class<?> providerClass) {
+            return bundleFingerprint;
+        }
+    }
+}
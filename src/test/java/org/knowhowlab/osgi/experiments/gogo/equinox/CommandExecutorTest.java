@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandInterpreter;
+import org.eclipse.osgi.framework.console.CommandProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class CommandExecutorTest {
+    @Test
+    public void timeoutTest() throws Exception {
+        CommandExecutor executor = new CommandExecutor(false, 1, 1, 0, Collections.singletonMap("sleep", 50L));
+        try {
+            final CountDownLatch interrupted = new CountDownLatch(1);
+            try {
+                executor.execute("sleep", new Callable<Object>() {
+                    public Object call() throws Exception {
+                        try {
+                            Thread.sleep(10000);
+                        } catch (InterruptedException e) {
+                            interrupted.countDown();
+                        }
+                        return null;
+                    }
+                });
+                Assert.fail("Timeout is expected");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, executor.getTimedOut());
+            Assert.assertEquals(0, executor.getTimeout("other"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void nestedCommandTest() throws Exception {
+        final CommandExecutor executor = new CommandExecutor(false, 1, 1, 0, Collections.<String, Long>emptyMap());
+        try {
+            // nested command would wait forever for the only pool thread
+            Object result = executor.execute("outer", new Callable<Object>() {
+                public Object call() throws Exception {
+                    final Thread outer = Thread.currentThread();
+                    return executor.execute("inner", new Callable<Object>() {
+                        public Object call() throws Exception {
+                            return Thread.currentThread() == outer;
+                        }
+                    });
+                }
+            });
+            Assert.assertEquals(Boolean.TRUE, result);
+            Assert.assertEquals(1, executor.getExecuted());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectionTest() throws Exception {
+        final CommandExecutor executor = new CommandExecutor(false, 1, 1, 0, Collections.<String, Long>emptyMap());
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            Callable<Object> blocked = new Callable<Object>() {
+                public Object call() throws Exception {
+                    release.await();
+                    return null;
+                }
+            };
+            // one running and one queued command
+            startCommand(executor, blocked);
+            startCommand(executor, blocked);
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((executor.getExecuted() < 1 || executor.getQueued() < 1) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            try {
+                executor.execute("rejected", blocked);
+                Assert.fail("Rejection is expected");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            Assert.assertEquals(1, executor.getRejected());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void adapterOutputTest() throws Exception {
+        CommandExecutor executor = new CommandExecutor(false, 2, 2, 0, Collections.<String, Long>emptyMap());
+        try {
+            AdapterContext context = new AdapterContext();
+            context.setCommandExecutor(executor);
+            ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null), context);
+            OutputCommandProvider provider = new OutputCommandProvider();
+            ShellInfo shellInfo = cache.acquire(provider);
+            EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+
+            TestCommandSession session = new TestCommandSession();
+            adapter.runCommandWithResult(session, new String[]{"a", "b"}, "lines",
+                    Arrays.binarySearch(shellInfo.getCommands(), "lines"));
+            String separator = System.getProperty("line.separator");
+            Assert.assertEquals("line a" + separator + "line b" + separator, session.getOutput());
+            Assert.assertEquals(1, executor.getExecuted());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void hungCommandTest() throws Exception {
+        Map<String, Long> timeouts = new HashMap<String, Long>();
+        timeouts.put("hung", 50L);
+        timeouts.put("quick", 5000L);
+        CommandExecutor executor = new CommandExecutor(false, 1, 1, 0, timeouts);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            try {
+                executor.execute("hung", new Callable<Object>() {
+                    public Object call() throws Exception {
+                        awaitUninterruptibly(release);
+                        return null;
+                    }
+                });
+                Assert.fail("Timeout is expected");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            Assert.assertEquals(1, executor.getAbandoned());
+            // hung command does not take the only pool thread
+            Assert.assertEquals("done", executor.execute("quick", new Callable<Object>() {
+                public Object call() throws Exception {
+                    return "done";
+                }
+            }));
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (executor.getAbandoned() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, executor.getAbandoned());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void detachedOutputTest() throws Exception {
+        CommandExecutor executor = new CommandExecutor(false, 1, 1, 0, Collections.singletonMap("hung", 50L));
+        HungCommandProvider provider = new HungCommandProvider();
+        try {
+            AdapterContext context = new AdapterContext();
+            context.setCommandExecutor(executor);
+            ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null), context);
+            ShellInfo shellInfo = cache.acquire(provider);
+            EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+
+            TestCommandSession session = new TestCommandSession();
+            Assert.assertNull(adapter.runCommandWithResult(session, new String[0], "hung",
+                    Arrays.binarySearch(shellInfo.getCommands(), "hung")));
+            String output = session.getOutput();
+            Assert.assertTrue(output.contains("timeout"));
+
+            // command completes after timeout, its output is discarded
+            provider.release.countDown();
+            Assert.assertTrue(provider.completed.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(output, session.getOutput());
+        } finally {
+            provider.release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void startCommand(final CommandExecutor executor, final Callable<Object> command) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    executor.execute("blocked", command);
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * CommandProvider with command that ignores interruption
+     */
+    public static class HungCommandProvider implements CommandProvider {
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        public String getHelp() {
+            return "hung - print line when command is released";
+        }
+
+        public void _hung(CommandInterpreter intp) {
+            awaitUninterruptibly(release);
+            intp.println("late line");
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.gogo.runtime.CommandProcessorImpl;
+import org.apache.felix.gogo.runtime.threadio.ThreadIOImpl;
+import org.apache.felix.service.command.CommandSession;
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.osgi.framework.Bundle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class CommandInterpreterImplTest {
+    private static final String[] NO_ARGS = new String[0];
+
+    @Test
+    public void bufferedOutputTest() {
+        TestCommandSession session = new TestCommandSession();
+        EquinoxGogoAdapter.CommandInterpreterImpl interpreter =
+                new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            interpreter.print(i);
+            expected.append(i);
+        }
+        interpreter.println();
+        interpreter.close();
+        expected.append(System.getProperty("line.separator"));
+
+        Assert.assertEquals(expected.toString(), session.getOutput());
+        // flushed by size threshold and on completion
+        Assert.assertTrue(session.getWrites() < 10);
+    }
+
+    @Test
+    public void unbufferedOutputTest() {
+        TestCommandSession session = new TestCommandSession();
+        EquinoxGogoAdapter.CommandInterpreterImpl interpreter = new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS);
+        interpreter.print("a");
+        Assert.assertEquals("a", session.getOutput());
+        interpreter.close();
+    }
+
+    @Test
+    public void printDictionaryTest() {
+        TestCommandSession session = new TestCommandSession();
+        EquinoxGogoAdapter.CommandInterpreterImpl interpreter = new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS);
+        Hashtable<String, String> dictionary = new Hashtable<String, String>();
+        dictionary.put("key", "value");
+        interpreter.printDictionary(dictionary, "Title");
+        interpreter.close();
+        String separator = System.getProperty("line.separator");
+        Assert.assertEquals("Title" + separator + "key = value" + separator, session.getOutput());
+    }
+
+    @Test
+    public void explicitFlushTest() {
+        TestCommandSession session = new TestCommandSession();
+        EquinoxGogoAdapter.CommandInterpreterImpl interpreter =
+                new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0);
+        interpreter.print("a");
+        Assert.assertEquals("", session.getOutput());
+        interpreter.flush();
+        Assert.assertEquals("a", session.getOutput());
+        interpreter.close();
+    }
+
+    @Test
+    public void nestedCommandTest() {
+        final TestCommandSession session = new TestCommandSession();
+        session.addCommand("nested", new Runnable() {
+            public void run() {
+                EquinoxGogoAdapter.CommandInterpreterImpl nested =
+                        new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0);
+                nested.print("b");
+                nested.close();
+            }
+        });
+        EquinoxGogoAdapter.CommandInterpreterImpl interpreter =
+                new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0);
+        interpreter.print("a");
+        interpreter.execute("nested");
+        interpreter.print("c");
+        interpreter.close();
+
+        Assert.assertEquals("abc", session.getOutput());
+    }
+
+    @Test
+    public void settingsTest() {
+        TestCommandSession session = new TestCommandSession();
+        OutputSettings settings = new OutputSettings(1024, 0, Collections.singleton("ss"));
+        Assert.assertEquals(1024, settings.getBufferSize(session, "bundles"));
+        Assert.assertEquals(0, settings.getBufferSize(session, "ss"));
+
+        session.put(OutputSettings.SESSION_BUFFERED_VARIABLE, "false");
+        Assert.assertEquals(0, settings.getBufferSize(session, "bundles"));
+    }
+
+    @Test
+    public void scheduledFlushTest() throws Exception {
+        OutputSettings settings = new OutputSettings(1024, 20, Collections.<String>emptySet());
+        try {
+            TestCommandSession session = new TestCommandSession();
+            EquinoxGogoAdapter.CommandInterpreterImpl interpreter =
+                    new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 20);
+            interpreter.scheduleFlush(settings.getFlusher());
+            interpreter.print("waiting");
+            // command is blocked, output is flushed by scheduler
+            long deadline = System.currentTimeMillis() + 5000;
+            while (session.getOutput().length() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("waiting", session.getOutput());
+            interpreter.print(" done");
+            interpreter.close();
+            Assert.assertEquals("waiting done", session.getOutput());
+        } finally {
+            settings.shutdown();
+        }
+        Assert.assertNull(OutputSettings.DEFAULT.getFlusher());
+        Assert.assertEquals(0, OutputSettings.DEFAULT.getBufferSize(null, "ss"));
+    }
+
+    @Test
+    public void printBundleResourceTest() throws Exception {
+        // multi-byte characters at 1 KB boundaries
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            content.append("\u0444\u20ac");
+        }
+        File file = File.createTempFile("resource", ".txt");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(content.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            Bundle bundle = createBundle("resource.txt", file);
+            String separator = System.getProperty("line.separator");
+
+            ByteArrayOutputStream console = new ByteArrayOutputStream();
+            TestCommandSession session = createSession(console, "UTF-8");
+            session.put(OutputSettings.SESSION_RESOURCE_ENCODING_VARIABLE, "UTF-8");
+            EquinoxGogoAdapter.CommandInterpreterImpl interpreter =
+                    new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0);
+            interpreter.print("before ");
+            interpreter.printBundleResource(bundle, "resource.txt");
+            interpreter.close();
+            Assert.assertEquals("before resource.txt" + separator + content, console.toString("UTF-8"));
+
+            // "\u0444" is 2 bytes and "\u20ac" is 3 bytes in UTF-8
+            console = new ByteArrayOutputStream();
+            session = createSession(console, "UTF-8");
+            session.put(OutputSettings.SESSION_RESOURCE_ENCODING_VARIABLE, "UTF-8");
+            session.put(OutputSettings.SESSION_RESOURCE_OFFSET_VARIABLE, "5");
+            session.put(OutputSettings.SESSION_RESOURCE_LIMIT_VARIABLE, "10");
+            interpreter = new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0);
+            interpreter.printBundleResource(bundle, "resource.txt");
+            interpreter.close();
+            Assert.assertEquals("resource.txt" + separator + "\u0444\u20ac\u0444\u20ac", console.toString("UTF-8"));
+
+            // characters cut by unaligned offset and limit are skipped
+            console = new ByteArrayOutputStream();
+            session = createSession(console, "UTF-8");
+            session.put(OutputSettings.SESSION_RESOURCE_ENCODING_VARIABLE, "UTF-8");
+            session.put(OutputSettings.SESSION_RESOURCE_OFFSET_VARIABLE, "6");
+            session.put(OutputSettings.SESSION_RESOURCE_LIMIT_VARIABLE, "10");
+            interpreter = new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0);
+            interpreter.printBundleResource(bundle, "resource.txt");
+            interpreter.close();
+            Assert.assertEquals("resource.txt" + separator + "\u20ac\u0444\u20ac", console.toString("UTF-8"));
+
+            // resource is transcoded to console encoding
+            console = new ByteArrayOutputStream();
+            session = createSession(console, "UTF-16BE");
+            session.put(OutputSettings.SESSION_RESOURCE_ENCODING_VARIABLE, "UTF-8");
+            session.put(OutputSettings.SESSION_RESOURCE_OFFSET_VARIABLE, "6");
+            session.put(OutputSettings.SESSION_RESOURCE_LIMIT_VARIABLE, "10");
+            interpreter = new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 0, 0);
+            interpreter.printBundleResource(bundle, "resource.txt");
+            interpreter.close();
+            Assert.assertEquals("resource.txt" + separator + "\u20ac\u0444\u20ac", console.toString("UTF-16BE"));
+
+            session = new TestCommandSession();
+            session.put(OutputSettings.SESSION_RESOURCE_LIMIT_VARIABLE, "all");
+            interpreter = new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0);
+            interpreter.printBundleResource(bundle, "resource.txt");
+            interpreter.close();
+            Assert.assertEquals("Invalid resource range: For input string: \"all\"" + separator, session.getOutput());
+
+            session = new TestCommandSession();
+            interpreter = new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0);
+            interpreter.printBundleResource(bundle, "unknown.txt");
+            interpreter.close();
+            Assert.assertEquals("Unknown resource: unknown.txt" + separator, session.getOutput());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void printBundleResourceEncodingTest() throws Exception {
+        File file = File.createTempFile("resource", ".properties");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write("name=caf\u00e9".getBytes("ISO-8859-1"));
+            } finally {
+                out.close();
+            }
+            Bundle bundle = createBundle("resource.properties", file);
+            String separator = System.getProperty("line.separator");
+
+            // Latin-1 resource with session resource encoding
+            ByteArrayOutputStream console = new ByteArrayOutputStream();
+            TestCommandSession session = createSession(console, "UTF-8");
+            session.put(OutputSettings.SESSION_RESOURCE_ENCODING_VARIABLE, "ISO-8859-1");
+            EquinoxGogoAdapter.CommandInterpreterImpl interpreter =
+                    new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 0, 0);
+            interpreter.printBundleResource(bundle, "resource.properties");
+            interpreter.close();
+            Assert.assertEquals("resource.properties" + separator + "name=caf\u00e9", console.toString("UTF-8"));
+
+            // platform default encoding is used if session resource encoding is not set
+            String platform = Charset.defaultCharset().name();
+            out = new FileOutputStream(file);
+            try {
+                out.write("name=caf\u00e9".getBytes(platform));
+            } finally {
+                out.close();
+            }
+            console = new ByteArrayOutputStream();
+            session = createSession(console, "UTF-8");
+            interpreter = new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 0, 0);
+            interpreter.printBundleResource(bundle, "resource.properties");
+            interpreter.close();
+            Assert.assertEquals("resource.properties" + separator + new String("name=caf\u00e9".getBytes(platform), platform),
+                    console.toString("UTF-8"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void printBundleResourceChannelTest() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append(i % 10);
+        }
+        File file = File.createTempFile("resource", ".txt");
+        OutputChannels channels = new OutputChannels(16, OutputChannels.BLOCK, 50);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(content.toString().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            Bundle bundle = createBundle("resource.txt", file);
+            String header = "resource.txt" + System.getProperty("line.separator");
+
+            TestCommandSession session = new TestCommandSession();
+            EquinoxGogoAdapter.CommandInterpreterImpl interpreter =
+                    new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 0, 0);
+            interpreter.setChannel(channels.open(session, "cat"));
+            interpreter.printBundleResource(bundle, "resource.txt");
+            interpreter.close();
+            // resource is printed within output limit and cut-off part is reported
+            String output = session.getOutput();
+            Assert.assertTrue(output.startsWith(header + content.substring(0, 50 - header.length())));
+            Assert.assertTrue(output.contains(String.format("output is limited to 50 characters, %d characters are dropped",
+                    header.length() + content.length() - 50)));
+            Assert.assertEquals(header.length() + content.length(), channels.getMetrics().get(0).getProduced());
+        } finally {
+            channels.shutdown();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void printStackTraceChannelTest() throws Exception {
+        OutputChannels channels = new OutputChannels(16, OutputChannels.BLOCK, 50);
+        try {
+            Exception error = new Exception("failed");
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+
+            TestCommandSession session = new TestCommandSession();
+            EquinoxGogoAdapter.CommandInterpreterImpl interpreter =
+                    new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0);
+            interpreter.setChannel(channels.open(session, "fail"));
+            interpreter.print("before ");
+            interpreter.printStackTrace(error);
+            interpreter.close();
+            // stack trace is printed through output channel within output limit
+            String output = session.getOutput();
+            Assert.assertTrue(output.startsWith(("before " + trace).substring(0, 50)));
+            Assert.assertTrue(output.contains(String.format("output is limited to 50 characters, %d characters are dropped",
+                    "before ".length() + trace.toString().length() - 50)));
+            Assert.assertEquals("before ".length() + trace.toString().length(), channels.getMetrics().get(0).getProduced());
+        } finally {
+            channels.shutdown();
+        }
+    }
+
+    @Test
+    public void structuredOutputTest() throws Exception {
+        TestCommandSession session = new TestCommandSession();
+        EquinoxGogoAdapter.CommandInterpreterImpl interpreter =
+                new EquinoxGogoAdapter.CommandInterpreterImpl(session, NO_ARGS, 1024, 0, true);
+        interpreter.print("a");
+        interpreter.println("b");
+        interpreter.print("c\r\nd\n");
+        interpreter.print("e");
+        Hashtable<String, String> dictionary = new Hashtable<String, String>();
+        dictionary.put("key", "value");
+        interpreter.printDictionary(dictionary, "Title");
+        interpreter.printBundleResource(createBundle("resource.txt", new File("resource.txt")), "resource.txt");
+        List<?> records = (List<?>) interpreter.getResult("result");
+        interpreter.close();
+
+        Assert.assertEquals("", session.getOutput());
+        Assert.assertEquals(7, records.size());
+        Assert.assertEquals("ab", ((StructuredOutput.Line) records.get(0)).getText());
+        // line is materialized once
+        Assert.assertSame(records.get(0), records.get(0));
+        Assert.assertEquals("c", records.get(1).toString());
+        Assert.assertEquals("d", records.get(2).toString());
+        StructuredOutput.Entry entry = (StructuredOutput.Entry) records.get(3);
+        Assert.assertEquals("Title", entry.getTitle());
+        Assert.assertEquals("key", entry.getKey());
+        Assert.assertEquals("value", entry.getValue());
+        Assert.assertEquals("resource.txt", ((StructuredOutput.Resource) records.get(4)).getResource());
+        // incomplete line is captured on completion
+        Assert.assertEquals("e", records.get(5).toString());
+        Assert.assertEquals("result", records.get(6));
+    }
+
+    @Test
+    public void structuredCommandTest() throws Exception {
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null));
+        OutputCommandProvider provider = new OutputCommandProvider();
+        ShellInfo shellInfo = cache.acquire(provider);
+        Object adapter = cache.newInstance(shellInfo, provider);
+
+        ThreadIOImpl threadIO = new ThreadIOImpl();
+        threadIO.start();
+        try {
+            CommandProcessorImpl processor = new CommandProcessorImpl(threadIO);
+            for (String command : shellInfo.getCommands()) {
+                processor.addCommand(shellInfo.getScope(), adapter, command);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(bytes);
+            CommandSession session = processor.createSession(new ByteArrayInputStream(new byte[0]), out, out);
+
+            // void command prints its output
+            Assert.assertNull(session.execute("lines a b"));
+
+            session.put(OutputSettings.SESSION_STRUCTURED_VARIABLE, true);
+            List<?> records = (List<?>) session.execute("lines c d");
+            Assert.assertEquals(2, records.size());
+            Assert.assertEquals("line c", ((StructuredOutput.Line) records.get(0)).getText());
+            Assert.assertEquals("line d", ((StructuredOutput.Line) records.get(1)).getText());
+
+            records = (List<?>) session.execute("props x");
+            Assert.assertEquals("X", ((StructuredOutput.Entry) records.get(0)).getValue());
+        } finally {
+            threadIO.stop();
+        }
+    }
+
+    private static TestCommandSession createSession(OutputStream out, String encoding) throws UnsupportedEncodingException {
+        final PrintStream console = new PrintStream(out, false, encoding);
+        return new TestCommandSession() {
+            public PrintStream getConsole() {
+                return console;
+            }
+        };
+    }
+
+    private static Bundle createBundle(final String resource, final File file) {
+        return (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(), new Class<?>[]{Bundle.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getEntry")) {
+                            return resource.equals(args[0]) ? file.toURI().toURL() : null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.knowhowlab.osgi.experiments.gogo.equinox.stats.CommandStatisticsSnapshot;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class CommandStatisticsImplTest {
+    @Test
+    public void statisticsTest() throws Exception {
+        CommandStatisticsImpl statistics = new CommandStatisticsImpl(true);
+        AdapterContext context = new AdapterContext();
+        context.setStatistics(statistics);
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null), context);
+        StackTraceCommandProvider provider = new StackTraceCommandProvider();
+        ShellInfo shellInfo = cache.acquire(provider);
+        EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+        int count = Arrays.binarySearch(shellInfo.getCommands(), "count");
+        int fail = Arrays.binarySearch(shellInfo.getCommands(), "fail");
+
+        Assert.assertEquals(2, adapter.runCommandWithResult(null, new String[]{"a", "b"}, "count", count));
+        adapter.runCommandWithResult(null, new String[0], "count", count);
+        Assert.assertNull(adapter.runCommandWithResult(null, new String[0], "fail", fail));
+
+        CommandStatisticsSnapshot countSnapshot = find(statistics.snapshot(), "count");
+        Assert.assertEquals(Utils.DEFAULT_SCOPE, countSnapshot.getScope());
+        Assert.assertEquals(2, countSnapshot.getCount());
+        Assert.assertEquals(0, countSnapshot.getErrors());
+        Assert.assertTrue(countSnapshot.getMaxTime() > 0);
+        Assert.assertTrue(countSnapshot.getTotalTime() >= countSnapshot.getMaxTime());
+        long histogramCount = 0;
+        for (long bucket : countSnapshot.getHistogram()) {
+            histogramCount += bucket;
+        }
+        Assert.assertEquals(2, histogramCount);
+
+        CommandStatisticsSnapshot failSnapshot = find(statistics.snapshotAndReset(), "fail");
+        Assert.assertEquals(1, failSnapshot.getCount());
+        Assert.assertEquals(1, failSnapshot.getErrors());
+        Assert.assertEquals(0, find(statistics.snapshot(), "count").getCount());
+
+        // counters are shared by adapters of the same provider class
+        EquinoxGogoAdapter anotherAdapter = cache.newInstance(shellInfo, new StackTraceCommandProvider());
+        anotherAdapter.runCommandWithResult(null, new String[0], "count", count);
+        adapter.runCommandWithResult(null, new String[0], "count", count);
+        Assert.assertEquals(2, find(statistics.snapshot(), "count").getCount());
+
+        statistics.setEnabled(false);
+        adapter.runCommandWithResult(null, new String[0], "count", count);
+        Assert.assertEquals(2, find(statistics.snapshot(), "count").getCount());
+    }
+
+    @Test
+    public void releaseTest() throws Exception {
+        CommandStatisticsImpl statistics = new CommandStatisticsImpl(true);
+        AdapterContext context = new AdapterContext();
+        context.setStatistics(statistics);
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null), context);
+        StackTraceCommandProvider provider = new StackTraceCommandProvider();
+        ShellInfo shellInfo = cache.acquire(provider);
+        EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+        ShellInfo anotherShellInfo = cache.acquire(provider);
+        EquinoxGogoAdapter anotherAdapter = cache.newInstance(anotherShellInfo, provider);
+        int count = Arrays.binarySearch(shellInfo.getCommands(), "count");
+        int commands = shellInfo.getCommands().length;
+        Assert.assertEquals(commands, statistics.size());
+
+        adapter.runCommandWithResult(null, new String[0], "count", count);
+        // counters are kept while they are used by another adapter
+        cache.release(shellInfo, adapter);
+        Assert.assertEquals(commands, statistics.size());
+        Assert.assertEquals(1, find(statistics.snapshot(), "count").getCount());
+
+        cache.release(anotherShellInfo, anotherAdapter);
+        Assert.assertEquals(0, statistics.size());
+        Assert.assertTrue(statistics.snapshot().isEmpty());
+
+        // new adapter starts with new counters
+        shellInfo = cache.acquire(provider);
+        adapter = cache.newInstance(shellInfo, provider);
+        Assert.assertEquals(commands, statistics.size());
+        Assert.assertEquals(0, find(statistics.snapshot(), "count").getCount());
+    }
+
+    private static CommandStatisticsSnapshot find(List<CommandStatisticsSnapshot> snapshots, String command) {
+        for (CommandStatisticsSnapshot snapshot : snapshots) {
+            if (snapshot.getCommand().equals(command)) {
+                return snapshot;
+            }
+        }
+        Assert.fail("No statistics for command: " + command);
+        return null;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.knowhowlab.osgi.experiments.gogo.equinox.completion.Completion;
+
+import java.util.List;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class CompletionIndexTest {
+    @Test
+    public void completeTest() {
+        CompletionIndex index = new CompletionIndex();
+        index.add("framework", "equinox", new String[]{"setbsl", "setfwsl", "ss", "status"}, HelpIndex.parse(
+                "\tss [-s] - display installed bundles\n"
+                        + "\tstatus [-s] - display installed bundles and registered services\n"
+                        + "\tsetfwsl <start level> - set the framework start level\n"
+                        + "\tsetbsl - set the start level for the bundle(s)\n"));
+        index.add("runtime", "eclipse", new String[]{"ss", "diag"}, HelpIndex.parse(null));
+        Assert.assertEquals(11, index.size());
+
+        List<Completion> completions = index.complete("equinox:s", 10);
+        Assert.assertEquals(4, completions.size());
+        Assert.assertEquals("equinox:setbsl", completions.get(0).toString());
+        Assert.assertEquals("equinox:setfwsl <start level>", completions.get(1).toString());
+        Assert.assertEquals("equinox:ss", completions.get(2).getName());
+        Assert.assertEquals("[-s]", completions.get(2).getHint());
+        Assert.assertEquals("equinox:status", completions.get(3).getName());
+
+        // case insensitive, unqualified names are provided by both providers
+        completions = index.complete("SS", 10);
+        Assert.assertEquals(1, completions.size());
+        Assert.assertEquals("ss [-s]", completions.get(0).toString());
+        Assert.assertEquals(2, completions.get(0).getProviders());
+        Assert.assertEquals(2, index.complete("eclipse:", 100).size());
+        Assert.assertEquals(3, index.complete("", 3).size());
+        Assert.assertTrue(index.complete("x", 10).isEmpty());
+
+        // replace and remove commands of provider
+        index.add("runtime", "eclipse", new String[]{"diag"}, HelpIndex.parse(null));
+        Assert.assertEquals(1, index.complete("ss", 10).get(0).getProviders());
+        index.remove("framework");
+        Assert.assertTrue(index.complete("equinox:", 10).isEmpty());
+        Assert.assertTrue(index.complete("s", 10).isEmpty());
+        Assert.assertEquals(2, index.size());
+        index.remove("runtime");
+        Assert.assertEquals(0, index.size());
+    }
+}
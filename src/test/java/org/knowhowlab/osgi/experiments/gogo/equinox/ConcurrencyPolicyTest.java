@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class ConcurrencyPolicyTest {
+    @Test
+    public void policiesTest() {
+        ConcurrencyPolicies policies = new ConcurrencyPolicies(null,
+                Collections.singletonMap(OutputCommandProvider.class.getName(), "semaphore:2"));
+        Assert.assertTrue(policies.create(new OutputCommandProvider(), 2) instanceof ConcurrencyPolicy.Bounded);
+        // not configured provider is fully concurrent
+        Assert.assertNull(policies.create(new NoHelpCommandProvider(), 2));
+
+        policies = new ConcurrencyPolicies("striped", Collections.<String, String>emptyMap());
+        NoHelpCommandProvider provider = new NoHelpCommandProvider();
+        ConcurrencyPolicy policy = policies.create(provider, 2);
+        Assert.assertTrue(policy instanceof ConcurrencyPolicy.Striped);
+        // adapters of the same provider share policy
+        Assert.assertSame(policy, policies.create(provider, 2));
+        Assert.assertNotSame(policy, policies.create(new NoHelpCommandProvider(), 2));
+        Assert.assertEquals(1, policies.getContentions().size());
+
+        try {
+            new ConcurrencyPolicies("semaphore", Collections.<String, String>emptyMap());
+            Assert.fail("Invalid policy");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void serializedTest() throws Exception {
+        ConcurrencyPolicy.Contention contention = new ConcurrencyPolicy.Contention("provider", "serialized");
+        ConcurrencyPolicy policy = new ConcurrencyPolicy.Serialized(contention);
+        policy.acquire(0);
+        CountDownLatch acquired = acquireInThread(policy, 1);
+        Assert.assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        policy.release(0);
+        Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, contention.getAcquired());
+        Assert.assertEquals(1, contention.getContended());
+        Assert.assertTrue(contention.getWaitTime() > 0);
+    }
+
+    @Test
+    public void stripedTest() throws Exception {
+        ConcurrencyPolicy.Contention contention = new ConcurrencyPolicy.Contention("provider", "striped");
+        ConcurrencyPolicy policy = new ConcurrencyPolicy.Striped(contention, 2);
+        policy.acquire(0);
+        try {
+            // other command is not blocked
+            Assert.assertTrue(acquireInThread(policy, 1).await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(0, contention.getContended());
+        } finally {
+            policy.release(0);
+        }
+    }
+
+    @Test
+    public void nestedStripedTest() throws Exception {
+        ConcurrencyPolicy.Contention contention = new ConcurrencyPolicy.Contention("provider", "striped");
+        ConcurrencyPolicy policy = new ConcurrencyPolicy.Striped(contention, 2);
+        policy.acquire(0);
+        // nested command takes no more locks
+        policy.acquire(1);
+        try {
+            Assert.assertTrue(acquireInThread(policy, 1).await(5, TimeUnit.SECONDS));
+        } finally {
+            policy.release(1);
+            policy.release(0);
+        }
+        Assert.assertTrue(acquireInThread(policy, 0).await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void boundedTest() throws Exception {
+        ConcurrencyPolicy.Contention contention = new ConcurrencyPolicy.Contention("provider", "semaphore:1");
+        ConcurrencyPolicy policy = new ConcurrencyPolicy.Bounded(contention, 1);
+        policy.acquire(0);
+        // nested command takes no more permits
+        policy.acquire(1);
+        policy.release(1);
+        CountDownLatch acquired = acquireInThread(policy, 0);
+        Assert.assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        policy.release(0);
+        Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, contention.getContended());
+    }
+
+    private static CountDownLatch acquireInThread(final ConcurrencyPolicy policy, final int commandIndex) {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    policy.acquire(commandIndex);
+                    acquired.countDown();
+                    policy.release(commandIndex);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return acquired;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.gogo.runtime.CommandProcessorImpl;
+import org.apache.felix.gogo.runtime.threadio.ThreadIOImpl;
+import org.apache.felix.service.command.CommandSession;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class DispatcherAdapterBackendTest {
+    @Test
+    public void dispatchTest() throws Exception {
+        ShellInfoCache cache = new ShellInfoCache(new DispatcherAdapterBackend());
+        StackTraceCommandProvider provider = new StackTraceCommandProvider();
+        ShellInfo shellInfo = cache.acquire(provider);
+        Assert.assertNotNull(shellInfo);
+        Assert.assertArrayEquals(new String[]{"count", "fail", "trace"}, shellInfo.getCommands());
+        Assert.assertEquals(DispatcherEquinoxGogoAdapter.class, shellInfo.getShellClass());
+        // no classes are generated
+        Assert.assertSame(shellInfo, cache.acquire(new StackTraceCommandProvider()));
+        Assert.assertEquals(1, cache.size());
+
+        Object adapter = cache.newInstance(shellInfo, provider);
+
+        ThreadIOImpl threadIO = new ThreadIOImpl();
+        threadIO.start();
+        try {
+            CommandProcessorImpl processor = new CommandProcessorImpl(threadIO);
+            for (String command : shellInfo.getCommands()) {
+                processor.addCommand(shellInfo.getScope(), adapter, command);
+            }
+            PrintStream out = new PrintStream(new ByteArrayOutputStream());
+            CommandSession session = processor.createSession(new ByteArrayInputStream(new byte[0]), out, out);
+
+            Assert.assertEquals(2, session.execute("equinox:count a b"));
+            Assert.assertNull(session.execute("trace"));
+            Assert.assertNotNull(provider.getLastStackTrace());
+            Assert.assertNull(session.execute("fail"));
+        } finally {
+            threadIO.stop();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class FlightRecorderTest {
+    @Test
+    public void recordTest() throws Exception {
+        FlightRecorder recorder = new FlightRecorder(3, 1000, null);
+        Assert.assertEquals(4, recorder.getCapacity());
+        AdapterContext context = new AdapterContext();
+        context.setFlightRecorder(recorder);
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null), context);
+        OutputCommandProvider provider = new OutputCommandProvider();
+        ShellInfo shellInfo = cache.acquire(provider);
+        EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+        int lines = Arrays.binarySearch(shellInfo.getCommands(), "lines");
+
+        TestCommandSession session = new TestCommandSession();
+        for (int i = 0; i < 6; i++) {
+            adapter.runCommandWithResult(session, new String[]{"a", String.valueOf(i)}, "lines", lines);
+        }
+        Assert.assertEquals(6, recorder.getRecorded());
+        Assert.assertEquals(0, recorder.getSlow());
+
+        // only last invocations are kept
+        List<FlightRecorder.Record> records = recorder.getRecords();
+        Assert.assertEquals(4, records.size());
+        FlightRecorder.Record record = records.get(3);
+        Assert.assertEquals("lines", record.getCommand());
+        Assert.assertEquals(Arrays.asList("a", "5"), Arrays.asList(record.getArgs()));
+        Assert.assertEquals(System.identityHashCode(session), record.getSession());
+        Assert.assertEquals(session.getOutput().length() / 6, record.getOutputSize());
+        Assert.assertNull(record.getError());
+        Assert.assertNull(record.getSamples());
+        Assert.assertEquals("2", records.get(0).getArgs()[1]);
+        Assert.assertTrue(record.toString().contains("lines a 5 -> ok"));
+    }
+
+    @Test
+    public void slowInvocationTest() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "recorder" + System.nanoTime());
+        FlightRecorder recorder = new FlightRecorder(16, 50, directory);
+        recorder.start();
+        try {
+            FlightRecorder.Invocation invocation = recorder.begin("slow", System.nanoTime());
+            Thread.sleep(300);
+            recorder.end(invocation, System.nanoTime(), new String[]{"x"}, null, 0, new IllegalStateException());
+
+            FlightRecorder.Record record = recorder.getRecords().get(0);
+            Assert.assertEquals(1, recorder.getSlow());
+            Assert.assertEquals("java.lang.IllegalStateException", record.getError());
+            Assert.assertTrue(record.getDuration() >= 300000000L);
+            Assert.assertNotNull(record.getSamples());
+            Assert.assertTrue(record.getSamples().length > 0);
+            Assert.assertTrue(Arrays.toString(record.getSamples()[0]).contains(FlightRecorderTest.class.getName()));
+
+            File dump = recorder.dump();
+            String content = read(dump);
+            Assert.assertTrue(content.contains("slow x -> failed java.lang.IllegalStateException"));
+            Assert.assertTrue(content.contains("sample 1:"));
+        } finally {
+            recorder.stop();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void fastInvocationSamplesTest() throws Exception {
+        FlightRecorder recorder = new FlightRecorder(16, 50, null);
+        recorder.start();
+        try {
+            long start = System.nanoTime();
+            FlightRecorder.Invocation invocation = recorder.begin("fast", start);
+            // sampler samples invocation, but it is reported as fast
+            Thread.sleep(300);
+            recorder.end(invocation, start + 1, new String[0], null, 0, null);
+
+            start = System.nanoTime();
+            invocation = recorder.begin("slow", start);
+            recorder.end(invocation, start + 100000000L, new String[0], null, 0, null);
+
+            List<FlightRecorder.Record> records = recorder.getRecords();
+            Assert.assertEquals(2, records.size());
+            Assert.assertNull(records.get(0).getSamples());
+            // samples of previous invocation are not reused
+            Assert.assertNull(records.get(1).getSamples());
+        } finally {
+            recorder.stop();
+        }
+    }
+
+    @Test
+    public void concurrentWritersTest() throws Exception {
+        final FlightRecorder recorder = new FlightRecorder(8, 1000, null);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final String name = String.valueOf(i);
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        FlightRecorder.Invocation invocation = recorder.begin(name, System.nanoTime());
+                        recorder.end(invocation, System.nanoTime(), new String[]{name}, null, j, null);
+                    }
+                }
+            }, name);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(40000, recorder.getRecorded());
+        List<FlightRecorder.Record> records = recorder.getRecords();
+        Assert.assertFalse(records.isEmpty());
+        Assert.assertTrue(records.size() <= recorder.getCapacity());
+        for (FlightRecorder.Record record : records) {
+            // record is never mixed from different invocations
+            Assert.assertEquals(record.getCommand(), record.getArgs()[0]);
+            Assert.assertEquals(record.getCommand(), record.getThread());
+        }
+    }
+
+    private String read(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[1024];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, read);
+            }
+            return builder.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
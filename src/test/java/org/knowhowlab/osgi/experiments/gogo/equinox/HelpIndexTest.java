@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class HelpIndexTest {
+    @Test
+    public void equinoxHelpTest() throws Exception {
+        // help of Equinox 3.6 framework commands: sections, tab indentation and \r\n line separators
+        HelpIndex index = HelpIndex.parse(readHelp("framework-help.txt"));
+        Assert.assertEquals(28, index.size());
+        Assert.assertEquals("start the OSGi Framework", index.getUsage("launch"));
+        Assert.assertEquals("<key>=<value> - set the OSGi property", index.getUsage("setprop"));
+        Assert.assertEquals("[ name ] - displays the system properties with the given name, or all of them.",
+                index.getUsage("getprop"));
+        Assert.assertEquals("Display & flush the profile log messages", index.getUsage("profilelog"));
+        Assert.assertEquals("<key>=<value>", index.getArguments("setprop"));
+        Assert.assertEquals("(<id>|<location>)", index.getArguments("headers"));
+        Assert.assertNull(index.getArguments("launch"));
+        // section headers are not commands
+        Assert.assertFalse(index.contains("---Controlling"));
+        Assert.assertFalse(index.contains("---Extras---"));
+        Assert.assertNull(index.getUsage("diag"));
+
+        index = HelpIndex.parse(readHelp("eclipse-help.txt"));
+        Assert.assertEquals(4, index.size());
+        Assert.assertEquals("Displays unsatisfied constraints for the specified bundle(s).", index.getUsage("diag"));
+        Assert.assertEquals("list disabled bundles in the system", index.getUsage("disabledBundles"));
+    }
+
+    @Test
+    public void multiLineUsageTest() {
+        HelpIndex index = HelpIndex.parse("---Section---\n"
+                + "\tcopy <from> <to> - copy files\n"
+                + "\t\t-r copy directories recursively  \n"
+                + "\t\t-f overwrite existing files\n"
+                + "\tinstall\n"
+                + "\t        <url> - install bundle\n"
+                + "\n"
+                + "\t\tnot a continuation\n"
+                + "\tcopy - repeated command\n"
+                + "\t\t-x continuation of repeated command\n"
+                + "hello [name] - print hello\n"
+                + "bye");
+        Assert.assertEquals("<from> <to> - copy files\n-r copy directories recursively\n-f overwrite existing files",
+                index.getUsage("copy"));
+        Assert.assertEquals("<url> - install bundle", index.getUsage("install"));
+        Assert.assertEquals("[name] - print hello", index.getUsage("hello"));
+        Assert.assertTrue(index.contains("not"));
+        Assert.assertFalse(index.contains("-x"));
+        // commands without usage
+        Assert.assertFalse(index.contains("bye"));
+        Assert.assertNull(index.getUsage("bye"));
+        Assert.assertEquals(5, index.size());
+
+        Assert.assertEquals(0, HelpIndex.parse(null).size());
+        Assert.assertNull(HelpIndex.parse("").getUsage("hello"));
+    }
+
+    @Test
+    public void manyCommandsTest() {
+        StringBuilder help = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            help.append("\tcommand").append(i).append(" <arg> - command ").append(i).append("\r\n");
+        }
+        HelpIndex index = HelpIndex.parse(help.toString());
+        Assert.assertEquals(1000, index.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals("<arg> - command " + i, index.getUsage("command" + i));
+        }
+        Assert.assertNull(index.getUsage("command1000"));
+    }
+
+    private String readHelp(String name) throws IOException {
+        InputStream in = getClass().getResourceAsStream(name);
+        Assert.assertNotNull(name, in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
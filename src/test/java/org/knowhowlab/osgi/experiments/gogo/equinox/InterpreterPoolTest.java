@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class InterpreterPoolTest {
+    @Test
+    public void nestedCommandTest() throws Exception {
+        final ArgumentsCommandProvider provider = new ArgumentsCommandProvider();
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null));
+        final ShellInfo shellInfo = cache.acquire(provider);
+        final EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+        final TestCommandSession session = new TestCommandSession();
+        session.addCommand("args", new Runnable() {
+            public void run() {
+                adapter.runCommandWithResult(session, new String[]{"x", "y", "z"}, "args",
+                        Arrays.binarySearch(shellInfo.getCommands(), "args"));
+            }
+        });
+
+        adapter.runCommandWithResult(session, new String[]{"a", "b"}, "nested",
+                Arrays.binarySearch(shellInfo.getCommands(), "nested"));
+        Assert.assertEquals(3, provider.getArguments());
+        Assert.assertEquals("b", provider.getLast());
+
+        // both interpreters are reused
+        InterpreterPool pool = (InterpreterPool) session.get(InterpreterPool.SESSION_VARIABLE);
+        EquinoxGogoAdapter.CommandInterpreterImpl first = pool.acquire();
+        EquinoxGogoAdapter.CommandInterpreterImpl second = pool.acquire();
+        Assert.assertNotSame(first, second);
+        Assert.assertNotSame(second, pool.acquire());
+    }
+
+    @Test
+    public void reuseTest() throws Exception {
+        ArgumentsCommandProvider provider = new ArgumentsCommandProvider();
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null));
+        ShellInfo shellInfo = cache.acquire(provider);
+        EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+        TestCommandSession session = new TestCommandSession();
+        String[] args = {"a", "b", "c"};
+        int index = Arrays.binarySearch(shellInfo.getCommands(), "args");
+
+        adapter.runCommandWithResult(session, args, "args", index);
+        InterpreterPool pool = (InterpreterPool) session.get(InterpreterPool.SESSION_VARIABLE);
+        EquinoxGogoAdapter.CommandInterpreterImpl interpreter = pool.acquire();
+        pool.release(interpreter);
+        for (int i = 0; i < 100; i++) {
+            adapter.runCommandWithResult(session, args, "args", index);
+        }
+        Assert.assertEquals(3 * 101, provider.getArguments());
+        // interpreter is not allocated per call, allocation rate is measured by DispatchBenchmark with -prof gc
+        Assert.assertSame(interpreter, pool.acquire());
+        Assert.assertNotSame(interpreter, pool.acquire());
+    }
+}
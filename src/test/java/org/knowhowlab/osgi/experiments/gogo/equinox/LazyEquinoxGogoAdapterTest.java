@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.gogo.runtime.CommandProcessorImpl;
+import org.apache.felix.gogo.runtime.threadio.ThreadIOImpl;
+import org.apache.felix.service.command.CommandSession;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class LazyEquinoxGogoAdapterTest {
+    @Test
+    public void materializeTest() throws Exception {
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null));
+        NoHelpCommandProvider provider = new NoHelpCommandProvider();
+        String[] commands = Utils.getCommandNames(provider.getClass());
+        LazyEquinoxGogoAdapter lazyAdapter = new LazyEquinoxGogoAdapter(provider, commands, cache);
+
+        ThreadIOImpl threadIO = new ThreadIOImpl();
+        threadIO.start();
+        try {
+            CommandProcessorImpl processor = new CommandProcessorImpl(threadIO);
+            for (String command : commands) {
+                processor.addCommand(Utils.DEFAULT_SCOPE, lazyAdapter, command);
+            }
+            PrintStream out = new PrintStream(new ByteArrayOutputStream());
+            CommandSession session = processor.createSession(new ByteArrayInputStream(new byte[0]), out, out);
+
+            Assert.assertFalse(lazyAdapter.isMaterialized());
+            Assert.assertEquals(0, cache.size());
+
+            Assert.assertEquals("hello world", session.execute("equinox:hello world"));
+            Assert.assertTrue(lazyAdapter.isMaterialized());
+            Assert.assertEquals(1, cache.size());
+
+            Assert.assertEquals("hello again", session.execute("hello again"));
+            Assert.assertEquals(1, cache.size());
+
+            lazyAdapter.release();
+            Assert.assertFalse(lazyAdapter.isMaterialized());
+            Assert.assertEquals(0, cache.size());
+        } finally {
+            threadIO.stop();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class OutputChannelTest {
+    @Test
+    public void blockTest() throws Exception {
+        OutputChannels channels = new OutputChannels(16, OutputChannels.BLOCK, 0);
+        try {
+            SlowCommandSession session = new SlowCommandSession(new CountDownLatch(0), 1);
+            OutputChannel channel = channels.open(session, "packages");
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                channel.write("0123456789");
+                expected.append("0123456789");
+            }
+            channel.close();
+            Assert.assertEquals(expected.toString(), session.getOutput());
+
+            OutputChannels.Metrics metrics = channels.getMetrics().get(0);
+            Assert.assertEquals("packages", metrics.getCommand());
+            Assert.assertEquals(200, metrics.getProduced());
+            Assert.assertEquals(0, metrics.getDropped());
+            Assert.assertTrue(metrics.getBlocked() > 0);
+        } finally {
+            channels.shutdown();
+        }
+    }
+
+    @Test
+    public void dropTest() throws Exception {
+        OutputChannels channels = new OutputChannels(16, OutputChannels.DROP, 0);
+        try {
+            CountDownLatch console = new CountDownLatch(1);
+            SlowCommandSession session = new SlowCommandSession(console, 0);
+            OutputChannel channel = channels.open(session, "services");
+            for (int i = 0; i < 10; i++) {
+                channel.write("0123456789");
+            }
+            console.countDown();
+            channel.close();
+
+            OutputChannels.Metrics metrics = channels.getMetrics().get(0);
+            Assert.assertEquals(100, metrics.getProduced());
+            Assert.assertTrue(metrics.getDropped() >= 84);
+            Assert.assertTrue(session.getOutput().startsWith("0123456789012345"));
+            Assert.assertTrue(session.getOutput().contains(" characters are dropped --"));
+        } finally {
+            channels.shutdown();
+        }
+    }
+
+    @Test
+    public void timeoutTest() throws Exception {
+        OutputChannels channels = new OutputChannels(16, OutputChannels.BLOCK, 0, 1, 100);
+        CountDownLatch console = new CountDownLatch(1);
+        try {
+            SlowCommandSession session = new SlowCommandSession(console, 0);
+            OutputChannel channel = channels.open(session, "threads");
+            long start = System.nanoTime();
+            for (int i = 0; i < 10; i++) {
+                channel.write("0123456789");
+            }
+            channel.close();
+            // stalled console does not block command
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+            OutputChannels.Metrics metrics = channels.getMetrics().get(0);
+            Assert.assertEquals(100, metrics.getProduced());
+            Assert.assertEquals(84, metrics.getDropped());
+        } finally {
+            console.countDown();
+            channels.shutdown();
+        }
+    }
+
+    @Test
+    public void truncateTest() throws Exception {
+        OutputChannels channels = new OutputChannels(0, OutputChannels.TRUNCATE, 10);
+        TestCommandSession session = new TestCommandSession();
+        session.put(OutputChannels.CONTINUATION_VARIABLE, "stale");
+        OutputChannel channel = channels.open(session, "ss");
+        Assert.assertEquals(10, channel.remaining());
+        channel.write("0123456");
+        channel.write("789abcdef");
+        Assert.assertEquals(0, channel.remaining());
+        channel.close();
+        Assert.assertTrue(session.getOutput().startsWith("0123456789"));
+        Assert.assertTrue(session.getOutput().contains("6 characters are left"));
+        Assert.assertEquals("abcdef", session.get(OutputChannels.CONTINUATION_VARIABLE));
+
+        OutputChannels.Metrics metrics = channels.getMetrics().get(0);
+        Assert.assertEquals(16, metrics.getProduced());
+        Assert.assertEquals(6, metrics.getTruncated());
+        Assert.assertEquals(0, metrics.getDropped());
+        Assert.assertEquals(10, channels.getPageSize());
+
+        // next command output is not truncated
+        channel = channels.open(session, "ss");
+        channel.write("0123");
+        channel.close();
+        Assert.assertNull(session.get(OutputChannels.CONTINUATION_VARIABLE));
+    }
+
+    @Test
+    public void limitTest() throws Exception {
+        OutputChannels channels = new OutputChannels(4, OutputChannels.BLOCK, 10);
+        try {
+            TestCommandSession session = new TestCommandSession();
+            OutputChannel channel = channels.open(session, "bundles");
+            for (int i = 0; i < 5; i++) {
+                channel.write("0123");
+            }
+            channel.close();
+            String output = session.getOutput();
+            Assert.assertTrue(output.startsWith("0123012301"));
+            Assert.assertTrue(output.contains("output is limited to 10 characters, 10 characters are dropped"));
+            Assert.assertFalse(output.contains("-- 10 characters are dropped"));
+        } finally {
+            channels.shutdown();
+        }
+    }
+
+    @Test
+    public void adapterTest() throws Exception {
+        OutputChannels channels = new OutputChannels(0, OutputChannels.TRUNCATE, 12);
+        try {
+            AdapterContext context = new AdapterContext();
+            context.setOutputChannels(channels);
+            ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null), context);
+            OutputCommandProvider provider = new OutputCommandProvider();
+            ShellInfo shellInfo = cache.acquire(provider);
+            EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+            int lines = Arrays.binarySearch(shellInfo.getCommands(), "lines");
+
+            TestCommandSession session = new TestCommandSession();
+            adapter.runCommandWithResult(session, new String[]{"a", "b", "c"}, "lines", lines);
+            String separator = System.getProperty("line.separator");
+            Assert.assertTrue(session.getOutput().startsWith("line a" + separator + "line "));
+            Assert.assertEquals(("line a" + separator + "line b" + separator + "line c" + separator).substring(12),
+                    session.get(OutputChannels.CONTINUATION_VARIABLE));
+            Assert.assertEquals("lines", channels.getMetrics().get(0).getCommand());
+        } finally {
+            channels.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownOverflowTest() throws Exception {
+        new OutputChannels(16, "wait", 0);
+    }
+
+    /**
+     * CommandSession with console that waits for latch and sleeps on each write
+     */
+    private static class SlowCommandSession extends TestCommandSession {
+        private final PrintStream console;
+
+        private SlowCommandSession(final CountDownLatch latch, final long delay) {
+            final PrintStream out = super.getConsole();
+            console = new PrintStream(new OutputStream() {
+                public void write(int b) {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) {
+                    try {
+                        latch.await();
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    out.write(b, off, len);
+                }
+            });
+        }
+
+        public PrintStream getConsole() {
+            return console;
+        }
+    }
+}
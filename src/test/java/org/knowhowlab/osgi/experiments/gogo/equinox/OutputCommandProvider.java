@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandInterpreter;
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+import java.util.Hashtable;
+
+/**
+ * CommandProvider that prints its output with CommandInterpreter
+ *
+ * @author dmytro.pishchukhin
+ */
+public class OutputCommandProvider implements CommandProvider {
+    public String getHelp() {
+        return "lines - print every argument in a separate line\nprops - print arguments as dictionary";
+    }
+
+    public void _lines(CommandInterpreter intp) {
+        String argument;
+        while ((argument = intp.nextArgument()) != null) {
+            intp.print("line ");
+            intp.println(argument);
+        }
+    }
+
+    public void _props(CommandInterpreter intp) {
+        Hashtable<String, String> properties = new Hashtable<String, String>();
+        String argument;
+        while ((argument = intp.nextArgument()) != null) {
+            properties.put(argument, argument.toUpperCase());
+        }
+        intp.printDictionary(properties, "Properties");
+    }
+}
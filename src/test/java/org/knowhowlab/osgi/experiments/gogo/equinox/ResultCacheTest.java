@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandInterpreter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class ResultCacheTest {
+    @Test
+    public void cachedCommandTest() throws Exception {
+        ResultCache resultCache = new ResultCache(Collections.singleton("lines"), 10);
+        AdapterContext context = new AdapterContext();
+        context.setResultCache(resultCache);
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null), context);
+        CountingCommandProvider provider = new CountingCommandProvider();
+        ShellInfo shellInfo = cache.acquire(provider);
+        EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+        int lines = Arrays.binarySearch(shellInfo.getCommands(), "lines");
+        int count = Arrays.binarySearch(shellInfo.getCommands(), "count");
+
+        TestCommandSession session = new TestCommandSession();
+        adapter.runCommandWithResult(session, new String[]{"a"}, "lines", lines);
+        adapter.runCommandWithResult(session, new String[]{"a"}, "lines", lines);
+        String separator = System.getProperty("line.separator");
+        Assert.assertEquals("line a" + separator + "line a" + separator, session.getOutput());
+        Assert.assertEquals(1, provider.getCalls());
+        Assert.assertEquals(1, resultCache.getHits());
+        Assert.assertEquals(1, resultCache.getMisses());
+
+        // different arguments
+        adapter.runCommandWithResult(session, new String[]{"b"}, "lines", lines);
+        Assert.assertEquals(2, provider.getCalls());
+
+        // framework state is changed
+        resultCache.invalidate();
+        Assert.assertEquals(0, resultCache.size());
+        adapter.runCommandWithResult(session, new String[]{"a"}, "lines", lines);
+        Assert.assertEquals(3, provider.getCalls());
+
+        // not read-only command
+        Assert.assertEquals(1, adapter.runCommandWithResult(session, new String[]{"a"}, "count", count));
+        Assert.assertEquals(1, adapter.runCommandWithResult(session, new String[]{"a"}, "count", count));
+        Assert.assertEquals(5, provider.getCalls());
+    }
+
+    @Test
+    public void outputChannelTest() throws Exception {
+        OutputChannels channels = new OutputChannels(0, OutputChannels.DROP, 6);
+        try {
+            ResultCache resultCache = new ResultCache(Collections.singleton("lines"), 10);
+            AdapterContext context = new AdapterContext();
+            context.setResultCache(resultCache);
+            context.setOutputChannels(channels);
+            ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null), context);
+            CountingCommandProvider provider = new CountingCommandProvider();
+            ShellInfo shellInfo = cache.acquire(provider);
+            EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+            int lines = Arrays.binarySearch(shellInfo.getCommands(), "lines");
+
+            TestCommandSession session = new TestCommandSession();
+            adapter.runCommandWithResult(session, new String[]{"a", "b"}, "lines", lines);
+            String missOutput = session.getOutput();
+            adapter.runCommandWithResult(session, new String[]{"a", "b"}, "lines", lines);
+            Assert.assertEquals(1, provider.getCalls());
+            // cached output has the same output limit
+            Assert.assertTrue(missOutput.startsWith("line a"));
+            Assert.assertTrue(missOutput.contains("output is limited to 6 characters"));
+            Assert.assertEquals(missOutput + missOutput, session.getOutput());
+        } finally {
+            channels.shutdown();
+        }
+    }
+
+    @Test
+    public void evictionTest() {
+        ResultCache resultCache = new ResultCache(Collections.singleton("ss"), 2);
+        Object adapter = new Object();
+        ResultCache.Key key1 = new ResultCache.Key(adapter, "ss", new String[]{"1"}, false);
+        ResultCache.Key key2 = new ResultCache.Key(adapter, "ss", new String[]{"2"}, false);
+        ResultCache.Key key3 = new ResultCache.Key(adapter, "ss", new String[]{"3"}, false);
+        ResultCache.Result result = new ResultCache.Result("", null);
+
+        resultCache.put(key1, result, resultCache.getGeneration());
+        resultCache.put(key2, result, resultCache.getGeneration());
+        // key1 is recently used
+        Assert.assertNotNull(resultCache.get(key1));
+        resultCache.put(key3, result, resultCache.getGeneration());
+        Assert.assertEquals(2, resultCache.size());
+        Assert.assertNull(resultCache.get(key2));
+        Assert.assertNotNull(resultCache.get(key1));
+        Assert.assertNotNull(resultCache.get(key3));
+
+        // framework state is changed during command execution
+        long generation = resultCache.getGeneration();
+        resultCache.invalidate();
+        resultCache.put(key1, result, generation);
+        Assert.assertNull(resultCache.get(key1));
+    }
+
+    @Test
+    public void nestedCommandTest() throws Exception {
+        ResultCache resultCache = new ResultCache(new HashSet<String>(Arrays.asList("lines", "nested")), 10);
+        AdapterContext context = new AdapterContext();
+        context.setResultCache(resultCache);
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null), context);
+        CountingCommandProvider provider = new CountingCommandProvider();
+        ShellInfo shellInfo = cache.acquire(provider);
+        EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+        int nested = Arrays.binarySearch(shellInfo.getCommands(), "nested");
+
+        final TestCommandSession session = new TestCommandSession();
+        session.addCommand("inner", new Runnable() {
+            public void run() {
+                session.getConsole().print("inner ");
+            }
+        });
+        adapter.runCommandWithResult(session, new String[0], "nested", nested);
+        adapter.runCommandWithResult(session, new String[0], "nested", nested);
+        String separator = System.getProperty("line.separator");
+        // output is streamed in order and command with nested commands is not cached
+        Assert.assertEquals("outer inner done" + separator + "outer inner done" + separator, session.getOutput());
+        Assert.assertEquals(2, provider.getCalls());
+        Assert.assertEquals(0, resultCache.size());
+    }
+
+    @Test
+    public void structuredResultTest() throws Exception {
+        ResultCache resultCache = new ResultCache(Collections.singleton("lines"), 10);
+        AdapterContext context = new AdapterContext();
+        context.setResultCache(resultCache);
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null), context);
+        CountingCommandProvider provider = new CountingCommandProvider();
+        ShellInfo shellInfo = cache.acquire(provider);
+        EquinoxGogoAdapter adapter = cache.newInstance(shellInfo, provider);
+        int lines = Arrays.binarySearch(shellInfo.getCommands(), "lines");
+
+        TestCommandSession session = new TestCommandSession();
+        session.put(OutputSettings.SESSION_STRUCTURED_VARIABLE, "true");
+        List<?> first = (List<?>) adapter.runCommandWithResult(session, new String[]{"a", "b"}, "lines", lines);
+        List<?> second = (List<?>) adapter.runCommandWithResult(session, new String[]{"a", "b"}, "lines", lines);
+        Assert.assertEquals(1, provider.getCalls());
+        // sessions do not share cached output
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, second.size());
+        Assert.assertEquals("line a", second.get(0).toString());
+        Assert.assertEquals("line b", second.get(1).toString());
+    }
+
+    @Test
+    public void ownEventsTest() {
+        Bundle bundle = createBundle();
+        ResultCache resultCache = new ResultCache(Collections.singleton("ss"), 10, bundle);
+        long generation = resultCache.getGeneration();
+        resultCache.bundleChanged(new BundleEvent(BundleEvent.STARTED, bundle));
+        Assert.assertEquals(generation, resultCache.getGeneration());
+        resultCache.bundleChanged(new BundleEvent(BundleEvent.STARTED, createBundle()));
+        Assert.assertEquals(generation + 1, resultCache.getGeneration());
+    }
+
+    private static Bundle createBundle() {
+        return (Bundle) Proxy.newProxyInstance(ResultCacheTest.class.getClassLoader(), new Class<?>[]{Bundle.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("equals".equals(method.getName())) {
+                            return proxy == args[0];
+                        }
+                        if ("hashCode".equals(method.getName())) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * CommandProvider that counts command calls
+     */
+    public static class CountingCommandProvider extends OutputCommandProvider {
+        private int calls;
+
+        public void _lines(CommandInterpreter intp) {
+            calls++;
+            super._lines(intp);
+        }
+
+        public void _nested(CommandInterpreter intp) {
+            calls++;
+            intp.print("outer ");
+            intp.execute("inner");
+            intp.println("done");
+        }
+
+        public int _count(CommandInterpreter intp) {
+            calls++;
+            int count = 0;
+            while (intp.nextArgument() != null) {
+                count++;
+            }
+            return count;
+        }
+
+        public int getCalls() {
+            return calls;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import javassist.ClassPool;
+import org.eclipse.osgi.framework.console.CommandInterpreter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * @author dmytro.pishchukhin
+ */
+public class ShellInfoCacheTest {
+    @Test
+    public void sharedAdapterTest() {
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null));
+
+        ShellInfo shellInfo1 = cache.acquire(new NoHelpCommandProvider());
+        ShellInfo shellInfo2 = cache.acquire(new NoHelpCommandProvider());
+        Assert.assertNotNull(shellInfo1);
+        Assert.assertSame(shellInfo1, shellInfo2);
+        Assert.assertEquals(1, cache.size());
+
+        cache.release(shellInfo1);
+        Assert.assertEquals(1, cache.size());
+        cache.release(shellInfo2);
+        Assert.assertEquals(0, cache.size());
+
+        ShellInfo shellInfo3 = cache.acquire(new NoHelpCommandProvider());
+        Assert.assertNotSame(shellInfo1, shellInfo3);
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void helpChangedTest() {
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null));
+
+        ShellInfo shellInfo1 = cache.acquire(new NoHelpCommandProvider());
+        ShellInfo shellInfo2 = cache.acquire(new NoHelpCommandProvider() {
+            public String getHelp() {
+                return "hello - another help";
+            }
+        });
+        Assert.assertNotSame(shellInfo1, shellInfo2);
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void sameSimpleNameTest() {
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null));
+
+        ShellInfo shellInfo1 = cache.acquire(new org.knowhowlab.osgi.experiments.gogo.equinox.NoHelpCommandProvider());
+        ShellInfo shellInfo2 = cache.acquire(new NoHelpCommandProvider());
+        Assert.assertNotNull(shellInfo1);
+        Assert.assertNotNull(shellInfo2);
+        Assert.assertFalse(shellInfo1.getShellClass().getName().equals(shellInfo2.getShellClass().getName()));
+
+        // provider class comes back before previous adapter is released
+        ShellInfo shellInfo3 = Utils.createGogoService(new NoHelpCommandProvider());
+        Assert.assertNotNull(shellInfo3);
+    }
+
+    @Test
+    public void unloadTest() throws Exception {
+        ShellInfoCache cache = new ShellInfoCache(new JavassistAdapterBackend(null));
+
+        ShellInfo shellInfo = cache.acquire(new NoHelpCommandProvider());
+        WeakReference<ClassPool> classPool = Utils.lastClassPool;
+        Assert.assertNotNull(classPool);
+        WeakReference<Class<?>> shellClass = new WeakReference<Class<?>>(shellInfo.getShellClass());
+        WeakReference<ClassLoader> classLoader = new WeakReference<ClassLoader>(shellInfo.getShellClass().getClassLoader());
+        Assert.assertTrue(classLoader.get() instanceof AdapterClassLoader);
+
+        cache.release(shellInfo);
+        shellInfo = null;
+
+        for (int i = 0; i < 50 && (shellClass.get() != null || classLoader.get() != null || classPool.get() != null); i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        Assert.assertNull(shellClass.get());
+        Assert.assertNull(classLoader.get());
+        // classes pool with generated CtClass is not retained
+        Assert.assertNull(classPool.get());
+    }
+
+    /**
+     * CommandProvider with the same simple name as {@link org.knowhowlab.osgi.experiments.gogo.equinox.NoHelpCommandProvider}
+     */
+    public static class NoHelpCommandProvider extends org.knowhowlab.osgi.experiments.gogo.equinox.NoHelpCommandProvider {
+        public Object _bye(CommandInterpreter intp) {
+            return "bye " + intp.nextArgument();
+        }
+    }
+}
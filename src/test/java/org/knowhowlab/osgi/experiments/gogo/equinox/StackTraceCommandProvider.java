@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.eclipse.osgi.framework.console.CommandInterpreter;
+import org.eclipse.osgi.framework.console.CommandProvider;
+
+/**
+ * CommandProvider that keeps stack trace of the last command call
+ *
+ * @author dmytro.pishchukhin
+ */
+public class StackTraceCommandProvider implements CommandProvider {
+    private StackTraceElement[] lastStackTrace;
+
+    public String getHelp() {
+        return "trace - record stack trace\ncount - return number of arguments\nfail - throw exception";
+    }
+
+    public void _trace(CommandInterpreter intp) {
+        lastStackTrace = new Throwable().getStackTrace();
+    }
+
+    public int _count(CommandInterpreter intp) {
+        lastStackTrace = new Throwable().getStackTrace();
+        int count = 0;
+        while (intp.nextArgument() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    public Object _fail(CommandInterpreter intp) throws Exception {
+        throw new Exception("fail");
+    }
+
+    public StackTraceElement[] getLastStackTrace() {
+        return lastStackTrace;
+    }
+}
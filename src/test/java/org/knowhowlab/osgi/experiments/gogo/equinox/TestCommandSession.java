@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2010 Dmytro Pishchukhin (http://knowhowlab.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knowhowlab.osgi.experiments.gogo.equinox;
+
+import org.apache.felix.service.command.CommandSession;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CommandSession that collects console output and counts console writes
+ *
+ * @author dmytro.pishchukhin
+ */
+public class TestCommandSession implements CommandSession {
+    private final Map<String, Object> variables = new HashMap<String, Object>();
+    private final CountingOutputStream out = new CountingOutputStream();
+    private final PrintStream console = new PrintStream(out);
+    private final Map<String, Runnable> commands = new HashMap<String, Runnable>();
+
+    /**
+     * Add command that is run by {@link #execute(CharSequence)}
+     *
+     * @param name    command line
+     * @param command command
+     */
+    public void addCommand(String name, Runnable command) {
+        commands.put(name, command);
+    }
+
+    public Object execute(CharSequence commandline) throws Exception {
+        Runnable command = commands.get(commandline.toString());
+        if (command == null) {
+            throw new IllegalArgumentException("Command not found: " + commandline);
+        }
+        command.run();
+        return null;
+    }
+
+    public void close() {
+    }
+
+    public InputStream getKeyboard() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    public PrintStream getConsole() {
+        return console;
+    }
+
+    public Object get(String name) {
+        return variables.get(name);
+    }
+
+    public void put(String name, Object value) {
+        variables.put(name, value);
+    }
+
+    public CharSequence format(Object target, int level) {
+        return String.valueOf(target);
+    }
+
+    public Object convert(Class<?> type, Object instance) {
+        return instance;
+    }
+
+    /**
+     * Get console output
+     *
+     * @return console output
+     */
+    public String getOutput() {
+        return out.toString();
+    }
+
+    /**
+     * Get console output bytes
+     *
+     * @return console output bytes
+     */
+    public byte[] getOutputBytes() {
+        return out.toByteArray();
+    }
+
+    /**
+     * Get number of writes to console stream
+     *
+     * @return number of writes
+     */
+    public int getWrites() {
+        return out.writes;
+    }
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        private int writes;
+
+        public synchronized void write(int b) {
+            writes++;
+            super.write(b);
+        }
+
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+}
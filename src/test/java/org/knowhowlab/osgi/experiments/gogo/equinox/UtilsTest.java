@@ -17,6 +17,7 @@
 package org.knowhowlab.osgi.experiments.gogo.equinox;
 
 import org.apache.felix.service.command.Descriptor;
+import org.eclipse.osgi.framework.console.CommandProvider;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -50,6 +51,47 @@ public class UtilsTest {
         Assert.assertNull(findDescriptionAnnotation(print));
     }
 
+    @Test
+    public void directDispatchTest() throws Exception {
+        StackTraceCommandProvider provider = new StackTraceCommandProvider();
+        ShellInfo shellInfo = Utils.createGogoService(provider);
+        Assert.assertNotNull(shellInfo);
+
+        EquinoxGogoAdapter adapter = shellInfo.getShellClass().getConstructor(CommandProvider.class).newInstance(provider);
+        Method[] methods = shellInfo.getShellClass().getMethods();
+
+        // void command returns null (or captured output in structured mode)
+        Method trace = findMethod(methods, "trace");
+        Assert.assertEquals(Object.class, trace.getReturnType());
+        Assert.assertNull(trace.invoke(adapter, null, new String[0]));
+        assertNoReflection(provider.getLastStackTrace());
+
+        // command with primitive result
+        Method count = findMethod(methods, "count");
+        Assert.assertEquals(2, count.invoke(adapter, null, new String[]{"a", "b"}));
+        assertNoReflection(provider.getLastStackTrace());
+
+        // failed command returns null
+        Method fail = findMethod(methods, "fail");
+        Assert.assertNull(fail.invoke(adapter, null, new String[0]));
+    }
+
+    private void assertNoReflection(StackTraceElement[] stackTrace) {
+        Assert.assertNotNull(stackTrace);
+        // frames between provider method and generated adapter method
+        for (int i = 1; i < stackTrace.length; i++) {
+            String className = stackTrace[i].getClassName();
+            if (className.startsWith(EquinoxGogoAdapter.class.getName() + "_")) {
+                return;
+            }
+            Assert.assertFalse("Reflection call: " + stackTrace[i],
+                    className.startsWith("java.lang.reflect.")
+                            || className.startsWith("sun.reflect.")
+                            || className.startsWith("jdk.internal.reflect."));
+        }
+        Assert.fail("Generated adapter is not found in stack trace");
+    }
+
     private String findDescriptionAnnotation(Method method) {
         Descriptor descriptor = method.getAnnotation(Descriptor.class);
         if (descriptor != null) {